@@ -0,0 +1,127 @@
+package dk.geodatainfo.metadatavalidator.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import dk.geodatainfo.metadatavalidator.xml.XMLUtils;
+
+/**
+ * Generated GetRecordsResponses and INSPIRE validation results for the benchmarks. The records are filled in from
+ * iso19139-record.xml, a dataset record of about 10 KB as returned by a CSW with ElementSetName full, with values
+ * that vary with the number of the record, so that the statistics have several groups.
+ */
+public final class Iso19139Fixtures {
+
+	public static final String NS_CSW_2_0_2 = "http://www.opengis.net/cat/csw/2.0.2";
+
+	private static final String[] ORGANISATIONS = { "Styrelsen for Dataforsyning og Effektivisering",
+			"Miljøstyrelsen", "Geodatastyrelsen", "Vejdirektoratet", "Københavns Kommune", "Aarhus Kommune",
+			"Danmarks Statistik" };
+	private static final String[] HIERARCHY_LEVELS = { "dataset", "dataset", "dataset", "series", "service" };
+	private static final String[][] KEYWORDS = { { "cp", "Matrikulære parceller" }, { "au", "Administrative enheder" },
+			{ "tn", "Transportnet" }, { "hy", "Hydrografi" }, { "ps", "Beskyttede lokaliteter" },
+			{ "lc", "Arealdække" } };
+
+	private static final String RECORD_TEMPLATE = readRecordTemplate();
+
+	private Iso19139Fixtures() {
+	}
+
+	/**
+	 * @param number
+	 *            number of the record, from 1
+	 * @return MD_Metadata element as a string
+	 */
+	public static String createRecord(int number) {
+		String[] keyword = KEYWORDS[number % KEYWORDS.length];
+		return RECORD_TEMPLATE.replace("${fileIdentifier}", String.format(Locale.ROOT, "%08x-0000-4000-8000-%012d",
+				number, number))
+				.replace("${hierarchyLevel}", HIERARCHY_LEVELS[number % HIERARCHY_LEVELS.length])
+				.replace("${organisation}", ORGANISATIONS[number % ORGANISATIONS.length])
+				.replace("${dateStamp}", String.format(Locale.ROOT, "2017-%02d-%02dT12:00:00", number % 12 + 1,
+						number % 28 + 1))
+				.replace("${title}", keyword[1] + " " + number).replace("${keywordCode}", keyword[0])
+				.replace("${keyword}", keyword[1]);
+	}
+
+	/**
+	 * @param startPosition
+	 *            number of the first record of the page, from 1
+	 * @return GetRecordsResponse with the records from startPosition, as a page of a result set of
+	 *         numberOfRecordsMatched records
+	 */
+	public static String createGetRecordsResponse(int startPosition, int numberOfRecords,
+			int numberOfRecordsMatched) {
+		int nextRecord = startPosition + numberOfRecords > numberOfRecordsMatched ? 0 : startPosition + numberOfRecords;
+		StringBuilder getRecordsResponse = new StringBuilder(numberOfRecords * RECORD_TEMPLATE.length() + 1024);
+		getRecordsResponse.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+				.append("<csw:GetRecordsResponse xmlns:csw=\"" + NS_CSW_2_0_2 + "\" version=\"2.0.2\">\n")
+				.append("  <csw:SearchStatus timestamp=\"2017-10-01T12:00:00\"/>\n")
+				.append("  <csw:SearchResults numberOfRecordsMatched=\"").append(numberOfRecordsMatched)
+				.append("\" numberOfRecordsReturned=\"").append(numberOfRecords).append("\" nextRecord=\"")
+				.append(nextRecord)
+				.append("\" elementSet=\"full\" recordSchema=\"http://www.isotc211.org/2005/gmd\">\n");
+		for (int number = startPosition; number < startPosition + numberOfRecords; number++) {
+			getRecordsResponse.append(createRecord(number));
+		}
+		getRecordsResponse.append("  </csw:SearchResults>\n</csw:GetRecordsResponse>\n");
+		return getRecordsResponse.toString();
+	}
+
+	public static Document parse(String xml) throws ParserConfigurationException, SAXException, IOException {
+		return XMLUtils.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Writes a validation result of the INSPIRE Geoportal validator for a GetRecordsResponse with the given number of
+	 * records, with a resource report per record.
+	 */
+	public static void writeValidationResult(File file, int numberOfResources) throws IOException {
+		StringBuilder result = new StringBuilder();
+		result.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+				.append("<ns2:Resource xmlns=\"http://inspire.ec.europa.eu/schemas/common/1.0\" ")
+				.append("xmlns:ns2=\"http://inspire.ec.europa.eu/schemas/geoportal/1.0\">\n")
+				.append("  <ns2:PullBatchReportResource>\n    <ns2:FoundResourcesCount>").append(numberOfResources)
+				.append("</ns2:FoundResourcesCount>\n  </ns2:PullBatchReportResource>\n");
+		for (int number = 1; number <= numberOfResources; number++) {
+			result.append("  <ns2:ResourceReportResource>\n    <ns2:ResourceTitle>").append(number)
+					.append("</ns2:ResourceTitle>\n    <ns2:ResourceType>dataset</ns2:ResourceType>\n")
+					.append("    <ns2:CompletenessIndicator>").append(50 + number % 50)
+					.append("</ns2:CompletenessIndicator>\n    <ns2:InspireValidationErrors>\n");
+			for (int error = 0; error < number % 4; error++) {
+				result.append("      <ns2:ValidationError>\n        <ns2:Message>Element ")
+						.append("gmd:MD_Metadata/gmd:identificationInfo/gmd:MD_DataIdentification/gmd:extent is ")
+						.append("missing or has an invalid value</ns2:Message>\n        <ns2:Severity>WARN")
+						.append("</ns2:Severity>\n      </ns2:ValidationError>\n");
+			}
+			result.append("    </ns2:InspireValidationErrors>\n  </ns2:ResourceReportResource>\n");
+		}
+		result.append("  <ns2:CompletenessIndicator>87.5</ns2:CompletenessIndicator>\n")
+				.append("  <ns2:GeoportalMetadataLocator>\n    <URL>/").append(file.getName())
+				.append("</URL>\n  </ns2:GeoportalMetadataLocator>\n</ns2:Resource>\n");
+		FileUtils.writeStringToFile(file, result.toString(), StandardCharsets.UTF_8);
+	}
+
+	private static String readRecordTemplate() {
+		InputStream inputStream = Iso19139Fixtures.class.getResourceAsStream("/iso19139-record.xml");
+		try {
+			return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new IllegalStateException("iso19139-record.xml could not be read", e);
+		} finally {
+			IOUtils.closeQuietly(inputStream);
+		}
+	}
+
+}
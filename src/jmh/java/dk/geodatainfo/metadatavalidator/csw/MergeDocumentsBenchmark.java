@@ -0,0 +1,59 @@
+package dk.geodatainfo.metadatavalidator.csw;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import dk.geodatainfo.metadatavalidator.benchmark.Iso19139Fixtures;
+
+/**
+ * Merging the pages of a result set into one GetRecordsResponse, as done without csw.streamrecords.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeDocumentsBenchmark {
+
+	@Param({ "1", "10", "25" })
+	public int numberOfPages;
+
+	/**
+	 * The default of csw.maxrecords.
+	 */
+	@Param({ "100" })
+	public int recordsPerPage;
+
+	private List<Document> pages;
+
+	@Setup
+	public void setUp() throws Exception {
+		int numberOfRecordsMatched = numberOfPages * recordsPerPage;
+		pages = new ArrayList<>(numberOfPages);
+		for (int page = 0; page < numberOfPages; page++) {
+			pages.add(Iso19139Fixtures.parse(Iso19139Fixtures.createGetRecordsResponse(page * recordsPerPage + 1,
+					recordsPerPage, numberOfRecordsMatched)));
+		}
+	}
+
+	@Benchmark
+	public Document mergeDocumentsToOne() throws Exception {
+		return CSWClient.mergeDocumentsToOne(numberOfPages * recordsPerPage, pages);
+	}
+
+}
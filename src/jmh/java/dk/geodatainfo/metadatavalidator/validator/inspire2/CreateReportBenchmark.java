@@ -0,0 +1,70 @@
+package dk.geodatainfo.metadatavalidator.validator.inspire2;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.geodatainfo.metadatavalidator.benchmark.Iso19139Fixtures;
+
+/**
+ * Creating report.csv from a directory of validation results, each for a GetRecordsResponse with the given number of
+ * records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateReportBenchmark {
+
+	@Param({ "10", "100" })
+	public int numberOfResults;
+
+	@Param({ "1", "100" })
+	public int recordsPerResult;
+
+	private File directory;
+	private INSPIREGeoportalMetadataValidator validator;
+
+	@Setup
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("validationresult").toFile();
+		for (int number = 1; number <= numberOfResults; number++) {
+			Iso19139Fixtures.writeValidationResult(
+					new File(directory, String.format(Locale.ROOT, "org%04d.xml", number)), recordsPerResult);
+		}
+		PropertiesConfiguration config = new PropertiesConfiguration();
+		config.setProperty("validator.endpoint", "http://localhost/validator");
+		config.setProperty("dir.validationresult", directory.getAbsolutePath());
+		validator = new INSPIREGeoportalMetadataValidator(config);
+	}
+
+	@TearDown
+	public void tearDown() {
+		validator.shutDown();
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Benchmark
+	public File createReport() throws Exception {
+		return validator.createReport();
+	}
+
+}
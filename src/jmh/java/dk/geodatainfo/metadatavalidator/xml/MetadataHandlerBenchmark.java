@@ -0,0 +1,70 @@
+package dk.geodatainfo.metadatavalidator.xml;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import dk.geodatainfo.metadatavalidator.benchmark.Iso19139Fixtures;
+
+/**
+ * The statistics and the saving of a GetRecordsResponse that has been retrieved as a DOM, with the default
+ * queryables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataHandlerBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int numberOfRecords;
+
+	private File directory;
+	private MetadataHandler metadataHandler;
+	private Document getRecordsResponse;
+
+	@Setup
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("metadatahandler").toFile();
+		PropertiesConfiguration config = new PropertiesConfiguration();
+		config.setProperty("dir.getrecordsresponse", directory.getAbsolutePath());
+		metadataHandler = new MetadataHandler(config);
+		getRecordsResponse = Iso19139Fixtures
+				.parse(Iso19139Fixtures.createGetRecordsResponse(1, numberOfRecords, numberOfRecords));
+	}
+
+	@TearDown
+	public void tearDown() {
+		metadataHandler.shutDown();
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Benchmark
+	public void provideStatisticsForMetadata() {
+		metadataHandler.provideStatisticsForMetadata(getRecordsResponse, "benchmark.xml");
+	}
+
+	@Benchmark
+	public File saveMetadataRecordsAsIs() throws Exception {
+		return metadataHandler.saveMetadataRecordsAsIs(getRecordsResponse, "benchmark.xml");
+	}
+
+}
@@ -0,0 +1,67 @@
+package dk.geodatainfo.metadatavalidator.xml;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.NamespaceContext;
+
+import org.apache.ws.commons.schema.utils.NamespaceMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import dk.geodatainfo.metadatavalidator.benchmark.Iso19139Fixtures;
+
+/**
+ * XPath selection on a GetRecordsResponse, with an absolute path to one element per record and with a descendant
+ * path to several elements per record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XMLUtilsBenchmark {
+
+	private static final String FILE_IDENTIFIERS = "/csw:GetRecordsResponse/csw:SearchResults/gmd:MD_Metadata"
+			+ "/gmd:fileIdentifier/gco:CharacterString";
+	private static final String KEYWORDS = "//gmd:MD_Keywords/gmd:keyword/*";
+
+	@Param({ "10", "100", "1000" })
+	public int numberOfRecords;
+
+	private Document getRecordsResponse;
+	private NamespaceContext namespaceContext;
+
+	@Setup
+	public void setUp() throws Exception {
+		getRecordsResponse = Iso19139Fixtures
+				.parse(Iso19139Fixtures.createGetRecordsResponse(1, numberOfRecords, numberOfRecords));
+		NamespaceMap namespaceMap = new NamespaceMap();
+		namespaceMap.add("csw", Iso19139Fixtures.NS_CSW_2_0_2);
+		namespaceMap.add("gmd", "http://www.isotc211.org/2005/gmd");
+		namespaceMap.add("gco", "http://www.isotc211.org/2005/gco");
+		namespaceContext = namespaceMap;
+	}
+
+	@Benchmark
+	public NodeList selectNodesByPath() throws Exception {
+		return XMLUtils.selectNodes(getRecordsResponse, FILE_IDENTIFIERS, namespaceContext);
+	}
+
+	@Benchmark
+	public NodeList selectNodesByDescendants() throws Exception {
+		return XMLUtils.selectNodes(getRecordsResponse, KEYWORDS, namespaceContext);
+	}
+
+}
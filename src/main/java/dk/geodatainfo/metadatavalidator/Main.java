@@ -1,14 +1,26 @@
 package dk.geodatainfo.metadatavalidator;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 
 import org.apache.commons.cli.CommandLine;
@@ -20,25 +32,44 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import dk.geodatainfo.metadatavalidator.csw.CSWClient;
 import dk.geodatainfo.metadatavalidator.csw.CSWException;
+import dk.geodatainfo.metadatavalidator.csw.GetRecordsResponseHandler;
+import dk.geodatainfo.metadatavalidator.csw.GetRecordsResponsePage;
+import dk.geodatainfo.metadatavalidator.csw.GetRecordsResponseReader;
+import dk.geodatainfo.metadatavalidator.csw.HarvestIndex;
+import dk.geodatainfo.metadatavalidator.utils.RetryPolicy;
 import dk.geodatainfo.metadatavalidator.utils.Utils;
+import dk.geodatainfo.metadatavalidator.utils.VirtualThreads;
 import dk.geodatainfo.metadatavalidator.validator.MetadataValidator;
+import dk.geodatainfo.metadatavalidator.validator.cache.CachingMetadataValidator;
 import dk.geodatainfo.metadatavalidator.validator.etf.ETFClient;
 import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
 import dk.geodatainfo.metadatavalidator.validator.inspire2.INSPIREGeoportalMetadataValidator;
+import dk.geodatainfo.metadatavalidator.validator.limit.ConcurrencyLimitingMetadataValidator;
+import dk.geodatainfo.metadatavalidator.xml.GetRecordsResponseWriter;
 import dk.geodatainfo.metadatavalidator.xml.MetadataHandler;
+import dk.geodatainfo.metadatavalidator.xml.RecordStatistics;
 
 public class Main { // NOPMD
 
 	private static final String OPTION_CONFIG_FILE = "c";
+	private static final String OPTION_RESUME = "resume";
+	private static final int NUMBER_OF_VALIDATION_THREADS = 10;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
 
@@ -48,9 +79,26 @@ public class Main { // NOPMD
 	private PropertiesConfiguration config;
 	private ThreadFactory threadFactory;
 	private ExecutorService executorService;
+	private ExecutorService harvestExecutorService;
 	private boolean getMetadataRecords;
+	private boolean streamMetadataRecords;
+	private boolean incrementalHarvest;
+	private File dirHarvestIndex;
+	private boolean splitMetadataRecords;
 	private boolean validateMetadataRecords;
+	private boolean pipelineValidation;
+	private Semaphore validationQueue;
+	private Collection<Future<Boolean>> validationResults;
+	private Collection<ListenableFuture<Void>> startedValidations;
+	private Queue<File> failedValidations;
 	private boolean createReport;
+	private boolean limitConcurrency;
+	private int numberOfValidationThreads;
+	private boolean isResumed;
+	private boolean useVirtualThreads;
+	private Semaphore validatorPermits;
+	private Semaphore cswPermits;
+	private RunJournal journal;
 
 	public static void main(String[] args) {
 		new Main().run(args);
@@ -58,22 +106,43 @@ public class Main { // NOPMD
 
 	public void run(String... args) {
 		threadFactory = new ThreadFactoryBuilder().setNameFormat("Request-%d").setDaemon(false).build();
-		executorService = Executors.newFixedThreadPool(10, threadFactory);
 		try {
 			LOGGER.info("Starting application");
 
-			File configurationFile = getConfigurationFileFromCommandLineArgs(args);
+			CommandLine commandLine = parseCommandLineArgs(args);
+			File configurationFile = (File) commandLine.getParsedOptionValue(OPTION_CONFIG_FILE);
+			isResumed = commandLine.hasOption(OPTION_RESUME);
 
 			Configurations configurations = new Configurations();
 			config = configurations.properties(configurationFile);
+			limitConcurrency = config.getBoolean("validator.limit", false);
+			numberOfValidationThreads = getNumberOfValidationThreads();
+			journal = openJournal();
+			useVirtualThreads = isVirtualThreadsEnabled();
+			executorService = createValidationExecutorService();
 
 			File dirGetRecords = Utils.getExistingDirFromConfig(config, "dir.getrecords",
 					"The location of a directory containing GetRecords-files must be provided");
 
 			cswClient = new CSWClient(config);
 			getMetadataRecords = config.getBoolean("csw.getrecords", true);
+			harvestExecutorService = createHarvestExecutorService();
+			streamMetadataRecords = config.getBoolean("csw.streamrecords", false);
+			incrementalHarvest = getMetadataRecords && config.getBoolean("csw.incremental", false);
+			if (incrementalHarvest) {
+				// unlike the other directories this one is kept between runs
+				dirHarvestIndex = Utils.createDirectory(Utils.getDirFromConfig(config, "dir.harvestindex",
+						"The location of the directory that will contain the harvest index must be provided"));
+			}
 			metadataHandler = new MetadataHandler(config);
+			splitMetadataRecords = getMetadataRecords && config.getBoolean("csw.splitrecords", false);
 			validateMetadataRecords = config.getBoolean("validator.validaterecords", true);
+			pipelineValidation = validateMetadataRecords && config.getBoolean("validator.pipelined", false);
+			validationQueue = new Semaphore(
+					numberOfValidationThreads + config.getInt("validator.queuesize", numberOfValidationThreads));
+			validationResults = new ConcurrentLinkedQueue<>();
+			startedValidations = new ConcurrentLinkedQueue<>();
+			failedValidations = new ConcurrentLinkedQueue<>();
 			createReport = config.getBoolean("validator.createreport", true);
 			if (validateMetadataRecords || createReport) {
 				String validatortype = config.getString("validator.type").toLowerCase();
@@ -88,16 +157,27 @@ public class Main { // NOPMD
 					throw new MetadataValidatorException(
 							"Unknown validator type " + validatortype + " given in the configuration");
 				}
+				if (limitConcurrency) {
+					validator = new ConcurrencyLimitingMetadataValidator(validator, config);
+				}
+				// cache hits are not limited
+				if (config.getBoolean("validator.cache", false)) {
+					validator = new CachingMetadataValidator(validator, config);
+				}
 			} else {
 				LOGGER.info("No validator is needed, not creating one.");
 			}
 
 			if (getMetadataRecords) {
-				Utils.createAndCleanDirectory(Utils.getDirFromConfig(config, "dir.getrecordsresponse",
+				prepareDirectory(Utils.getDirFromConfig(config, "dir.getrecordsresponse",
 						"The location of the directory that will contain the matching metadata must be provided"));
 			}
+			if (splitMetadataRecords) {
+				prepareDirectory(Utils.getDirFromConfig(config, "dir.metadatarecords",
+						"The location of the directory that will contain the metadata records must be provided"));
+			}
 			if (validateMetadataRecords) {
-				Utils.createAndCleanDirectory(Utils.getDirFromConfig(config, "dir.validationresult",
+				prepareDirectory(Utils.getDirFromConfig(config, "dir.validationresult",
 						"The location of the directory that will contain the validation results must be provided"));
 			}
 			retrieveAndProcessMetadata(dirGetRecords);
@@ -119,11 +199,62 @@ public class Main { // NOPMD
 			LOGGER.error(e.getMessage(), e);
 		} catch (InterruptedException e) {
 			LOGGER.error(e.getMessage(), e);
+		} catch (IOException e) {
+			LOGGER.error("Could not open the journal", e);
 		} finally {
-			executorService.shutdown();
+			if (executorService != null) {
+				executorService.shutdown();
+			}
+			if (harvestExecutorService != null) {
+				harvestExecutorService.shutdownNow();
+			}
+			if (cswClient != null) {
+				cswClient.shutDown();
+			}
+			if (metadataHandler != null) {
+				metadataHandler.shutDown();
+			}
 			if (validator != null) {
 				validator.shutDown();
 			}
+			if (journal != null) {
+				journal.close();
+			}
+		}
+	}
+
+	/**
+	 * With dir.journal every query and validation is recorded in a journal, see {@link RunJournal}. Unlike the other
+	 * directories this one is kept between runs.
+	 *
+	 * @return the journal, or null if dir.journal is not set
+	 */
+	private RunJournal openJournal() throws ConfigurationException, IOException {
+		if (StringUtils.isBlank(config.getString("dir.journal"))) {
+			if (isResumed) {
+				throw new ConfigurationException("A run can only be resumed with a journal in dir.journal");
+			}
+			return null;
+		}
+		File dirJournal = Utils.createDirectory(Utils.getDirFromConfig(config, "dir.journal",
+				"The location of the directory that will contain the journal must be provided"));
+		return RunJournal.open(dirJournal, isResumed);
+	}
+
+	/**
+	 * A resumed run continues with the files of the interrupted run, otherwise the directory is emptied.
+	 */
+	private void prepareDirectory(File directory) {
+		if (isResumed) {
+			Utils.createDirectory(directory);
+		} else {
+			Utils.createAndCleanDirectory(directory);
+		}
+	}
+
+	private void recordInJournal(RunJournal.Step step, RunJournal.Outcome outcome, String name, String details) {
+		if (journal != null) {
+			journal.record(step, outcome, name, details);
 		}
 	}
 
@@ -133,23 +264,34 @@ public class Main { // NOPMD
 	 */
 	private void retrieveAndProcessMetadata(File dirGetRecords) throws CSWException, ParserConfigurationException,
 			ConfigurationException, TransformerException, InterruptedException {
-		Collection<MetadataValidatorCallable> metadataValidatorcallables = new ArrayList<>();
+		Collection<MetadataValidatorCallable> metadataValidatorcallables = new ConcurrentLinkedQueue<>();
 
 		if (getMetadataRecords) {
 			Validate.notNull(dirGetRecords);
 			File[] files = dirGetRecords.listFiles();
 			Validate.notNull(files);
 			// TODO add XML validation of the files using an XML Catalog
-			for (File file : files) {
-				Document matchingRecords = cswClient.getMatchingRecords(file);
-				if (matchingRecords == null) {
-					LOGGER.info("No matching records found for " + file.getAbsolutePath());
-				} else {
-					metadataHandler.provideStatisticsForMetadata(matchingRecords, file.getName());
-					File getRecordsResponseFile = metadataHandler.saveMetadataRecordsAsIs(matchingRecords,
-							file.getName());
-					// validation on the server may take some time, therefore using multithreading
-					metadataValidatorcallables.add(new MetadataValidatorCallable(getRecordsResponseFile));
+			List<Future<Void>> harvestResults = new ArrayList<>(files.length);
+			try {
+				for (File file : files) {
+					harvestResults.add(harvestExecutorService
+							.submit(new HarvestCallable(file, metadataValidatorcallables)));
+				}
+				for (Future<Void> harvestResult : harvestResults) {
+					harvestResult.get();
+				}
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				Throwables.throwIfInstanceOf(cause, CSWException.class);
+				Throwables.throwIfInstanceOf(cause, ParserConfigurationException.class);
+				Throwables.throwIfInstanceOf(cause, ConfigurationException.class);
+				Throwables.throwIfInstanceOf(cause, TransformerException.class);
+				Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+				Throwables.throwIfUnchecked(cause);
+				throw new CSWException(cause);
+			} finally {
+				for (Future<Void> harvestResult : harvestResults) {
+					harvestResult.cancel(true);
 				}
 			}
 		} else { // validate metadata records on that already are in folder
@@ -157,50 +299,461 @@ public class Main { // NOPMD
 					"The location of a directory containing metadata must be provided");
 			for (File file : dirMetadata.listFiles()) {
 				// validation on the server may take some time, therefore using multithreading
-				metadataValidatorcallables.add(new MetadataValidatorCallable(file));
+				addToValidation(file, metadataValidatorcallables);
 			}
 		}
 
-		if (validateMetadataRecords) {
+		if (pipelineValidation) {
+			waitForValidation();
+		} else if (validateMetadataRecords) {
 			executorService.invokeAll(metadataValidatorcallables);
 		}
+		waitForStartedValidations();
+		if (validateMetadataRecords) {
+			validateFailedFilesAgain();
+		}
+	}
+
+	/**
+	 * The files whose validation has failed for a transient reason, see {@link RetryPolicy#isTransient(Throwable)},
+	 * also after the retries of the validator, are validated again after the other files, validator.requeue times
+	 * (default 1) with validator.requeue.delay seconds (default 60) in between, so that a server that was unavailable
+	 * for a while does not make the whole run necessary again. Other failures, such as invalid content, would fail
+	 * again and are not requeued.
+	 */
+	private void validateFailedFilesAgain() throws InterruptedException {
+		int rounds = config.getInt("validator.requeue", 1);
+		long delaySeconds = config.getLong("validator.requeue.delay", 60L);
+		for (int round = 1; round <= rounds && !failedValidations.isEmpty(); round++) {
+			List<MetadataValidatorCallable> metadataValidatorCallables = new ArrayList<>();
+			File file;
+			while ((file = failedValidations.poll()) != null) {
+				metadataValidatorCallables.add(new MetadataValidatorCallable(file, false));
+			}
+			LOGGER.warn("The validation of " + metadataValidatorCallables.size()
+					+ " files failed, validating them again in " + delaySeconds + " seconds");
+			TimeUnit.SECONDS.sleep(delaySeconds);
+			executorService.invokeAll(metadataValidatorCallables);
+			waitForStartedValidations();
+		}
+		if (!failedValidations.isEmpty()) {
+			LOGGER.error("The validation of " + failedValidations.size() + " files failed: " + failedValidations);
+		}
+	}
+
+	/**
+	 * Retrieves the records matching the GetRecords in the file, saves them and adds the saved GetRecordsResponse to
+	 * the validation. May be called by several harvest threads at the same time. When the run is resumed, a query
+	 * that was completed is not sent again, its GetRecordsResponse is only validated if that was not completed.
+	 */
+	private void retrieveMetadata(File file, Collection<MetadataValidatorCallable> metadataValidatorcallables)
+			throws CSWException, ParserConfigurationException, ConfigurationException, TransformerException,
+			InterruptedException {
+		if (isResumed && journal.isDone(RunJournal.Step.QUERY, file.getName())) {
+			String getRecordsResponseFileName = journal.getDetails(RunJournal.Step.QUERY, file.getName());
+			LOGGER.info("The records for " + file.getName() + " have already been retrieved");
+			if (StringUtils.isNotEmpty(getRecordsResponseFileName)) {
+				addToValidation(new File(Utils.getDirFromConfig(config, "dir.getrecordsresponse",
+						"The location of the directory that contains the matching metadata must be provided"),
+						getRecordsResponseFileName), metadataValidatorcallables);
+			}
+			return;
+		}
+		recordInJournal(RunJournal.Step.QUERY, RunJournal.Outcome.STARTED, file.getName(), null);
+		HarvestIndex harvestIndex = null;
+		String modifiedSince = null;
+		Set<String> missing = Collections.emptySet();
+		if (incrementalHarvest) {
+			harvestIndex = HarvestIndex.load(new File(dirHarvestIndex, file.getName() + ".properties"));
+			modifiedSince = harvestIndex.getModifiedSince();
+			harvestIndex.startHarvest();
+			if (modifiedSince == null) {
+				LOGGER.info("No harvest index found for " + file.getName() + ", retrieving all records");
+			} else {
+				missing = removeDeletedRecords(file, harvestIndex);
+				LOGGER.info("Retrieving the records for " + file.getName() + " modified since " + modifiedSince
+						+ " and " + missing.size() + " new records modified before");
+			}
+		}
+		File getRecordsResponseFile;
+		if (streamMetadataRecords) {
+			getRecordsResponseFile = retrieveAndStreamMetadata(file, harvestIndex, modifiedSince, missing);
+		} else {
+			getRecordsResponseFile = retrieveAndSaveMetadata(file, harvestIndex, modifiedSince, missing);
+		}
+		if (getRecordsResponseFile != null && splitMetadataRecords) {
+			splitMetadataRecords(getRecordsResponseFile);
+		}
+		// before the harvest index is saved, so that a run interrupted in between retrieves too many records the next
+		// time rather than too few
+		recordInJournal(RunJournal.Step.QUERY, RunJournal.Outcome.DONE, file.getName(),
+				getRecordsResponseFile == null ? null : getRecordsResponseFile.getName());
+		if (harvestIndex != null) {
+			harvestIndex.save();
+			LOGGER.info("Saved the harvest index for " + file.getName() + " with " + harvestIndex.size() + " records");
+		}
+		if (getRecordsResponseFile == null) {
+			LOGGER.info("No matching records found for " + file.getAbsolutePath());
+		} else {
+			// validation on the server may take some time, therefore using multithreading
+			addToValidation(getRecordsResponseFile, metadataValidatorcallables);
+		}
+	}
+
+	/**
+	 * With csw.splitrecords every record is also saved as a separate file in dir.metadatarecords. The
+	 * GetRecordsResponse file is still validated as a whole, so a record that cannot be saved is logged and does not
+	 * stop the harvest.
+	 */
+	private void splitMetadataRecords(File getRecordsResponseFile) throws ConfigurationException {
+		try {
+			metadataHandler.saveMetadataRecordsAsSeparateFiles(getRecordsResponseFile);
+		} catch (IOException | XMLStreamException e) {
+			LOGGER.error("Could not save the records in " + getRecordsResponseFile.getName() + " as separate files", e);
+		}
+	}
+
+	/**
+	 * In pipelined mode (validator.pipelined) the file is submitted for validation right away, so that retrieval and
+	 * validation overlap. At most validator.queuesize files wait for a free validation thread; when the queue is full,
+	 * retrieval waits until a validation has finished. Otherwise the file is validated after all metadata have been
+	 * retrieved.
+	 */
+	private void addToValidation(File file, Collection<MetadataValidatorCallable> metadataValidatorcallables)
+			throws InterruptedException {
+		if (isResumed && journal.isDone(RunJournal.Step.VALIDATION, file.getName())) {
+			LOGGER.info(file.getName() + " has already been validated");
+			return;
+		}
+		MetadataValidatorCallable metadataValidatorCallable = new MetadataValidatorCallable(file, pipelineValidation);
+		if (pipelineValidation) {
+			validationQueue.acquire();
+			try {
+				validationResults.add(executorService.submit(metadataValidatorCallable));
+			} catch (RejectedExecutionException e) {
+				validationQueue.release();
+				throw e;
+			}
+		} else {
+			metadataValidatorcallables.add(metadataValidatorCallable);
+		}
+	}
+
+	private void waitForValidation() throws InterruptedException {
+		for (Future<Boolean> validationResult : validationResults) {
+			try {
+				validationResult.get();
+			} catch (ExecutionException e) {
+				LOGGER.error("Error in thread", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Waits for the validations that were still in progress when the validation threads returned, see
+	 * {@link MetadataValidator#startValidation(File)}. Their errors have already been logged.
+	 */
+	private void waitForStartedValidations() throws InterruptedException {
+		try {
+			Futures.successfulAsList(startedValidations).get();
+		} catch (ExecutionException e) {
+			// not thrown by successfulAsList
+			throw new IllegalStateException(e);
+		}
 	}
 
-	private File getConfigurationFileFromCommandLineArgs(String... args) throws ParseException {
+	/**
+	 * In incremental mode (csw.incremental) the GetRecordsResponse only contains the records that are new or changed
+	 * since the previous run, so only those are validated. Before they are retrieved, the records that currently match
+	 * the query are found with a query for the brief records (unless csw.incremental.detectdeletions=false). Those
+	 * that no longer match are removed from the index and listed in a file with extension .deleted next to it, those
+	 * that are not in the index are new and are retrieved whatever their dateStamp.
+	 *
+	 * @return the fileIdentifiers of the new records
+	 */
+	private Set<String> removeDeletedRecords(File file, HarvestIndex harvestIndex)
+			throws CSWException, ParserConfigurationException {
+		if (!config.getBoolean("csw.incremental.detectdeletions", true)) {
+			return Collections.emptySet();
+		}
+		Set<String> matchingFileIdentifiers = cswClient.getMatchingFileIdentifiers(file);
+		List<String> deleted = harvestIndex.removeDeleted(matchingFileIdentifiers);
+		File deletedFile = harvestIndex.saveDeleted(deleted);
+		LOGGER.info(deleted.size() + " records for " + file.getName() + " have been deleted, see "
+				+ deletedFile.getAbsolutePath());
+		return harvestIndex.getMissing(matchingFileIdentifiers);
+	}
+
+	/**
+	 * @param harvestIndex
+	 *            index that the retrieved records are added to, or null
+	 * @param modifiedSince
+	 *            only records modified at or after this date are retrieved, all records if null
+	 * @param missing
+	 *            fileIdentifiers of records that are retrieved also if they were modified before modifiedSince
+	 * @return the saved GetRecordsResponse, or null if no records are matched
+	 */
+	private File retrieveAndSaveMetadata(File file, HarvestIndex harvestIndex, String modifiedSince,
+			Set<String> missing)
+			throws CSWException, ParserConfigurationException, ConfigurationException, TransformerException {
+		Document matchingRecords = cswClient.getMatchingRecords(file, modifiedSince, missing);
+		if (matchingRecords == null) {
+			return null;
+		}
+		if (harvestIndex != null) {
+			harvestIndex.recordsHarvested(matchingRecords);
+		}
+		metadataHandler.provideStatisticsForMetadata(matchingRecords, file.getName());
+		return metadataHandler.saveMetadataRecordsAsIs(matchingRecords, file.getName());
+	}
+
+	/**
+	 * Like {@link #retrieveAndSaveMetadata(File, HarvestIndex, String, Set)}, but every page is written to the
+	 * GetRecordsResponse as soon as it is retrieved, so the full result set is never held in memory. The pages are
+	 * read one record at a time with StAX, no DOM of a page is built. Every page written is recorded in the journal.
+	 */
+	private File retrieveAndStreamMetadata(final File file, final HarvestIndex harvestIndex, String modifiedSince,
+			Set<String> missing) throws CSWException, ParserConfigurationException, ConfigurationException {
+		final RecordStatistics statistics = metadataHandler.createStatistics();
+		final GetRecordsResponseWriter writer = metadataHandler.createGetRecordsResponseWriter(file.getName());
+		boolean isComplete = false;
+		try {
+			cswClient.processMatchingRecords(file, modifiedSince, missing, new GetRecordsResponseHandler() {
+
+				@Override
+				public void handleGetRecordsResponse(GetRecordsResponsePage page, int numberOfRecordsMatched)
+						throws CSWException {
+					GetRecordsResponseReader reader = page.openReader();
+					try {
+						writer.writeStart(reader.getHeader().getDocumentElement(), numberOfRecordsMatched);
+						while (reader.hasNext()) {
+							Element record = reader.next();
+							statistics.addRecord(record);
+							writer.writeRecord(record);
+							if (harvestIndex != null) {
+								harvestIndex.recordHarvested(record);
+							}
+						}
+					} finally {
+						reader.close();
+					}
+					recordInJournal(RunJournal.Step.PAGE, RunJournal.Outcome.DONE, file.getName(),
+							writer.getNumberOfRecordsWritten() + " of " + numberOfRecordsMatched + " records");
+				}
+			});
+			writer.close();
+			isComplete = true;
+		} catch (IOException e) {
+			throw new CSWException(e);
+		} finally {
+			if (!isComplete) {
+				writer.discard();
+			}
+		}
+		if (writer.getFile() != null) {
+			metadataHandler.reportStatistics(statistics, file.getName());
+		}
+		return writer.getFile();
+	}
+
+	/**
+	 * With validator.limit the number of validations in progress is limited by
+	 * {@link ConcurrencyLimitingMetadataValidator}, so there are enough threads for its maximum. Otherwise
+	 * validator.threads (default 10) validations are sent at the same time.
+	 */
+	private int getNumberOfValidationThreads() throws ConfigurationException {
+		int validationThreads = config.getInt("validator.threads", NUMBER_OF_VALIDATION_THREADS);
+		if (limitConcurrency) {
+			validationThreads = config.getInt("validator.limit.max", 32);
+		}
+		if (validationThreads < 1) {
+			throw new ConfigurationException("The number of validation threads must be at least 1");
+		}
+		return validationThreads;
+	}
+
+	/**
+	 * With threads.virtual (default false) every validation and every query runs on its own virtual thread, which
+	 * needs Java 21 or later. Almost all of the time of both is spent waiting for the endpoints, which then does not
+	 * take a platform thread.
+	 */
+	private boolean isVirtualThreadsEnabled() {
+		if (!config.getBoolean("threads.virtual", false)) {
+			return false;
+		}
+		if (!VirtualThreads.isAvailable()) {
+			LOGGER.warn("Virtual threads need Java 21 or later, running on Java " + System.getProperty("java.version")
+					+ ", using platform threads");
+			return false;
+		}
+		LOGGER.info("Using virtual threads");
+		return true;
+	}
+
+	/**
+	 * On platform threads the size of the pool limits the number of validations sent to the validator at the same
+	 * time. On virtual threads the pool is unbounded and the validations take a permit of the validator endpoint
+	 * instead, see {@link MetadataValidatorCallable#startValidation()}.
+	 */
+	private ExecutorService createValidationExecutorService() {
+		if (useVirtualThreads) {
+			validatorPermits = new Semaphore(numberOfValidationThreads, true);
+			return VirtualThreads.newVirtualThreadPerTaskExecutor("Request-");
+		}
+		return Executors.newFixedThreadPool(numberOfValidationThreads, threadFactory);
+	}
+
+	/**
+	 * The GetRecords files are independent queries, csw.harvestthreads of them are sent to the CSW at the same time.
+	 * This pool is separate from the validation pool. On virtual threads the queries take a permit of the CSW
+	 * endpoint instead, see {@link HarvestCallable#call()}.
+	 */
+	private ExecutorService createHarvestExecutorService() throws ConfigurationException {
+		int harvestThreads = config.getInt("csw.harvestthreads", 1);
+		if (harvestThreads < 1) {
+			throw new ConfigurationException("csw.harvestthreads must be at least 1");
+		}
+		if (useVirtualThreads) {
+			cswPermits = new Semaphore(harvestThreads, true);
+			return VirtualThreads.newVirtualThreadPerTaskExecutor("Harvest-");
+		}
+		return Executors.newFixedThreadPool(harvestThreads,
+				new ThreadFactoryBuilder().setNameFormat("Harvest-%d").setDaemon(false).build());
+	}
+
+	private CommandLine parseCommandLineArgs(String... args) throws ParseException {
 		Options options = createAndPrintOptions();
-		CommandLine commandLine = new DefaultParser().parse(options, args);
-		File configurationFile = (File) commandLine.getParsedOptionValue(OPTION_CONFIG_FILE);
-		return configurationFile;
+		return new DefaultParser().parse(options, args);
 	}
 
 	private Options createAndPrintOptions() {
 		Options options = new Options();
 		options.addOption(Option.builder(OPTION_CONFIG_FILE).argName("file").desc("configuration properties file")
 				.hasArg().numberOfArgs(1).required().type(File.class).build());
+		options.addOption(Option.builder().longOpt(OPTION_RESUME)
+				.desc("continue the run recorded in the journal in dir.journal, skipping the completed steps").build());
 		HelpFormatter helpFormatter = new HelpFormatter();
 		helpFormatter.printHelp("metadatavalidator", options);
 		return options;
 	}
 
+	private class HarvestCallable implements Callable<Void> {
+
+		private File getRecordsFile;
+		private Collection<MetadataValidatorCallable> metadataValidatorcallables;
+
+		public HarvestCallable(File getRecordsFile, Collection<MetadataValidatorCallable> metadataValidatorcallables) {
+			this.getRecordsFile = getRecordsFile;
+			this.metadataValidatorcallables = metadataValidatorcallables;
+		}
+
+		@Override
+		public Void call() throws CSWException, ParserConfigurationException, ConfigurationException,
+				TransformerException, InterruptedException {
+			if (cswPermits != null) {
+				cswPermits.acquire();
+			}
+			boolean isRetrieved = false;
+			try {
+				retrieveMetadata(getRecordsFile, metadataValidatorcallables);
+				isRetrieved = true;
+			} finally {
+				if (cswPermits != null) {
+					cswPermits.release();
+				}
+				if (!isRetrieved) {
+					recordInJournal(RunJournal.Step.QUERY, RunJournal.Outcome.FAILED, getRecordsFile.getName(), null);
+				}
+			}
+			return null;
+		}
+
+	}
+
 	private class MetadataValidatorCallable implements Callable<Boolean> {
 
 		private File getRecordsResponseFile;
+		private boolean isQueued;
 
-		public MetadataValidatorCallable(File getRecordsResponseFile) {
+		/**
+		 * @param isQueued
+		 *            whether the file has a place in the validation queue, see {@link Main#addToValidation}
+		 */
+		public MetadataValidatorCallable(File getRecordsResponseFile, boolean isQueued) {
 			this.getRecordsResponseFile = getRecordsResponseFile;
+			this.isQueued = isQueued;
 		}
 
 		@Override
 		public Boolean call() {
+			recordInJournal(RunJournal.Step.VALIDATION, RunJournal.Outcome.STARTED, getRecordsResponseFile.getName(),
+					null);
 			try {
-				validator.sendRequestToURLEndpointAndSaveResults(getRecordsResponseFile);
+				ListenableFuture<Void> validation = startValidation();
+				if (!validation.isDone()) {
+					startedValidations.add(validation);
+				}
+				Futures.addCallback(validation, new FutureCallback<Void>() {
+
+					@Override
+					public void onSuccess(Void result) {
+						// the results have been saved
+						recordInJournal(RunJournal.Step.VALIDATION, RunJournal.Outcome.DONE,
+								getRecordsResponseFile.getName(), null);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						LOGGER.error(t.getMessage(), t);
+						validationFailed(t);
+					}
+				}, MoreExecutors.directExecutor());
 				return Boolean.TRUE;
 			} catch (MetadataValidatorException | ConfigurationException e) {
 				LOGGER.error(e.getMessage(), e);
+				validationFailed(e);
+				return Boolean.FALSE;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOGGER.error("Interrupted while waiting to validate " + getRecordsResponseFile.getName(), e);
+				validationFailed(e);
 				return Boolean.FALSE;
 			} catch (Exception e) {
 				LOGGER.error("Error in thread", e);
+				validationFailed(e);
 				return Boolean.FALSE;
+			} finally {
+				if (isQueued) {
+					validationQueue.release();
+				}
+			}
+		}
+
+		/**
+		 * On virtual threads the validation holds a permit of the validator endpoint until the validator returns, as
+		 * it would hold a thread of the fixed pool otherwise.
+		 */
+		private ListenableFuture<Void> startValidation()
+				throws MetadataValidatorException, ConfigurationException, InterruptedException {
+			if (validatorPermits == null) {
+				return validator.startValidation(getRecordsResponseFile);
+			}
+			validatorPermits.acquire();
+			try {
+				return validator.startValidation(getRecordsResponseFile);
+			} finally {
+				validatorPermits.release();
+			}
+		}
+
+		private void validationFailed(Throwable cause) {
+			recordInJournal(RunJournal.Step.VALIDATION, RunJournal.Outcome.FAILED, getRecordsResponseFile.getName(),
+					null);
+			if (RetryPolicy.isTransient(cause)) {
+				failedValidations.add(getRecordsResponseFile);
+			} else {
+				LOGGER.error("The validation of " + getRecordsResponseFile.getName()
+						+ " failed for a reason that is not transient, it is not validated again");
 			}
 		}
 
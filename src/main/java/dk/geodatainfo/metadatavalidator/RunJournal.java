@@ -0,0 +1,179 @@
+package dk.geodatainfo.metadatavalidator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only record of the work done in a run, so that a run that was interrupted can be resumed with --resume
+ * instead of starting over. Every line has the time, the kind of step, its outcome, the name of the GetRecords or
+ * GetRecordsResponse file and details, separated by tabs, and is flushed as soon as it is written. When a run is
+ * resumed, the last outcome of every step in the journal counts, a line that was cut off by the interruption is
+ * ignored.
+ * <p>
+ * Thread-safe. The writes are guarded by a lock rather than synchronized, as they may be done on virtual threads,
+ * which would be pinned to their carrier thread during the file I/O.
+ */
+class RunJournal implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RunJournal.class);
+
+	static final String FILE_NAME = "run.journal";
+
+	private static final String SEPARATOR = "\t";
+	private static final int NUMBER_OF_FIELDS = 5;
+
+	enum Step {
+		/**
+		 * Retrieval of the records matching a GetRecords file, the details are the name of the saved
+		 * GetRecordsResponse, empty if no records matched.
+		 */
+		QUERY,
+		/**
+		 * A page of a query written to the GetRecordsResponse, only with csw.streamrecords. Informative, an
+		 * interrupted query is retrieved again from the start.
+		 */
+		PAGE,
+		/**
+		 * Validation of a GetRecordsResponse file.
+		 */
+		VALIDATION
+	}
+
+	enum Outcome {
+		STARTED, DONE, FAILED
+	}
+
+	private final File file;
+	private final Map<String, String[]> lastEntries = new ConcurrentHashMap<>();
+	private final Lock lock = new ReentrantLock();
+	private Writer writer;
+
+	private RunJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param isResumed
+	 *            if true, the journal of the previous run is read and continued, otherwise it is replaced
+	 */
+	static RunJournal open(File directory, boolean isResumed) throws IOException {
+		RunJournal journal = new RunJournal(new File(directory, FILE_NAME));
+		boolean isCutOff = false;
+		if (isResumed) {
+			isCutOff = journal.load();
+		}
+		journal.writer = Files.newBufferedWriter(journal.file.toPath(), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				isResumed ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+		if (isCutOff) {
+			// the line that was cut off must not be continued by the first new one
+			journal.writer.write('\n');
+		}
+		return journal;
+	}
+
+	/**
+	 * @return true if the last outcome of the step for the file is {@link Outcome#DONE}
+	 */
+	boolean isDone(Step step, String name) {
+		String[] entry = lastEntries.get(getKey(step, name));
+		return entry != null && Outcome.DONE.name().equals(entry[2]);
+	}
+
+	/**
+	 * @return the details of the last outcome of the step for the file, or null if it is not in the journal
+	 */
+	String getDetails(Step step, String name) {
+		String[] entry = lastEntries.get(getKey(step, name));
+		return entry == null ? null : entry[4];
+	}
+
+	/**
+	 * Appends the outcome to the journal. A journal that cannot be written is logged and does not stop the run.
+	 */
+	void record(Step step, Outcome outcome, String name, String details) {
+		String[] entry = { DateFormatUtils.ISO_8601_EXTENDED_DATETIME_FORMAT.format(System.currentTimeMillis()),
+				step.name(), outcome.name(), name, StringUtils.defaultString(details) };
+		lock.lock();
+		try {
+			lastEntries.put(getKey(step, name), entry);
+			writer.write(StringUtils.join(entry, SEPARATOR));
+			writer.write('\n');
+			writer.flush();
+		} catch (IOException e) {
+			LOGGER.error("Could not write to the journal " + file.getAbsolutePath(), e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			IOUtils.closeQuietly(writer);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the last line has been cut off
+	 */
+	private boolean load() throws IOException {
+		if (!file.exists()) {
+			LOGGER.warn("No journal found at " + file.getAbsolutePath() + ", nothing to resume");
+			return false;
+		}
+		boolean isCutOff = isCutOff();
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		if (isCutOff) {
+			lines.remove(lines.size() - 1);
+		}
+		int numberOfLines = 0;
+		for (String line : lines) {
+			String[] entry = StringUtils.splitPreserveAllTokens(line, SEPARATOR);
+			if (entry.length == NUMBER_OF_FIELDS) {
+				lastEntries.put(entry[1] + SEPARATOR + entry[3], entry);
+				numberOfLines++;
+			}
+		}
+		LOGGER.info("Resuming the run in " + file.getAbsolutePath() + " with " + numberOfLines + " steps");
+		return isCutOff;
+	}
+
+	private boolean isCutOff() throws IOException {
+		if (file.length() == 0) {
+			return false;
+		}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			randomAccessFile.seek(file.length() - 1);
+			return randomAccessFile.read() != '\n';
+		} finally {
+			IOUtils.closeQuietly(randomAccessFile);
+		}
+	}
+
+	private static String getKey(Step step, String name) {
+		return step.name() + SEPARATOR + name;
+	}
+
+}
@@ -1,13 +1,26 @@
 package dk.geodatainfo.metadatavalidator.csw;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.xml.parsers.DocumentBuilder;
+import javax.xml.XMLConstants;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.soap.MessageFactory;
 import javax.xml.soap.SOAPConstants;
@@ -17,6 +30,7 @@ import javax.xml.soap.SOAPPart;
 
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -25,6 +39,17 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import dk.geodatainfo.metadatavalidator.csw.HttpSOAPClient.SOAPReply;
+import dk.geodatainfo.metadatavalidator.utils.RetryPolicy;
 import dk.geodatainfo.metadatavalidator.xml.XMLUtils;
 
 /**
@@ -32,34 +57,127 @@ import dk.geodatainfo.metadatavalidator.xml.XMLUtils;
  */
 public class CSWClient {
 
-	private static final String NS_CSW_2_0_2 = "http://www.opengis.net/cat/csw/2.0.2";
-	private static final String NS_GMD = "http://www.isotc211.org/2005/gmd";
+	static final String NS_CSW_2_0_2 = "http://www.opengis.net/cat/csw/2.0.2";
+	static final String NS_GMD = "http://www.isotc211.org/2005/gmd";
+	private static final String NS_OGC = "http://www.opengis.net/ogc";
+	private static final String NS_APISO = "http://www.opengis.net/cat/csw/apiso/1.0";
 	private static final String GET_RECORDS = "GetRecords";
+	private static final String GET_RECORDS_ACTION = "http://inspire.jrc.ec.europa.eu/Discovery/GetRecords";
 	public static final String GET_RECORDS_RESPONSE = "GetRecordsResponse";
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(CSWClient.class);
 
 	private SOAPClient soapClient;
+	private MessageFactory messageFactory;
+	private HttpSOAPClient httpSOAPClient;
 	private PropertiesConfiguration config;
 	private URL endpoint;
+	private int concurrentPageRequests;
+	private PageSize pageSize;
+	private ListeningExecutorService pageExecutorService;
+	private RetryPolicy retryPolicy;
+	private HedgingDelay hedgingDelay;
 
 	public CSWClient(PropertiesConfiguration config) throws CSWException, ConfigurationException {
 		try {
 			this.config = config;
-			soapClient = new SOAPClient();
+			createTransport();
 			endpoint = getCSWEndpointFromConfig();
+			pageSize = new PageSize(config);
+			pageExecutorService = createPageExecutorService();
+			retryPolicy = new RetryPolicy(endpoint.toString(), config, "csw.retry");
+			if (config.getBoolean("csw.hedging", false)) {
+				hedgingDelay = new HedgingDelay(config.getLong("csw.hedging.mindelay", 1000L));
+			}
 		} catch (UnsupportedOperationException | SOAPException e) {
 			throw new CSWException(e);
 		}
 	}
 
+	public void shutDown() {
+		pageExecutorService.shutdownNow();
+		IOUtils.closeQuietly(httpSOAPClient);
+	}
+
+	/**
+	 * csw.transport=http uses a pooled HTTP client with keep-alive and compression, csw.transport=saaj (the default)
+	 * uses SAAJ with a new connection for every request. SAAJ always builds the reply as a tree, so with
+	 * csw.streamrecords=true the replies that are kept as bytes are received with the HTTP client for either transport.
+	 */
+	private void createTransport() throws ConfigurationException, SOAPException {
+		String transport = config.getString("csw.transport", "saaj").toLowerCase();
+		switch (transport) {
+		case "saaj":
+			soapClient = new SOAPClient();
+			messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL);
+			if (config.getBoolean("csw.streamrecords", false)) {
+				httpSOAPClient = new HttpSOAPClient(config);
+			}
+			break;
+		case "http":
+			httpSOAPClient = new HttpSOAPClient(config);
+			break;
+		default:
+			throw new ConfigurationException("Unknown CSW transport " + transport + " given in the configuration");
+		}
+	}
+
+	/**
+	 * Retrieves the full result set page by page and hands every page to the given handler as soon as it has been
+	 * retrieved, without merging the pages. The pages are kept as the bytes received from the server, see
+	 * {@link GetRecordsResponsePage}.
+	 *
+	 * @return number of records matched, 0 if no records are matched (the handler is not called in that case)
+	 */
+	public int processMatchingRecords(File xmlFileGetRecordsOperation, GetRecordsResponseHandler handler)
+			throws CSWException, ParserConfigurationException {
+		return processMatchingRecords(xmlFileGetRecordsOperation, null, Collections.<String> emptySet(), handler);
+	}
+
+	/**
+	 * Like {@link #processMatchingRecords(File, GetRecordsResponseHandler)}, but only records modified at or after
+	 * the given date and the records with the given fileIdentifiers are matched.
+	 *
+	 * @param modifiedSince
+	 *            date or dateTime, or null to match all records
+	 * @param fileIdentifiers
+	 *            records that are matched also if they were modified before modifiedSince
+	 */
+	public int processMatchingRecords(File xmlFileGetRecordsOperation, String modifiedSince,
+			Collection<String> fileIdentifiers, GetRecordsResponseHandler handler)
+			throws CSWException, ParserConfigurationException {
+		Document getRecordsFromInput = parseGetRecords(xmlFileGetRecordsOperation, "full", modifiedSince,
+				fileIdentifiers);
+		int numberOfRecordsMatched = findNumberOfRecordsMatched(getRecordsFromInput);
+		if (numberOfRecordsMatched > 0) {
+			retrieveAllMatchingRecords(getRecordsFromInput, numberOfRecordsMatched, handler, true);
+		}
+		return numberOfRecordsMatched;
+	}
+
 	/**
 	 * @return document with a full result set, or null if no records are
 	 *         matched // TODO reference
 	 */
 	public Document getMatchingRecords(File xmlFileGetRecordsOperation)
 			throws CSWException, ParserConfigurationException, ConfigurationException {
-		Document getRecordsFromInput = parseDocument(xmlFileGetRecordsOperation);
+		return getMatchingRecords(xmlFileGetRecordsOperation, null, Collections.<String> emptySet());
+	}
+
+	/**
+	 * Like {@link #getMatchingRecords(File)}, but only records modified at or after the given date and the records
+	 * with the given fileIdentifiers are matched.
+	 *
+	 * @param modifiedSince
+	 *            date or dateTime, or null to match all records
+	 * @param fileIdentifiers
+	 *            records that are matched also if they were modified before modifiedSince
+	 */
+	public Document getMatchingRecords(File xmlFileGetRecordsOperation, String modifiedSince,
+			Collection<String> fileIdentifiers)
+			throws CSWException, ParserConfigurationException, ConfigurationException {
+		Document getRecordsFromInput = parseGetRecords(xmlFileGetRecordsOperation, "full", modifiedSince,
+				fileIdentifiers);
 		int numberOfRecordsMatched = findNumberOfRecordsMatched(getRecordsFromInput);
 		Document allMatchingRecords;
 		if (numberOfRecordsMatched == 0) {
@@ -70,8 +188,42 @@ public class CSWClient {
 		return allMatchingRecords;
 	}
 
+	/**
+	 * Retrieves the brief records of the full result set, which is much cheaper than the full records, to find out
+	 * which records currently match the query.
+	 *
+	 * @return the fileIdentifiers of the matching records
+	 */
+	public Set<String> getMatchingFileIdentifiers(File xmlFileGetRecordsOperation)
+			throws CSWException, ParserConfigurationException {
+		Document getRecordsFromInput = parseGetRecords(xmlFileGetRecordsOperation, "brief", null,
+				Collections.<String> emptySet());
+		int numberOfRecordsMatched = findNumberOfRecordsMatched(getRecordsFromInput);
+		final Set<String> fileIdentifiers = new HashSet<>(numberOfRecordsMatched);
+		if (numberOfRecordsMatched > 0) {
+			retrieveAllMatchingRecords(getRecordsFromInput, numberOfRecordsMatched, new GetRecordsResponseHandler() {
+
+				@Override
+				public void handleGetRecordsResponse(GetRecordsResponsePage page, int numberOfRecordsMatched)
+						throws CSWException {
+					GetRecordsResponseReader reader = page.openReader();
+					try {
+						while (reader.hasNext()) {
+							String fileIdentifier = HarvestIndex.getFileIdentifier(reader.next());
+							if (fileIdentifier != null) {
+								fileIdentifiers.add(fileIdentifier);
+							}
+						}
+					} finally {
+						reader.close();
+					}
+				}
+			}, true);
+		}
+		return fileIdentifiers;
+	}
+
 	private SOAPMessage createEmptyMessage() throws SOAPException, IOException {
-		MessageFactory messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL);
 		SOAPMessage soapMessage = messageFactory.createMessage();
 		return soapMessage;
 	}
@@ -87,9 +239,16 @@ public class CSWClient {
 		}
 	}
 
-	private Document mergeDocumentsToOne(int numberOfRecordsMatched, List<Document> getRecordsReponses)
+	/**
+	 * Merges the pages of a query into one GetRecordsResponse, with the records of all pages in one SearchResults.
+	 * <p>
+	 * Test-only API: package-private so that the benchmarks in src/jmh can measure the merge without a CSW. Other code
+	 * gets the merged document through {@link #getMatchingRecords(File, String, Collection)}.
+	 */
+	@VisibleForTesting
+	static Document mergeDocumentsToOne(int numberOfRecordsMatched, List<Document> getRecordsReponses)
 			throws ParserConfigurationException {
-		Document mergedRecordsResponse = XMLUtils.createNamespaceAwareNonValidatingDocumentBuilder().newDocument();
+		Document mergedRecordsResponse = XMLUtils.newDocument();
 		Element elementGetRecordsResponse = getRecordsReponses.get(0).getDocumentElement();
 		Element importedGetRecordsResponse = (Element) mergedRecordsResponse.importNode(elementGetRecordsResponse,
 				true);
@@ -114,20 +273,157 @@ public class CSWClient {
 
 	private List<Document> getAllMatchingRecordsAsListOfRecordsResponses(Document getRecordsFromInput,
 			int numberOfRecordsMatched) throws CSWException, ParserConfigurationException {
-		int maxRecordsPerRequest = 100; // TODO make configurable
-		int numberOfIterations = (int) Math.ceil((double) numberOfRecordsMatched / (double) maxRecordsPerRequest);
-		List<Document> getRecordsReponses = new ArrayList<Document>(numberOfIterations);
-		for (int i = 0; i < numberOfIterations; i++) {
-			int startPosition = 1 + i * maxRecordsPerRequest;
-			LOGGER.info("Retrieving records with startPosition " + startPosition);
-			Document getRecordsFullResultset = createGetRecordsToRetrieveFullResultSet(getRecordsFromInput,
-					startPosition, maxRecordsPerRequest);
-			Document getRecordsResponse = getGetRecordsResponse(getRecordsFullResultset);
-			getRecordsReponses.add(getRecordsResponse);
-		}
+		final List<Document> getRecordsReponses = new ArrayList<Document>();
+		retrieveAllMatchingRecords(getRecordsFromInput, numberOfRecordsMatched, new GetRecordsResponseHandler() {
+
+			@Override
+			public void handleGetRecordsResponse(GetRecordsResponsePage page, int numberOfRecordsMatched)
+					throws CSWException {
+				getRecordsReponses.add(page.getDocument());
+			}
+		}, false);
 		return getRecordsReponses;
 	}
 
+	/**
+	 * The pages are independent of each other once the number of matched records is known, so they are requested
+	 * concurrently (at most csw.concurrentpagerequests at a time) and handed to the handler in the order of their
+	 * startPosition. A page is only requested when there is room in the window, so at most that many pages are held
+	 * in memory at any time. The size of every page is decided by {@link PageSize} when it is requested.
+	 */
+	private void retrieveAllMatchingRecords(Document getRecordsFromInput, int numberOfRecordsMatched,
+			GetRecordsResponseHandler handler, boolean keepRepliesAsBytes)
+			throws CSWException, ParserConfigurationException {
+		Deque<PageRequest> pageRequests = new ArrayDeque<>(concurrentPageRequests);
+		try {
+			int nextStartPosition = 1;
+			while (nextStartPosition <= numberOfRecordsMatched || !pageRequests.isEmpty()) {
+				while (nextStartPosition <= numberOfRecordsMatched && pageRequests.size() < concurrentPageRequests) {
+					int maxRecords = Math.min(pageSize.getSize(), numberOfRecordsMatched - nextStartPosition + 1);
+					pageRequests.add(
+							submitPageRequest(getRecordsFromInput, keepRepliesAsBytes, nextStartPosition, maxRecords));
+					nextStartPosition += maxRecords;
+				}
+				PageRequest pageRequest = pageRequests.remove();
+				GetRecordsResponsePage page;
+				try {
+					page = getPage(pageRequest, getRecordsFromInput, keepRepliesAsBytes);
+				} catch (ExecutionException e) {
+					if (!pageSize.isAdaptive() || pageRequest.maxRecords <= pageSize.getMinimum()) {
+						throw e;
+					}
+					// back off: retry the records of the failed page as two smaller pages
+					LOGGER.warn("Retrieving records with startPosition " + pageRequest.startPosition
+							+ " failed, retrying with smaller pages", e.getCause());
+					pageSize.pageFailed(pageRequest.maxRecords);
+					int firstHalf = pageRequest.maxRecords / 2;
+					pageRequests.addFirst(submitPageRequest(getRecordsFromInput, keepRepliesAsBytes,
+							pageRequest.startPosition + firstHalf, pageRequest.maxRecords - firstHalf));
+					pageRequests.addFirst(submitPageRequest(getRecordsFromInput, keepRepliesAsBytes,
+							pageRequest.startPosition, firstHalf));
+					continue;
+				}
+				int numberOfRecordsReturned = page.getNumberOfRecordsReturned();
+				pageSize.pageRetrieved(numberOfRecordsReturned, page.getDurationMillis(), page.getContentLength());
+				if (hedgingDelay != null) {
+					hedgingDelay.pageRetrieved(numberOfRecordsReturned, page.getDurationMillis());
+				}
+				handler.handleGetRecordsResponse(page, numberOfRecordsMatched);
+				if (numberOfRecordsReturned == 0) {
+					LOGGER.warn("No records returned for startPosition " + pageRequest.startPosition
+							+ ", the result set may have changed during the harvest");
+				} else if (numberOfRecordsReturned < pageRequest.maxRecords) {
+					// the server has a lower maximum than requested, the remainder is requested before anything else
+					pageSize.limit(numberOfRecordsReturned);
+					pageRequests.addFirst(submitPageRequest(getRecordsFromInput, keepRepliesAsBytes,
+							pageRequest.startPosition + numberOfRecordsReturned,
+							pageRequest.maxRecords - numberOfRecordsReturned));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CSWException("Interrupted while retrieving records", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CSWException) {
+				throw (CSWException) e.getCause();
+			}
+			throw new CSWException("Operation " + GET_RECORDS + " failed, see the stacktrace for more information",
+					e.getCause());
+		} finally {
+			for (PageRequest pageRequest : pageRequests) {
+				pageRequest.future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * With csw.hedging=true a page that is much slower than the others, see {@link HedgingDelay}, is requested a
+	 * second time, and the first of the two replies is used. Hedged requests take from the retry budget, see
+	 * {@link RetryPolicy}.
+	 */
+	private GetRecordsResponsePage getPage(PageRequest pageRequest, Document getRecordsFromInput,
+			boolean keepReplyAsBytes) throws InterruptedException, ExecutionException, ParserConfigurationException {
+		long delayMillis = hedgingDelay == null ? -1 : hedgingDelay.getDelayMillis(pageRequest.maxRecords);
+		if (delayMillis < 0) {
+			return pageRequest.future.get();
+		}
+		try {
+			// the request may have been waiting in the window already
+			return pageRequest.future.get(
+					Math.max(0, pageRequest.submittedMillis + delayMillis - System.currentTimeMillis()),
+					TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			if (!retryPolicy.withdraw()) {
+				return pageRequest.future.get();
+			}
+		}
+		LOGGER.info("Retrieving records with startPosition " + pageRequest.startPosition + " takes longer than "
+				+ delayMillis + " ms, sending a hedged request");
+		PageRequest hedgedPageRequest = submitPageRequest(getRecordsFromInput, keepReplyAsBytes,
+				pageRequest.startPosition, pageRequest.maxRecords);
+		try {
+			return getFirstSuccessful(pageRequest.future, hedgedPageRequest.future).get();
+		} finally {
+			pageRequest.future.cancel(true);
+			hedgedPageRequest.future.cancel(true);
+		}
+	}
+
+	/**
+	 * @return future that fails only if both fail
+	 */
+	private <T> ListenableFuture<T> getFirstSuccessful(ListenableFuture<T> future1, ListenableFuture<T> future2) {
+		final SettableFuture<T> firstSuccessful = SettableFuture.create();
+		final AtomicInteger numberOfFailures = new AtomicInteger();
+		FutureCallback<T> callback = new FutureCallback<T>() {
+
+			@Override
+			public void onSuccess(T result) {
+				firstSuccessful.set(result);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (numberOfFailures.incrementAndGet() == 2) {
+					firstSuccessful.setException(t);
+				}
+			}
+		};
+		Futures.addCallback(future1, callback, MoreExecutors.directExecutor());
+		Futures.addCallback(future2, callback, MoreExecutors.directExecutor());
+		return firstSuccessful;
+	}
+
+	private PageRequest submitPageRequest(Document getRecordsFromInput, boolean keepReplyAsBytes, int startPosition,
+			int maxRecords) throws ParserConfigurationException {
+		// the DOM of the input is not thread-safe, therefore the requests are created by this thread
+		Document getRecordsFullResultset = createGetRecordsToRetrieveFullResultSet(getRecordsFromInput, startPosition,
+				maxRecords);
+		ListenableFuture<GetRecordsResponsePage> future = pageExecutorService
+				.submit(new GetRecordsCallable(getRecordsFullResultset, startPosition, keepReplyAsBytes));
+		return new PageRequest(startPosition, maxRecords, future);
+	}
+
 	private int findNumberOfRecordsMatched(Document getRecordsFromInput)
 			throws CSWException, ParserConfigurationException {
 		Document getRecordsToFindNumberOfRecordsMatched = createGetRecordsToFindNumberOfRecordsMatched(
@@ -138,27 +434,97 @@ public class CSWClient {
 	}
 
 	private Document getGetRecordsResponse(Document document) throws CSWException, ParserConfigurationException {
+		return sendGetRecords(document, false).getDocument();
+	}
+
+	/**
+	 * Failures of the server or the connection are retried, see {@link RetryPolicy} and the settings csw.retry.*.
+	 *
+	 * @param keepReplyAsBytes
+	 *            if true the reply is kept as the bytes received instead of being parsed
+	 */
+	private GetRecordsResponsePage sendGetRecords(final Document document, final boolean keepReplyAsBytes)
+			throws CSWException, ParserConfigurationException {
+		try {
+			return retryPolicy.call(GET_RECORDS, true, CSWException.class,
+					new RetryPolicy.Attempt<GetRecordsResponsePage, CSWException>() {
+
+						@Override
+						public GetRecordsResponsePage run() throws CSWException {
+							try {
+								return sendGetRecordsOnce(document, keepReplyAsBytes);
+							} catch (ParserConfigurationException e) {
+								throw new CSWException(e);
+							}
+						}
+					});
+		} catch (CSWException e) {
+			if (e.getCause() instanceof ParserConfigurationException) {
+				throw (ParserConfigurationException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private GetRecordsResponsePage sendGetRecordsOnce(Document document, boolean keepReplyAsBytes)
+			throws CSWException, ParserConfigurationException {
 		try {
 			if (!GET_RECORDS.equals(document.getDocumentElement().getLocalName())) {
 				throw new CSWException("The given document does not contain an operation with name " + GET_RECORDS);
 			}
-			SOAPMessage request = buildGetRecordsMessage(document);
-			SOAPMessage reply = soapClient.sendSOAPMessageToURLEndpoint(request, endpoint);
-			Document contentAsDocument = reply.getSOAPBody().extractContentAsDocument();
-			if (!GET_RECORDS_RESPONSE.equals(contentAsDocument.getDocumentElement().getLocalName())) {
+			long start = System.currentTimeMillis();
+			GetRecordsResponsePage page;
+			if (httpSOAPClient == null || soapClient != null && !keepReplyAsBytes) {
+				SOAPMessage request = buildGetRecordsMessage(document);
+				SOAPMessage reply = soapClient.sendSOAPMessageToURLEndpoint(request, endpoint);
+				if (keepReplyAsBytes) {
+					ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+					reply.writeTo(outputStream);
+					page = new GetRecordsResponsePage(outputStream.toByteArray(), System.currentTimeMillis() - start);
+				} else {
+					page = new GetRecordsResponsePage(reply.getSOAPBody().extractContentAsDocument(),
+							getContentLength(reply), System.currentTimeMillis() - start);
+				}
+			} else {
+				SOAPReply reply = httpSOAPClient.send(document, endpoint, GET_RECORDS_ACTION, keepReplyAsBytes);
+				if (keepReplyAsBytes) {
+					page = new GetRecordsResponsePage(reply.getContent(), System.currentTimeMillis() - start);
+				} else {
+					page = new GetRecordsResponsePage(reply.getBodyContent(), reply.getContentLength(),
+							System.currentTimeMillis() - start);
+				}
+			}
+			if (!keepReplyAsBytes
+					&& !GET_RECORDS_RESPONSE.equals(page.getDocument().getDocumentElement().getLocalName())) {
+				// kept bytes are checked by GetRecordsResponseReader
 				throw new CSWException(
 						"The reply from the server does not contain an element with name " + GET_RECORDS_RESPONSE);
 			}
 			LOGGER.info("Succesfully sent request to " + endpoint.toString());
-			return contentAsDocument;
+			return page;
 		} catch (SOAPException | SAXException | IOException | URISyntaxException e) {
 			throw new CSWException("Operation " + GET_RECORDS + " failed, see the stacktrace for more information", e);
 		}
 	}
 
+	/**
+	 * @return the Content-Length of the HTTP response, or -1 if the server did not send it
+	 */
+	private long getContentLength(SOAPMessage reply) {
+		String[] contentLengths = reply.getMimeHeaders().getHeader("Content-Length");
+		if (contentLengths != null && contentLengths.length > 0) {
+			try {
+				return Long.parseLong(contentLengths[0].trim());
+			} catch (NumberFormatException e) {
+				LOGGER.debug("Ignoring invalid Content-Length " + contentLengths[0]);
+			}
+		}
+		return -1;
+	}
+
 	private Document createGetRecordsToFindNumberOfRecordsMatched(Document getRecords)
 			throws ParserConfigurationException {
-		Document newDocument = XMLUtils.createNamespaceAwareNonValidatingDocumentBuilder().newDocument();
+		Document newDocument = XMLUtils.newDocument();
 		Element elementGetRecords = getRecords.getDocumentElement();
 		Element newElementGetRecords = (Element) newDocument.importNode(elementGetRecords, true);
 		newElementGetRecords.setAttribute("resultType", "hits");
@@ -168,15 +534,12 @@ public class CSWClient {
 
 	private Document createGetRecordsToRetrieveFullResultSet(Document getRecords, int startPosition, int maxRecords)
 			throws ParserConfigurationException {
-		Document newDocument = XMLUtils.createNamespaceAwareNonValidatingDocumentBuilder().newDocument();
+		Document newDocument = XMLUtils.newDocument();
 		Element elementGetRecords = getRecords.getDocumentElement();
 		Element newElementGetRecords = (Element) newDocument.importNode(elementGetRecords, true);
 		newElementGetRecords.setAttribute("resultType", "results");
 		newElementGetRecords.setAttribute("startPosition", Integer.toString(startPosition));
 		newElementGetRecords.setAttribute("maxRecords", Integer.toString(maxRecords));
-		Element elementSetNameElement = (Element) newElementGetRecords
-				.getElementsByTagNameNS(NS_CSW_2_0_2, "ElementSetName").item(0);
-		elementSetNameElement.setTextContent("full");
 		newDocument.appendChild(newElementGetRecords);
 		return newDocument;
 	}
@@ -197,11 +560,114 @@ public class CSWClient {
 		return soapMessage;
 	}
 
+	/**
+	 * @param modifiedSince
+	 *            if not null, a constraint matching only records modified at or after this date or with one of the
+	 *            fileIdentifiers is added
+	 */
+	private Document parseGetRecords(File xmlFileGetRecordsOperation, String elementSetName, String modifiedSince,
+			Collection<String> fileIdentifiers) throws CSWException, ParserConfigurationException {
+		Document getRecords = parseDocument(xmlFileGetRecordsOperation);
+		Element elementSetNameElement = (Element) getRecords.getDocumentElement()
+				.getElementsByTagNameNS(NS_CSW_2_0_2, "ElementSetName").item(0);
+		if (elementSetNameElement == null) {
+			throw new CSWException(xmlFileGetRecordsOperation.getAbsolutePath()
+					+ " does not contain an element with name ElementSetName");
+		}
+		elementSetNameElement.setTextContent(elementSetName);
+		if (modifiedSince != null) {
+			addModifiedSinceConstraint(getRecords, modifiedSince, fileIdentifiers);
+		}
+		return getRecords;
+	}
+
+	/**
+	 * Adds a filter on the queryable csw.incremental.modifiedqueryable (default apiso:Modified, the dateStamp of the
+	 * records) to the constraint of the query, or on apiso:Identifier for the given fileIdentifiers, which are new
+	 * records with an earlier dateStamp. An existing filter is combined with it with And, CQL text with AND.
+	 */
+	private void addModifiedSinceConstraint(Document getRecords, String modifiedSince,
+			Collection<String> fileIdentifiers) throws CSWException {
+		String queryable = config.getString("csw.incremental.modifiedqueryable", "apiso:Modified");
+		Element elementQuery = (Element) getRecords.getDocumentElement().getElementsByTagNameNS(NS_CSW_2_0_2, "Query")
+				.item(0);
+		if (elementQuery == null) {
+			throw new CSWException("The " + GET_RECORDS + " does not contain an element with name Query");
+		}
+		Element elementConstraint = (Element) elementQuery.getElementsByTagNameNS(NS_CSW_2_0_2, "Constraint").item(0);
+		if (elementConstraint == null) {
+			elementConstraint = getRecords.createElementNS(NS_CSW_2_0_2, "csw:Constraint");
+			elementConstraint.setAttribute("version", "1.1.0");
+			// Constraint comes after ElementSetName or ElementName and before SortBy
+			Element elementSortBy = (Element) elementQuery.getElementsByTagNameNS(NS_OGC, "SortBy").item(0);
+			elementQuery.insertBefore(elementConstraint, elementSortBy);
+		}
+		Element elementCqlText = (Element) elementConstraint.getElementsByTagNameNS(NS_CSW_2_0_2, "CqlText").item(0);
+		if (elementCqlText != null) {
+			StringBuilder cqlText = new StringBuilder("(").append(elementCqlText.getTextContent().trim())
+					.append(") AND (").append(queryable).append(" >= ").append(toCqlLiteral(modifiedSince));
+			for (String fileIdentifier : fileIdentifiers) {
+				cqlText.append(" OR apiso:Identifier = ").append(toCqlLiteral(fileIdentifier));
+			}
+			elementCqlText.setTextContent(cqlText.append(')').toString());
+			return;
+		}
+		Element elementFilter = (Element) elementConstraint.getElementsByTagNameNS(NS_OGC, "Filter").item(0);
+		if (elementFilter == null) {
+			elementFilter = getRecords.createElementNS(NS_OGC, "ogc:Filter");
+			elementConstraint.appendChild(elementFilter);
+		}
+		Element elementModifiedSince = createComparison(getRecords, "ogc:PropertyIsGreaterThanOrEqualTo", queryable,
+				modifiedSince);
+		if (!fileIdentifiers.isEmpty()) {
+			Element elementOr = getRecords.createElementNS(NS_OGC, "ogc:Or");
+			elementOr.appendChild(elementModifiedSince);
+			for (String fileIdentifier : fileIdentifiers) {
+				elementOr.appendChild(
+						createComparison(getRecords, "ogc:PropertyIsEqualTo", "apiso:Identifier", fileIdentifier));
+			}
+			elementModifiedSince = elementOr;
+		}
+		Element elementExistingFilter = getFirstChildElement(elementFilter);
+		if (elementExistingFilter == null) {
+			elementFilter.appendChild(elementModifiedSince);
+		} else {
+			Element elementAnd = getRecords.createElementNS(NS_OGC, "ogc:And");
+			elementFilter.replaceChild(elementAnd, elementExistingFilter);
+			elementAnd.appendChild(elementExistingFilter);
+			elementAnd.appendChild(elementModifiedSince);
+		}
+	}
+
+	private Element createComparison(Document getRecords, String operator, String queryable, String value) {
+		Element elementComparison = getRecords.createElementNS(NS_OGC, operator);
+		Element elementPropertyName = getRecords.createElementNS(NS_OGC, "ogc:PropertyName");
+		elementPropertyName.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:apiso", NS_APISO);
+		elementPropertyName.setTextContent(queryable);
+		elementComparison.appendChild(elementPropertyName);
+		Element elementLiteral = getRecords.createElementNS(NS_OGC, "ogc:Literal");
+		elementLiteral.setTextContent(value);
+		elementComparison.appendChild(elementLiteral);
+		return elementComparison;
+	}
+
+	private static String toCqlLiteral(String value) {
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	private Element getFirstChildElement(Element parent) {
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				return (Element) child;
+			}
+		}
+		return null;
+	}
+
 	private Document parseDocument(File xmlFile) throws CSWException {
 		try {
-			DocumentBuilder documentBuilder = XMLUtils.createNamespaceAwareNonValidatingDocumentBuilder();
 			LOGGER.info("Starting parsing of " + xmlFile.getAbsolutePath());
-			Document document = documentBuilder.parse(xmlFile);
+			Document document = XMLUtils.parse(xmlFile);
 			return document;
 		} catch (ParserConfigurationException | SAXException | IOException e) {
 			throw new CSWException(xmlFile.getAbsolutePath() + " could not be parsed", e);
@@ -212,7 +678,21 @@ public class CSWClient {
 		SOAPPart soapPart = soapMessage.getSOAPPart();
 		soapPart.addMimeHeader("Accept-Encoding", "gzip,deflate");
 		soapPart.addMimeHeader("Content-Type",
-				"application/soap+xml;charset=UTF-8;action=\"http://inspire.jrc.ec.europa.eu/Discovery/GetRecords\"");
+				"application/soap+xml;charset=UTF-8;action=\"" + GET_RECORDS_ACTION + "\"");
+	}
+
+	/**
+	 * The number of page requests in flight is bounded per query by the window in
+	 * {@link #retrieveAllMatchingRecords(Document, int, GetRecordsResponseHandler, boolean)}, so that queries that
+	 * are harvested at the same time do not wait for each other's pages.
+	 */
+	private ListeningExecutorService createPageExecutorService() throws ConfigurationException {
+		concurrentPageRequests = config.getInt("csw.concurrentpagerequests", 1);
+		if (concurrentPageRequests < 1) {
+			throw new ConfigurationException("csw.concurrentpagerequests must be at least 1");
+		}
+		return MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setNameFormat("CSW-Page-%d").setDaemon(true).build()));
 	}
 
 	private URL getCSWEndpointFromConfig() throws ConfigurationException {
@@ -223,4 +703,40 @@ public class CSWClient {
 		return endpoint;
 	}
 
+	private class GetRecordsCallable implements Callable<GetRecordsResponsePage> {
+
+		private final Document getRecords;
+		private final int startPosition;
+		private final boolean keepReplyAsBytes;
+
+		public GetRecordsCallable(Document getRecords, int startPosition, boolean keepReplyAsBytes) {
+			this.getRecords = getRecords;
+			this.startPosition = startPosition;
+			this.keepReplyAsBytes = keepReplyAsBytes;
+		}
+
+		@Override
+		public GetRecordsResponsePage call() throws CSWException, ParserConfigurationException {
+			LOGGER.info("Retrieving records with startPosition " + startPosition);
+			return sendGetRecords(getRecords, keepReplyAsBytes);
+		}
+
+	}
+
+	private static class PageRequest {
+
+		private final int startPosition;
+		private final int maxRecords;
+		private final ListenableFuture<GetRecordsResponsePage> future;
+		private final long submittedMillis;
+
+		public PageRequest(int startPosition, int maxRecords, ListenableFuture<GetRecordsResponsePage> future) {
+			this.startPosition = startPosition;
+			this.maxRecords = maxRecords;
+			this.future = future;
+			submittedMillis = System.currentTimeMillis();
+		}
+
+	}
+
 }
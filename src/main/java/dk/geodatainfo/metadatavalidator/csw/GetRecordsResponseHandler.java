@@ -0,0 +1,16 @@
+package dk.geodatainfo.metadatavalidator.csw;
+
+/**
+ * Receives the pages of a full result set one at a time, so that a caller does not have to keep all pages in memory.
+ */
+public interface GetRecordsResponseHandler {
+
+	/**
+	 * Called once for every page, in the order of the startPosition of the pages.
+	 *
+	 * @param numberOfRecordsMatched
+	 *            number of records in the full result set
+	 */
+	void handleGetRecordsResponse(GetRecordsResponsePage page, int numberOfRecordsMatched) throws CSWException;
+
+}
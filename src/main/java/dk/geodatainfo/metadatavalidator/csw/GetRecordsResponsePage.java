@@ -0,0 +1,175 @@
+package dk.geodatainfo.metadatavalidator.csw;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import dk.geodatainfo.metadatavalidator.xml.XMLUtils;
+
+/**
+ * One page of a result set, as returned by the CSW.
+ * <p>
+ * The pages handed to a {@link GetRecordsResponseHandler} keep the reply as the bytes that were received, which is
+ * several times smaller than a DOM of it. The records are then read with {@link #openReader()} without building a
+ * DOM of the page; {@link #getDocument()} is available for code that needs one.
+ */
+public class GetRecordsResponsePage {
+
+	private static final String NS_SOAP_1_2 = "http://www.w3.org/2003/05/soap-envelope";
+
+	private final byte[] content;
+	private Document document;
+	private final long contentLength;
+	private final long durationMillis;
+
+	/**
+	 * @param content
+	 *            the reply, with or without SOAP envelope
+	 */
+	GetRecordsResponsePage(byte[] content, long durationMillis) {
+		this.content = content;
+		this.contentLength = content.length;
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * @param document
+	 *            document with root element GetRecordsResponse
+	 * @param contentLength
+	 *            size of the reply in bytes, or -1 if unknown
+	 */
+	GetRecordsResponsePage(Document document, long contentLength, long durationMillis) {
+		this.content = null;
+		this.document = document;
+		this.contentLength = contentLength;
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * @return reader of the records of this page, must be closed by the caller
+	 */
+	public GetRecordsResponseReader openReader() throws CSWException {
+		return new GetRecordsResponseReader(new ByteArrayInputStream(getContent()));
+	}
+
+	/**
+	 * @return document with root element GetRecordsResponse, parsed on the first call if the page was kept as bytes
+	 */
+	public synchronized Document getDocument() throws CSWException {
+		if (document == null) {
+			try {
+				document = parseBodyContent(new ByteArrayInputStream(content));
+			} catch (IOException e) {
+				throw new CSWException("The reply from the server could not be parsed", e);
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * @return the number of bytes received, or -1 if unknown
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * @return numberOfRecordsReturned of SearchResults, or the number of records if the attribute is missing
+	 */
+	public int getNumberOfRecordsReturned() throws CSWException {
+		if (content == null) {
+			Element elementSearchResults = (Element) document.getDocumentElement()
+					.getElementsByTagNameNS(CSWClient.NS_CSW_2_0_2, "SearchResults").item(0);
+			if (elementSearchResults == null) {
+				return 0;
+			}
+			String numberOfRecordsReturned = elementSearchResults.getAttribute("numberOfRecordsReturned");
+			if (numberOfRecordsReturned.isEmpty()) {
+				return elementSearchResults.getElementsByTagNameNS(CSWClient.NS_GMD, "MD_Metadata").getLength();
+			}
+			return Integer.parseInt(numberOfRecordsReturned);
+		}
+		GetRecordsResponseReader reader = openReader();
+		try {
+			int numberOfRecordsReturned = reader.getNumberOfRecordsReturned();
+			if (numberOfRecordsReturned < 0) {
+				numberOfRecordsReturned = 0;
+				while (reader.hasNext()) {
+					reader.next();
+					numberOfRecordsReturned++;
+				}
+			}
+			return numberOfRecordsReturned;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private byte[] getContent() throws CSWException {
+		if (content != null) {
+			return content;
+		}
+		// only pages retrieved for a merged document are kept as DOM, this is not used for those
+		try {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			XMLUtils.transform(new DOMSource(document), new StreamResult(outputStream));
+			return outputStream.toByteArray();
+		} catch (TransformerException e) {
+			throw new CSWException("The page could not be serialized", e);
+		}
+	}
+
+	/**
+	 * Parses a SOAP 1.2 reply and makes the content of the SOAP body the document element, by moving it instead of
+	 * copying it.
+	 */
+	static Document parseBodyContent(InputStream inputStream) throws CSWException, IOException {
+		Document envelope;
+		try {
+			envelope = XMLUtils.parse(inputStream);
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new CSWException("The reply from the server could not be parsed", e);
+		}
+		Element elementEnvelope = envelope.getDocumentElement();
+		if (!NS_SOAP_1_2.equals(elementEnvelope.getNamespaceURI())) {
+			return envelope;
+		}
+		Element elementBody = getFirstChildElement(elementEnvelope, "Body");
+		Element content = elementBody == null ? null : getFirstChildElement(elementBody, null);
+		if (content == null) {
+			throw new CSWException("The reply from the server does not contain a SOAP body with content");
+		}
+		if (NS_SOAP_1_2.equals(content.getNamespaceURI()) && "Fault".equals(content.getLocalName())) {
+			throw new CSWException("The server replied with a SOAP fault: " + content.getTextContent().trim());
+		}
+		envelope.removeChild(elementEnvelope);
+		envelope.appendChild(content);
+		return envelope;
+	}
+
+	private static Element getFirstChildElement(Element parent, String soapLocalName) {
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE && (soapLocalName == null
+					|| (NS_SOAP_1_2.equals(child.getNamespaceURI()) && soapLocalName.equals(child.getLocalName())))) {
+				return (Element) child;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,293 @@
+package dk.geodatainfo.metadatavalidator.csw;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import dk.geodatainfo.metadatavalidator.xml.XMLUtils;
+
+/**
+ * Reads a GetRecordsResponse, with or without SOAP envelope, with StAX. Only the part before the first record is
+ * read when the reader is created, the records are then read one at a time with {@link #hasNext()} and
+ * {@link #next()}, so no DOM of the full response is built.
+ * <p>
+ * Not thread-safe.
+ */
+public class GetRecordsResponseReader implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(GetRecordsResponseReader.class);
+
+	private static final String NS_CSW_2_0_2 = "http://www.opengis.net/cat/csw/2.0.2";
+	private static final String NS_GMD = "http://www.isotc211.org/2005/gmd";
+	private static final String NS_SOAP_1_1 = "http://schemas.xmlsoap.org/soap/envelope/";
+	private static final String NS_SOAP_1_2 = "http://www.w3.org/2003/05/soap-envelope";
+
+	/**
+	 * Shared by all readers, a factory is safe to use by several threads once it is configured.
+	 */
+	private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+	private final InputStream inputStream;
+	private final XMLStreamReader xmlStreamReader;
+	private Document header;
+	private Element elementSearchResults;
+	private boolean isPositionedAtRecord;
+	private boolean isFinished;
+
+	public GetRecordsResponseReader(InputStream inputStream) throws CSWException {
+		this.inputStream = inputStream;
+		try {
+			xmlStreamReader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+			readHeader();
+		} catch (XMLStreamException | ParserConfigurationException e) {
+			IOUtils.closeQuietly(inputStream);
+			throw new CSWException("The " + CSWClient.GET_RECORDS_RESPONSE + " could not be read", e);
+		} catch (CSWException e) {
+			IOUtils.closeQuietly(inputStream);
+			throw e;
+		}
+	}
+
+	private static XMLInputFactory createXMLInputFactory() {
+		XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+		xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return xmlInputFactory;
+	}
+
+	/**
+	 * @return document with root element GetRecordsResponse, containing everything before the first record and an
+	 *         empty SearchResults element
+	 */
+	public Document getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return the attribute of SearchResults, or -1 if it is not present
+	 */
+	public int getNumberOfRecordsMatched() {
+		return getSearchResultsAttribute("numberOfRecordsMatched");
+	}
+
+	/**
+	 * @return the attribute of SearchResults, or -1 if it is not present
+	 */
+	public int getNumberOfRecordsReturned() {
+		return getSearchResultsAttribute("numberOfRecordsReturned");
+	}
+
+	/**
+	 * @return the attribute of SearchResults, 0 if there are no more records, or -1 if it is not present
+	 */
+	public int getNextRecord() {
+		return getSearchResultsAttribute("nextRecord");
+	}
+
+	/**
+	 * @return true if there is another MD_Metadata element in SearchResults, other elements are skipped
+	 */
+	public boolean hasNext() throws CSWException {
+		try {
+			while (!isPositionedAtRecord && !isFinished) {
+				int event = xmlStreamReader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					if (NS_GMD.equals(xmlStreamReader.getNamespaceURI())
+							&& "MD_Metadata".equals(xmlStreamReader.getLocalName())) {
+						isPositionedAtRecord = true;
+					} else {
+						LOGGER.debug("Skipping " + xmlStreamReader.getName());
+						skipElement();
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT) {
+					// end of SearchResults, the rest of the response is not needed
+					isFinished = true;
+				}
+			}
+			return isPositionedAtRecord;
+		} catch (XMLStreamException e) {
+			throw new CSWException("The records could not be read", e);
+		}
+	}
+
+	/**
+	 * @return the next record, as document element of a document of its own
+	 */
+	public Element next() throws CSWException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		try {
+			Document document = XMLUtils.newDocument();
+			Element record = readElement(document);
+			document.appendChild(record);
+			isPositionedAtRecord = false;
+			return record;
+		} catch (XMLStreamException | ParserConfigurationException e) {
+			throw new CSWException("The records could not be read", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			xmlStreamReader.close();
+		} catch (XMLStreamException e) {
+			LOGGER.debug("Ignoring exception", e);
+		}
+		IOUtils.closeQuietly(inputStream);
+	}
+
+	private int getSearchResultsAttribute(String name) {
+		String value = elementSearchResults.getAttribute(name);
+		return StringUtils.isNumeric(value) ? Integer.parseInt(value) : -1;
+	}
+
+	/**
+	 * Reads up to and including the start tag of SearchResults.
+	 */
+	private void readHeader() throws XMLStreamException, ParserConfigurationException, CSWException {
+		nextStartElement();
+		if (isSOAPElement("Envelope")) {
+			do {
+				nextStartElement();
+				if (isSOAPElement("Header")) {
+					skipElement();
+				}
+			} while (!isSOAPElement("Body"));
+			nextStartElement();
+			if (isSOAPElement("Fault")) {
+				Element fault = readElement(XMLUtils.newDocument());
+				throw new CSWException("The server replied with a SOAP fault: " + fault.getTextContent().trim());
+			}
+		}
+		if (!(NS_CSW_2_0_2.equals(xmlStreamReader.getNamespaceURI())
+				&& CSWClient.GET_RECORDS_RESPONSE.equals(xmlStreamReader.getLocalName()))) {
+			throw new CSWException("The reply from the server does not contain an element with name "
+					+ CSWClient.GET_RECORDS_RESPONSE);
+		}
+		header = XMLUtils.newDocument();
+		Element elementGetRecordsResponse = createElement(header);
+		header.appendChild(elementGetRecordsResponse);
+		while (elementSearchResults == null) {
+			nextStartElement();
+			if (NS_CSW_2_0_2.equals(xmlStreamReader.getNamespaceURI())
+					&& "SearchResults".equals(xmlStreamReader.getLocalName())) {
+				elementSearchResults = createElement(header);
+				elementGetRecordsResponse.appendChild(elementSearchResults);
+			} else {
+				elementGetRecordsResponse.appendChild(readElement(header));
+			}
+		}
+	}
+
+	private boolean isSOAPElement(String localName) {
+		String namespaceURI = xmlStreamReader.getNamespaceURI();
+		return (NS_SOAP_1_2.equals(namespaceURI) || NS_SOAP_1_1.equals(namespaceURI))
+				&& localName.equals(xmlStreamReader.getLocalName());
+	}
+
+	private void nextStartElement() throws XMLStreamException, CSWException {
+		while (xmlStreamReader.hasNext()) {
+			if (xmlStreamReader.next() == XMLStreamConstants.START_ELEMENT) {
+				return;
+			}
+		}
+		throw new CSWException("Unexpected end of the reply from the server");
+	}
+
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = xmlStreamReader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Builds the element the reader is positioned at, including its descendants, and leaves the reader at its end
+	 * tag.
+	 */
+	private Element readElement(Document document) throws XMLStreamException {
+		Element element = createElement(document);
+		Node current = element;
+		int depth = 1;
+		while (depth > 0) {
+			switch (xmlStreamReader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				Element child = createElement(document);
+				current.appendChild(child);
+				current = child;
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				current = current.getParentNode();
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.SPACE:
+				current.appendChild(document.createTextNode(xmlStreamReader.getText()));
+				break;
+			case XMLStreamConstants.CDATA:
+				current.appendChild(document.createCDATASection(xmlStreamReader.getText()));
+				break;
+			case XMLStreamConstants.COMMENT:
+				current.appendChild(document.createComment(xmlStreamReader.getText()));
+				break;
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				current.appendChild(document.createProcessingInstruction(xmlStreamReader.getPITarget(),
+						xmlStreamReader.getPIData()));
+				break;
+			default:
+				break;
+			}
+		}
+		return element;
+	}
+
+	/**
+	 * Creates the element the reader is positioned at, with its namespace declarations and attributes.
+	 */
+	private Element createElement(Document document) {
+		Element element = document.createElementNS(StringUtils.defaultIfEmpty(xmlStreamReader.getNamespaceURI(), null),
+				qualifiedName(xmlStreamReader.getPrefix(), xmlStreamReader.getLocalName()));
+		for (int i = 0; i < xmlStreamReader.getNamespaceCount(); i++) {
+			String namespacePrefix = xmlStreamReader.getNamespacePrefix(i);
+			element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+					StringUtils.isEmpty(namespacePrefix) ? XMLConstants.XMLNS_ATTRIBUTE
+							: XMLConstants.XMLNS_ATTRIBUTE + ":" + namespacePrefix,
+					StringUtils.defaultString(xmlStreamReader.getNamespaceURI(i)));
+		}
+		for (int i = 0; i < xmlStreamReader.getAttributeCount(); i++) {
+			element.setAttributeNS(StringUtils.defaultIfEmpty(xmlStreamReader.getAttributeNamespace(i), null),
+					qualifiedName(xmlStreamReader.getAttributePrefix(i), xmlStreamReader.getAttributeLocalName(i)),
+					xmlStreamReader.getAttributeValue(i));
+		}
+		return element;
+	}
+
+	private String qualifiedName(String prefix, String localName) {
+		return StringUtils.isEmpty(prefix) ? localName : prefix + ":" + localName;
+	}
+
+}
@@ -0,0 +1,247 @@
+package dk.geodatainfo.metadatavalidator.csw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * The fileIdentifier and dateStamp of every record harvested for one GetRecords file and the time the harvest started,
+ * saved between runs so that the next run only has to retrieve the records that are new or changed, see
+ * csw.incremental. The time is saved under the empty key, which is never a fileIdentifier.
+ * <p>
+ * Thread-safe.
+ */
+public class HarvestIndex {
+
+	private static final String NS_GCO = "http://www.isotc211.org/2005/gco";
+	private static final String HARVEST_STARTED_KEY = "";
+
+	private final File file;
+	private final Map<String, String> dateStamps = new ConcurrentHashMap<>();
+	/**
+	 * The start of the previous harvest, null if the index was saved without it.
+	 */
+	private volatile String previousHarvestStarted;
+	private volatile String harvestStarted;
+
+	private HarvestIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the index saved in the file, or an empty index if the file does not exist
+	 */
+	public static HarvestIndex load(File file) throws CSWException {
+		HarvestIndex harvestIndex = new HarvestIndex(file);
+		if (file.exists()) {
+			Properties properties = new Properties();
+			InputStream inputStream = null;
+			try {
+				inputStream = FileUtils.openInputStream(file);
+				properties.load(inputStream);
+			} catch (IOException e) {
+				throw new CSWException("The harvest index " + file.getAbsolutePath() + " could not be read", e);
+			} finally {
+				IOUtils.closeQuietly(inputStream);
+			}
+			harvestIndex.previousHarvestStarted = (String) properties.remove(HARVEST_STARTED_KEY);
+			for (String fileIdentifier : properties.stringPropertyNames()) {
+				harvestIndex.dateStamps.put(fileIdentifier, properties.getProperty(fileIdentifier));
+			}
+		}
+		return harvestIndex;
+	}
+
+	public int size() {
+		return dateStamps.size();
+	}
+
+	/**
+	 * Remembers the current time as the start of this harvest, to be saved with the index. Called before the records
+	 * are retrieved, so that a record changed during the harvest is retrieved again by the next one.
+	 */
+	public void startHarvest() {
+		harvestStarted = formatDateTime(new Date());
+	}
+
+	/**
+	 * The dateStamps of the records are not used when the start of the previous harvest is known, as a dateStamp may
+	 * lie in the future or be taken over from another catalogue. Otherwise it is the latest dateStamp in the index
+	 * that is not later than now.
+	 *
+	 * @return the local time the previous harvest started, as yyyy-MM-ddTHH:mm:ss, or null if the index is empty.
+	 *         Records with an equal dateStamp are retrieved again, as the dateStamp may be a date without time.
+	 */
+	public String getModifiedSince() {
+		if (dateStamps.isEmpty()) {
+			return null;
+		}
+		if (previousHarvestStarted != null) {
+			return previousHarvestStarted;
+		}
+		String now = formatDateTime(new Date());
+		String modifiedSince = null;
+		for (String dateStamp : dateStamps.values()) {
+			if (dateStamp.compareTo(now) <= 0 && (modifiedSince == null || dateStamp.compareTo(modifiedSince) > 0)) {
+				modifiedSince = dateStamp;
+			}
+		}
+		return modifiedSince;
+	}
+
+	/**
+	 * Adds or updates the record in the index.
+	 *
+	 * @param record
+	 *            MD_Metadata element
+	 */
+	public void recordHarvested(Element record) {
+		String fileIdentifier = getFileIdentifier(record);
+		String dateStamp = getChildText(getChildElement(record, "dateStamp"));
+		if (fileIdentifier != null && dateStamp != null) {
+			dateStamps.put(fileIdentifier, dateStamp);
+		}
+	}
+
+	/**
+	 * Adds or updates all records in the document in the index.
+	 *
+	 * @param getRecordsResponse
+	 *            document with root element GetRecordsResponse
+	 */
+	public void recordsHarvested(Document getRecordsResponse) {
+		NodeList records = getRecordsResponse.getElementsByTagNameNS(CSWClient.NS_GMD, "MD_Metadata");
+		for (int i = 0; i < records.getLength(); i++) {
+			recordHarvested((Element) records.item(i));
+		}
+	}
+
+	/**
+	 * Removes the records that are not in the given set of records that currently match the query.
+	 *
+	 * @return the fileIdentifiers of the removed records, sorted
+	 */
+	public List<String> removeDeleted(Collection<String> matchingFileIdentifiers) {
+		Set<String> deleted = new HashSet<>(dateStamps.keySet());
+		deleted.removeAll(matchingFileIdentifiers);
+		dateStamps.keySet().removeAll(deleted);
+		List<String> sortedDeleted = new ArrayList<>(deleted);
+		Collections.sort(sortedDeleted);
+		return sortedDeleted;
+	}
+
+	/**
+	 * Called before the harvest, the records returned are new and have to be retrieved even if their dateStamp is
+	 * before {@link #getModifiedSince()}.
+	 *
+	 * @return the fileIdentifiers in the given set that are not in the index, sorted
+	 */
+	public Set<String> getMissing(Collection<String> matchingFileIdentifiers) {
+		Set<String> missing = new TreeSet<>(matchingFileIdentifiers);
+		missing.removeAll(dateStamps.keySet());
+		return missing;
+	}
+
+	/**
+	 * Saves the index, replacing the previous version only when it has been written completely.
+	 */
+	public void save() throws CSWException {
+		Properties properties = new Properties();
+		properties.putAll(dateStamps);
+		if (harvestStarted != null) {
+			properties.put(HARVEST_STARTED_KEY, harvestStarted);
+		}
+		File temporaryFile = new File(file.getAbsolutePath() + ".tmp");
+		OutputStream outputStream = null;
+		try {
+			outputStream = FileUtils.openOutputStream(temporaryFile);
+			properties.store(outputStream, "fileIdentifier=dateStamp, the empty key is the start of the harvest");
+			outputStream.close();
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new CSWException("The harvest index " + file.getAbsolutePath() + " could not be saved", e);
+		} finally {
+			IOUtils.closeQuietly(outputStream);
+		}
+	}
+
+	/**
+	 * Saves the fileIdentifiers of the deleted records, one per line, next to the index.
+	 *
+	 * @return the file that has been written
+	 */
+	public File saveDeleted(List<String> deleted) throws CSWException {
+		File deletedFile = new File(file.getParentFile(), StringUtils.removeEnd(file.getName(), ".properties")
+				+ ".deleted");
+		try {
+			FileUtils.writeLines(deletedFile, StandardCharsets.UTF_8.name(), deleted);
+		} catch (IOException e) {
+			throw new CSWException(deletedFile.getAbsolutePath() + " could not be saved", e);
+		}
+		return deletedFile;
+	}
+
+	private static String formatDateTime(Date date) {
+		return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT).format(date);
+	}
+
+	/**
+	 * @param record
+	 *            MD_Metadata element
+	 * @return the fileIdentifier, or null if the record does not have one
+	 */
+	static String getFileIdentifier(Element record) {
+		return getChildText(getChildElement(record, "fileIdentifier"));
+	}
+
+	private static Element getChildElement(Element parent, String localName) {
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE && CSWClient.NS_GMD.equals(child.getNamespaceURI())
+					&& localName.equals(child.getLocalName())) {
+				return (Element) child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the text of the gco:CharacterString, gco:Date or gco:DateTime in the element
+	 */
+	private static String getChildText(Element element) {
+		if (element == null) {
+			return null;
+		}
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE && NS_GCO.equals(child.getNamespaceURI())) {
+				return StringUtils.trimToNull(child.getTextContent());
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,50 @@
+package dk.geodatainfo.metadatavalidator.csw;
+
+import java.util.Arrays;
+
+/**
+ * Decides how long a page may take before a second, hedged request for it is sent: the 95th percentile of the time
+ * per record of the last pages, times the number of records of the page, and at least csw.hedging.mindelay
+ * milliseconds (default 1000). Only a page slower than almost all others is hedged, so that a server that is slow
+ * for all requests is not sent more of them.
+ * <p>
+ * Thread-safe, one instance is shared by all queries sent to the same CSW.
+ */
+class HedgingDelay {
+
+	private static final int NUMBER_OF_PAGES = 100;
+	private static final int MIN_NUMBER_OF_PAGES = 20;
+	private static final double PERCENTILE = 0.95;
+
+	private final long minDelayMillis;
+	private final double[] millisPerRecord = new double[NUMBER_OF_PAGES];
+	private int numberOfPages;
+
+	public HedgingDelay(long minDelayMillis) {
+		this.minDelayMillis = minDelayMillis;
+	}
+
+	public synchronized void pageRetrieved(int numberOfRecordsReturned, long durationMillis) {
+		if (numberOfRecordsReturned > 0) {
+			millisPerRecord[numberOfPages % NUMBER_OF_PAGES] = (double) durationMillis / numberOfRecordsReturned;
+			numberOfPages++;
+		}
+	}
+
+	/**
+	 * @return the delay in milliseconds, or -1 if too few pages have been retrieved to know what is slow
+	 */
+	public long getDelayMillis(int maxRecords) {
+		double[] lastMillisPerRecord;
+		synchronized (this) {
+			if (numberOfPages < MIN_NUMBER_OF_PAGES) {
+				return -1;
+			}
+			lastMillisPerRecord = Arrays.copyOf(millisPerRecord, Math.min(numberOfPages, NUMBER_OF_PAGES));
+		}
+		Arrays.sort(lastMillisPerRecord);
+		double percentile = lastMillisPerRecord[(int) (PERCENTILE * (lastMillisPerRecord.length - 1))];
+		return Math.max(minDelayMillis, (long) (percentile * maxRecords));
+	}
+
+}
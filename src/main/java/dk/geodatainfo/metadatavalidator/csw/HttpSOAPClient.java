@@ -0,0 +1,200 @@
+package dk.geodatainfo.metadatavalidator.csw;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import dk.geodatainfo.metadatavalidator.xml.XMLUtils;
+
+/**
+ * Alternative to {@link SOAPClient} that posts SOAP 1.2 messages with a pooled HTTP client: connections (and their
+ * TLS sessions) are kept alive and reused between requests, gzip and deflate compressed replies are decompressed, and
+ * the envelope is streamed to the server instead of being built as a SAAJ message first.
+ * <p>
+ * Thread-safe.
+ */
+class HttpSOAPClient implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpSOAPClient.class);
+
+	private static final String NS_SOAP_1_2 = "http://www.w3.org/2003/05/soap-envelope";
+
+	private final CloseableHttpClient httpClient;
+
+	public HttpSOAPClient(PropertiesConfiguration config) {
+		int maxConnections = config.getInt("csw.http.maxconnections", 20);
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(config.getInt("csw.http.connecttimeout", 30 * 1000))
+				.setSocketTimeout(config.getInt("csw.http.sockettimeout", 5 * 60 * 1000)).build();
+		// the builder adds Accept-Encoding: gzip,deflate and decompresses the replies
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig).build();
+	}
+
+	/**
+	 * @param bodyContent
+	 *            document that is sent as the content of the SOAP body
+	 * @param action
+	 *            the SOAP action, sent as parameter of the content type
+	 * @param keepReplyAsBytes
+	 *            if true the reply is not parsed, but kept as the bytes that were received
+	 */
+	public SOAPReply send(Document bodyContent, URL url, String action, boolean keepReplyAsBytes)
+			throws CSWException, IOException {
+		HttpPost httpPost;
+		try {
+			httpPost = new HttpPost(url.toURI());
+		} catch (URISyntaxException e) {
+			throw new CSWException(url + " is not a valid URI", e);
+		}
+		httpPost.setEntity(new SOAPEnvelopeEntity(bodyContent, action));
+		CloseableHttpResponse response = httpClient.execute(httpPost);
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+			LOGGER.debug(response.getStatusLine().toString());
+			HttpEntity entity = response.getEntity();
+			// SOAP 1.2 faults are sent with status 400 or 500
+			if (entity == null || (statusCode != 200 && statusCode != 400 && statusCode != 500)) {
+				throw new CSWException("Unexpected response " + response.getStatusLine(),
+						new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase()));
+			}
+			if (keepReplyAsBytes) {
+				byte[] content = EntityUtils.toByteArray(entity);
+				return new SOAPReply(null, content, content.length);
+			}
+			CountingInputStream inputStream = new CountingInputStream(entity.getContent());
+			Document document = GetRecordsResponsePage.parseBodyContent(inputStream);
+			return new SOAPReply(document, null, inputStream.getByteCount());
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
+			IOUtils.closeQuietly(response);
+		}
+	}
+
+	@Override
+	public void close() {
+		IOUtils.closeQuietly(httpClient);
+	}
+
+	static class SOAPReply {
+
+		private final Document bodyContent;
+		private final byte[] content;
+		private final long contentLength;
+
+		SOAPReply(Document bodyContent, byte[] content, long contentLength) {
+			this.bodyContent = bodyContent;
+			this.content = content;
+			this.contentLength = contentLength;
+		}
+
+		/**
+		 * @return document with the content of the SOAP body as document element, or null if the reply was kept as
+		 *         bytes
+		 */
+		public Document getBodyContent() {
+			return bodyContent;
+		}
+
+		/**
+		 * @return the reply including the SOAP envelope, or null if the reply was parsed
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * @return number of bytes read, after decompression
+		 */
+		public long getContentLength() {
+			return contentLength;
+		}
+
+	}
+
+	/**
+	 * Writes the envelope directly to the connection, the request is sent chunked.
+	 */
+	private static class SOAPEnvelopeEntity extends AbstractHttpEntity {
+
+		private final Document bodyContent;
+
+		public SOAPEnvelopeEntity(Document bodyContent, String action) {
+			this.bodyContent = bodyContent;
+			setContentType("application/soap+xml;charset=UTF-8;action=\"" + action + "\"");
+			setChunked(true);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public InputStream getContent() {
+			throw new UnsupportedOperationException("The envelope can only be written");
+		}
+
+		@Override
+		public void writeTo(OutputStream outputStream) throws IOException {
+			outputStream.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?><soap:Envelope xmlns:soap=\""
+					+ NS_SOAP_1_2 + "\"><soap:Body>").getBytes(StandardCharsets.UTF_8));
+			try {
+				Transformer transformer = XMLUtils.createTransformer();
+				try {
+					transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+					transformer.setOutputProperty(OutputKeys.INDENT, "no");
+					transformer.transform(new DOMSource(bodyContent), new StreamResult(outputStream));
+				} finally {
+					XMLUtils.release(transformer);
+				}
+			} catch (TransformerException e) {
+				throw new IOException("The SOAP body could not be written", e);
+			}
+			outputStream.write("</soap:Body></soap:Envelope>".getBytes(StandardCharsets.UTF_8));
+			outputStream.flush();
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,122 @@
+package dk.geodatainfo.metadatavalidator.csw;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides the value of maxRecords of the GetRecords pages.
+ * <p>
+ * By default every page has csw.maxrecords records. With csw.adaptivepagesize=true that is only the size of the first
+ * page: the size then follows the time and the number of bytes per record observed for the pages retrieved so far,
+ * aiming at pages that take csw.adaptivepagesize.targetmillis and are at most csw.adaptivepagesize.maxbytes large. A
+ * page size changes by at most a factor 2 at a time and stays between csw.adaptivepagesize.min and
+ * csw.adaptivepagesize.max. A failed page halves the size, a server that returns fewer records than asked for caps
+ * it.
+ * <p>
+ * Thread-safe, one instance is shared by all queries sent to the same CSW.
+ */
+class PageSize {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PageSize.class);
+
+	/**
+	 * Weight of the latest page in the moving averages.
+	 */
+	private static final double SMOOTHING_FACTOR = 0.3;
+
+	private final boolean adaptive;
+	private final int minimum;
+	private int maximum;
+	private final long targetMillis;
+	private final long maxBytes;
+
+	private int size;
+	private double millisPerRecord;
+	private double bytesPerRecord;
+
+	public PageSize(PropertiesConfiguration config) throws ConfigurationException {
+		size = config.getInt("csw.maxrecords", 100);
+		adaptive = config.getBoolean("csw.adaptivepagesize", false);
+		minimum = config.getInt("csw.adaptivepagesize.min", Math.min(10, size));
+		maximum = config.getInt("csw.adaptivepagesize.max", Math.max(1000, size));
+		targetMillis = config.getLong("csw.adaptivepagesize.targetmillis", 10 * 1000L);
+		maxBytes = config.getLong("csw.adaptivepagesize.maxbytes", 20 * 1024 * 1024L);
+		if (size < 1 || minimum < 1 || minimum > size || size > maximum) {
+			throw new ConfigurationException(
+					"csw.maxrecords must be between csw.adaptivepagesize.min and csw.adaptivepagesize.max, "
+							+ "and all of them must be at least 1");
+		}
+		if (targetMillis < 1 || maxBytes < 1) {
+			throw new ConfigurationException(
+					"csw.adaptivepagesize.targetmillis and csw.adaptivepagesize.maxbytes must be at least 1");
+		}
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	public int getMinimum() {
+		return minimum;
+	}
+
+	/**
+	 * @return maxRecords for the next page
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * @param contentLength
+	 *            size of the response in bytes, or a negative number if unknown
+	 */
+	public synchronized void pageRetrieved(int numberOfRecordsReturned, long durationMillis, long contentLength) {
+		if (!adaptive || numberOfRecordsReturned == 0) {
+			return;
+		}
+		millisPerRecord = average(millisPerRecord, (double) durationMillis / numberOfRecordsReturned);
+		double desiredSize = targetMillis / Math.max(millisPerRecord, 1e-3);
+		if (contentLength > 0) {
+			bytesPerRecord = average(bytesPerRecord, (double) contentLength / numberOfRecordsReturned);
+		}
+		if (bytesPerRecord > 0) {
+			desiredSize = Math.min(desiredSize, maxBytes / bytesPerRecord);
+		}
+		resize((int) Math.min(desiredSize, Integer.MAX_VALUE));
+	}
+
+	public synchronized void pageFailed(int maxRecords) {
+		if (adaptive) {
+			resize(Math.min(size, maxRecords) / 2);
+		}
+	}
+
+	/**
+	 * Called when the server returned fewer records than requested for a page that is not the last one, the server
+	 * then has a maximum of its own.
+	 */
+	public synchronized void limit(int numberOfRecordsReturned) {
+		if (numberOfRecordsReturned > 0 && numberOfRecordsReturned < maximum) {
+			LOGGER.info("The CSW returns at most " + numberOfRecordsReturned + " records per page");
+			maximum = Math.max(minimum, numberOfRecordsReturned);
+			size = Math.min(size, maximum);
+		}
+	}
+
+	private double average(double average, double value) {
+		return average == 0 ? value : SMOOTHING_FACTOR * value + (1 - SMOOTHING_FACTOR) * average;
+	}
+
+	private void resize(int desiredSize) {
+		int newSize = Math.max(size / 2, Math.min(size * 2, desiredSize));
+		newSize = Math.max(minimum, Math.min(maximum, newSize));
+		if (newSize != size) {
+			LOGGER.debug("Changing the page size from " + size + " to " + newSize);
+			size = newSize;
+		}
+	}
+
+}
@@ -12,18 +12,22 @@ import javax.xml.soap.SOAPMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Thread-safe: every call uses its own {@link SOAPConnection}, so the client may be shared by concurrent page
+ * requests.
+ */
 public class SOAPClient {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(SOAPClient.class);
 
-	private SOAPConnectionFactory soapConnectionFactory;
-	private SOAPConnection soapConnection;
+	private final SOAPConnectionFactory soapConnectionFactory;
 
 	public SOAPClient() throws UnsupportedOperationException, SOAPException {
 		soapConnectionFactory = SOAPConnectionFactory.newInstance();
 	}
 
 	public SOAPMessage sendSOAPMessageToURLEndpoint(SOAPMessage request, URL url) throws SOAPException, IOException {
+		SOAPConnection soapConnection = null;
 		try {
 			soapConnection = soapConnectionFactory.createConnection();
 			logSOAPMessage("request", request);
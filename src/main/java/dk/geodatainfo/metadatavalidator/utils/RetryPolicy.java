@@ -0,0 +1,191 @@
+package dk.geodatainfo.metadatavalidator.utils;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries steps that failed for a reason that may be gone a moment later, see {@link #isTransient(Throwable)}, with
+ * exponential backoff and full jitter: before attempt n it waits a random time between 0 and
+ * &lt;prefix&gt;.initialdelay * 2^(n - 2) milliseconds (default 1000), at most &lt;prefix&gt;.maxdelay (default
+ * 30000).
+ * <p>
+ * A step that can safely be repeated (idempotent) is attempted at most &lt;prefix&gt;.maxattempts times (default 3),
+ * other steps, such as the creation of a test object, at most &lt;prefix&gt;.nonidempotent.maxattempts times (default
+ * 2). Both kinds of steps have their own retry budget, so that retries cannot multiply the load on a server that is
+ * failing: every step adds &lt;prefix&gt;.budget (default 0.2) or &lt;prefix&gt;.nonidempotent.budget (default 0.05)
+ * retries to its budget, and every retry takes one. A budget starts with 10 retries and holds at most 100.
+ * <p>
+ * Thread-safe, one instance is shared by all requests to a server.
+ */
+public class RetryPolicy {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+
+	private static final double INITIAL_RETRIES = 10;
+	private static final double MAX_RETRIES = 100;
+
+	/**
+	 * A step that is retried.
+	 *
+	 * @param <T>
+	 *            result of the step
+	 * @param <E>
+	 *            exception thrown by the step
+	 */
+	public interface Attempt<T, E extends Exception> {
+
+		T run() throws E;
+
+	}
+
+	private final String name;
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private final int maxAttempts;
+	private final int nonIdempotentMaxAttempts;
+	private final Budget budget;
+	private final Budget nonIdempotentBudget;
+	private final AtomicLong numberOfRetries = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            name of the server, used in the log
+	 */
+	public RetryPolicy(String name, PropertiesConfiguration config, String prefix) throws ConfigurationException {
+		this.name = name;
+		initialDelayMillis = config.getLong(prefix + ".initialdelay", 1000L);
+		maxDelayMillis = config.getLong(prefix + ".maxdelay", 30 * 1000L);
+		maxAttempts = config.getInt(prefix + ".maxattempts", 3);
+		nonIdempotentMaxAttempts = config.getInt(prefix + ".nonidempotent.maxattempts", 2);
+		budget = new Budget(config.getDouble(prefix + ".budget", 0.2));
+		nonIdempotentBudget = new Budget(config.getDouble(prefix + ".nonidempotent.budget", 0.05));
+		if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+			throw new ConfigurationException(
+					prefix + ".initialdelay must be at least 0 and at most " + prefix + ".maxdelay");
+		}
+		if (maxAttempts < 1 || nonIdempotentMaxAttempts < 1) {
+			throw new ConfigurationException(
+					prefix + ".maxattempts and " + prefix + ".nonidempotent.maxattempts must be at least 1");
+		}
+	}
+
+	/**
+	 * Runs the step, and runs it again while it fails for a transient reason and attempts and budget are left. If
+	 * the thread is interrupted while waiting, the last failure is thrown and the thread stays interrupted.
+	 *
+	 * @param description
+	 *            description of the step, used in the log
+	 * @param isIdempotent
+	 *            whether the step can be repeated without side effects, after it may have succeeded at the server
+	 * @param exceptionClass
+	 *            class of the exceptions thrown by the step
+	 */
+	public <T, E extends Exception> T call(String description, boolean isIdempotent, Class<E> exceptionClass,
+			Attempt<T, E> attempt) throws E {
+		Budget attemptBudget = isIdempotent ? budget : nonIdempotentBudget;
+		int attempts = isIdempotent ? maxAttempts : nonIdempotentMaxAttempts;
+		attemptBudget.deposit();
+		for (int attemptNumber = 1;; attemptNumber++) {
+			try {
+				return attempt.run();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				E failure = exceptionClass.cast(e);
+				if (attemptNumber >= attempts || !isTransient(failure)) {
+					throw failure;
+				}
+				if (!attemptBudget.withdraw()) {
+					LOGGER.warn("Not retrying " + description + ", the retry budget for " + name + " is used up");
+					throw failure;
+				}
+				numberOfRetries.incrementAndGet();
+				long delayMillis = getDelayMillis(attemptNumber);
+				LOGGER.warn("Attempt " + attemptNumber + " of " + attempts + " of " + description
+						+ " failed, retrying in " + delayMillis + " ms: " + failure.getMessage());
+				try {
+					TimeUnit.MILLISECONDS.sleep(delayMillis);
+				} catch (InterruptedException interruptedException) {
+					Thread.currentThread().interrupt();
+					throw failure;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes one retry from the budget of idempotent steps for an extra request that is not a retry, such as a hedged
+	 * request.
+	 *
+	 * @return false if the budget is used up
+	 */
+	public boolean withdraw() {
+		return budget.withdraw();
+	}
+
+	/**
+	 * @return the number of retries so far, of both kinds of steps
+	 */
+	public long getNumberOfRetries() {
+		return numberOfRetries.get();
+	}
+
+	/**
+	 * @param attemptNumber
+	 *            the attempt that has failed
+	 */
+	private long getDelayMillis(int attemptNumber) {
+		long delayMillis = Math.min(maxDelayMillis, initialDelayMillis << Math.min(attemptNumber - 1, 30));
+		return ThreadLocalRandom.current().nextLong(delayMillis + 1);
+	}
+
+	/**
+	 * A failure is transient if it, or one of its causes, is an HTTP response with status 429 or 5xx, or an I/O error
+	 * other than an unexpected HTTP response, such as a timeout or a refused connection.
+	 */
+	public static boolean isTransient(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof HttpResponseException) {
+				int statusCode = ((HttpResponseException) cause).getStatusCode();
+				return statusCode == 429 || statusCode >= 500;
+			}
+			if (cause instanceof IOException && !(cause instanceof ClientProtocolException)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class Budget {
+
+		private final double retriesPerStep;
+		private double retries = INITIAL_RETRIES;
+
+		public Budget(double retriesPerStep) {
+			this.retriesPerStep = retriesPerStep;
+		}
+
+		public synchronized void deposit() {
+			retries = Math.min(MAX_RETRIES, retries + retriesPerStep);
+		}
+
+		public synchronized boolean withdraw() {
+			if (retries < 1) {
+				return false;
+			}
+			retries--;
+			return true;
+		}
+
+	}
+
+}
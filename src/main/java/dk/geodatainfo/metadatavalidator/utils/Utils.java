@@ -6,6 +6,7 @@ import java.io.IOException;
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +31,13 @@ public final class Utils {
 		return directory;
 	}
 
+	public static File createDirectory(File directory) {
+		if (!directory.exists()) {
+			directory.mkdirs();
+		}
+		return directory;
+	}
+
 	public static File getDirFromConfig(PropertiesConfiguration config, String key, String messageMissingKey)
 			throws ConfigurationException {
 		String dirLocation = config.getString(key);
@@ -52,4 +60,16 @@ public final class Utils {
 		return dir;
 	}
 
+	/**
+	 * @return the name of the file without its extension, also without .gz if it is compressed, for example org1 for
+	 *         org1.xml.gz
+	 */
+	public static String getBaseName(String fileName) {
+		String baseName = fileName;
+		if ("gz".equalsIgnoreCase(FilenameUtils.getExtension(baseName))) {
+			baseName = FilenameUtils.removeExtension(baseName);
+		}
+		return FilenameUtils.removeExtension(baseName);
+	}
+
 }
@@ -0,0 +1,60 @@
+package dk.geodatainfo.metadatavalidator.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, available from Java 21. They are looked up by reflection, so that the application can still be
+ * built and run with Java 8.
+ * <p>
+ * A virtual thread is parked instead of blocking a platform thread while it waits for a socket, a sleep or a
+ * java.util.concurrent lock, but not while it holds a monitor (before Java 24), so code run on these threads should
+ * not block inside synchronized blocks.
+ */
+public final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Creates an executor to find out, as on Java 19 and 20 the methods exist but are a preview feature that fails
+	 * unless enabled with --enable-preview.
+	 *
+	 * @return true if the Java version supports virtual threads
+	 */
+	public static boolean isAvailable() {
+		try {
+			newVirtualThreadPerTaskExecutor("").shutdown();
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param namePrefix
+	 *            the threads are named namePrefix0, namePrefix1 and so on
+	 * @return executor that starts a new virtual thread for every task
+	 * @throws UnsupportedOperationException
+	 *             if the Java version does not support virtual threads, see {@link #isAvailable()}
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor",
+					ThreadFactory.class);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+		} catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException
+				| InvocationTargetException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by Java "
+					+ System.getProperty("java.version"), e);
+		}
+	}
+
+}
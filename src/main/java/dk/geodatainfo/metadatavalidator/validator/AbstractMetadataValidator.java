@@ -1,9 +1,14 @@
 package dk.geodatainfo.metadatavalidator.validator;
 
+import java.io.File;
+
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.lang3.StringUtils;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
 
 public abstract class AbstractMetadataValidator implements MetadataValidator {
@@ -20,7 +25,17 @@ public abstract class AbstractMetadataValidator implements MetadataValidator {
 		endpoint = StringUtils.removeEnd(this.config.getString("validator.endpoint"), "/");
 	}
 
-	protected synchronized String getEndpoint() {
+	/**
+	 * Validates the metadata in the calling thread.
+	 */
+	@Override
+	public ListenableFuture<Void> startValidation(File metadata)
+			throws MetadataValidatorException, ConfigurationException {
+		sendRequestToURLEndpointAndSaveResults(metadata);
+		return Futures.immediateFuture(null);
+	}
+
+	protected String getEndpoint() {
 		return endpoint;
 	}
 
@@ -0,0 +1,14 @@
+package dk.geodatainfo.metadatavalidator.validator;
+
+/**
+ * Counts what delays the validations of a validator besides the validating itself, such as retries of failed
+ * requests and waits for the endpoint to become available.
+ */
+public interface DelayCounter {
+
+	/**
+	 * @return the number of delays so far, which never decreases
+	 */
+	long getNumberOfDelays();
+
+}
@@ -0,0 +1,190 @@
+package dk.geodatainfo.metadatavalidator.validator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
+
+/**
+ * Keeps track of whether a validator endpoint is available, shared by all threads that send requests to it: a circuit
+ * breaker, optionally combined with a heartbeat.
+ * <p>
+ * Every request is preceded by {@link #awaitAvailable()} and followed by {@link #recordSuccess()} or
+ * {@link #recordFailure()}. After validator.health.failurethreshold (default 5) consecutive failures the circuit is
+ * opened: requests wait instead of being sent. After validator.health.opentime seconds (default 30) one request is let
+ * through as a trial, or, if the endpoint has a heartbeat, the heartbeat is checked; its outcome closes the circuit or
+ * opens it again. A request that has waited validator.health.maxwait seconds (default 1800) fails.
+ * <p>
+ * A successful heartbeat is trusted for validator.health.heartbeatttl seconds (default 60), so the heartbeat is not
+ * checked before every request.
+ * <p>
+ * Thread-safe.
+ */
+public class EndpointHealth {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EndpointHealth.class);
+
+	/**
+	 * Cheap check of whether the endpoint is up.
+	 */
+	public interface Heartbeat {
+
+		/**
+		 * @throws IOException
+		 *             if the endpoint is not up
+		 */
+		void check() throws IOException;
+
+	}
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String endpoint;
+	private final Heartbeat heartbeat;
+	private final long heartbeatTimeToLiveMillis;
+	private final int failureThreshold;
+	private final long openMillis;
+	private final long maxWaitMillis;
+	private final Lock lock = new ReentrantLock();
+	private final Condition stateChanged = lock.newCondition();
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openUntilMillis;
+	private long heartbeatValidUntilMillis;
+	private long numberOfWaits;
+
+	/**
+	 * @param heartbeat
+	 *            null if the endpoint has no heartbeat, a request is then used as trial
+	 */
+	public EndpointHealth(String endpoint, Heartbeat heartbeat, PropertiesConfiguration config) {
+		this.endpoint = endpoint;
+		this.heartbeat = heartbeat;
+		heartbeatTimeToLiveMillis = TimeUnit.SECONDS.toMillis(config.getLong("validator.health.heartbeatttl", 60L));
+		failureThreshold = config.getInt("validator.health.failurethreshold", 5);
+		openMillis = TimeUnit.SECONDS.toMillis(config.getLong("validator.health.opentime", 30L));
+		maxWaitMillis = TimeUnit.SECONDS.toMillis(config.getLong("validator.health.maxwait", 30 * 60L));
+	}
+
+	/**
+	 * Returns when a request may be sent, which may take up to validator.health.maxwait seconds while the circuit is
+	 * open.
+	 *
+	 * @throws MetadataValidatorException
+	 *             if the endpoint has not become available in time
+	 */
+	public void awaitAvailable() throws MetadataValidatorException {
+		long deadlineMillis = System.currentTimeMillis() + maxWaitMillis;
+		while (true) {
+			boolean checkHeartbeat = false;
+			lock.lock();
+			try {
+				while (true) {
+					long nowMillis = System.currentTimeMillis();
+					if (state == State.CLOSED) {
+						checkHeartbeat = heartbeat != null && nowMillis >= heartbeatValidUntilMillis;
+						if (checkHeartbeat) {
+							// the other threads rely on this check
+							heartbeatValidUntilMillis = nowMillis + heartbeatTimeToLiveMillis;
+						}
+						break;
+					}
+					if (state == State.OPEN && nowMillis >= openUntilMillis) {
+						LOGGER.info("Trying " + endpoint + " again");
+						state = State.HALF_OPEN;
+						checkHeartbeat = heartbeat != null;
+						break;
+					}
+					if (nowMillis >= deadlineMillis) {
+						// the cause makes the failure transient, see RetryPolicy.isTransient
+						throw new MetadataValidatorException("The validator at " + endpoint
+								+ " has not been available for " + TimeUnit.MILLISECONDS.toSeconds(maxWaitMillis)
+								+ " seconds", new IOException("The circuit breaker of " + endpoint + " is open"));
+					}
+					long untilMillis = state == State.OPEN ? Math.min(openUntilMillis, deadlineMillis) : deadlineMillis;
+					numberOfWaits++;
+					stateChanged.await(untilMillis - nowMillis, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MetadataValidatorException("Interrupted while waiting for " + endpoint, e);
+			} finally {
+				lock.unlock();
+			}
+			if (!checkHeartbeat) {
+				return;
+			}
+			try {
+				heartbeat.check();
+				recordSuccess();
+				return;
+			} catch (IOException e) {
+				LOGGER.warn("The heartbeat of " + endpoint + " failed: " + e.getMessage());
+				recordFailure();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of times a request has waited for the endpoint to become available so far
+	 */
+	public long getNumberOfWaits() {
+		lock.lock();
+		try {
+			return numberOfWaits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that the endpoint has handled a request, also if the request itself was rejected.
+	 */
+	public void recordSuccess() {
+		lock.lock();
+		try {
+			consecutiveFailures = 0;
+			if (heartbeat != null) {
+				heartbeatValidUntilMillis = System.currentTimeMillis() + heartbeatTimeToLiveMillis;
+			}
+			if (state != State.CLOSED) {
+				LOGGER.info(endpoint + " is available again");
+				state = State.CLOSED;
+				stateChanged.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that the endpoint could not be reached or could not handle a request.
+	 */
+	public void recordFailure() {
+		lock.lock();
+		try {
+			consecutiveFailures++;
+			heartbeatValidUntilMillis = 0;
+			if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+				LOGGER.warn(endpoint + " is unavailable after " + consecutiveFailures
+						+ " failures, pausing requests for " + TimeUnit.MILLISECONDS.toSeconds(openMillis)
+						+ " seconds");
+				state = State.OPEN;
+				openUntilMillis = System.currentTimeMillis() + openMillis;
+				stateChanged.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -4,6 +4,8 @@ import java.io.File;
 
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
 
 public interface MetadataValidator {
@@ -11,8 +13,24 @@ public interface MetadataValidator {
 	void sendRequestToURLEndpointAndSaveResults(File metadata)
 			throws MetadataValidatorException, ConfigurationException;
 
+	/**
+	 * Starts the validation of the metadata. A validator that waits for the validation without blocking, such as the
+	 * ETF client with validator.etf.scheduledpolling, returns as soon as the validation has been started, others when
+	 * the results have been saved.
+	 *
+	 * @return future that completes when the results have been saved, or fails with a
+	 *         {@link MetadataValidatorException}
+	 */
+	ListenableFuture<Void> startValidation(File metadata) throws MetadataValidatorException, ConfigurationException;
+
 	File createReport() throws ConfigurationException, MetadataValidatorException;
 
+	/**
+	 * @return everything besides the metadata that determines the saved result of a validation, such as the endpoint,
+	 *         the test suite and the format of the result files
+	 */
+	String getValidationSettings();
+
 	void shutDown();
 
 }
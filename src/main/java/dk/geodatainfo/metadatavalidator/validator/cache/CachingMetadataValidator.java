@@ -0,0 +1,405 @@
+package dk.geodatainfo.metadatavalidator.validator.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import dk.geodatainfo.metadatavalidator.utils.Utils;
+import dk.geodatainfo.metadatavalidator.validator.MetadataValidator;
+import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
+
+/**
+ * Keeps the results of a validator in dir.validationcache, so that metadata that has already been validated is not
+ * sent to the validator again.
+ * <p>
+ * The key of a result is a SHA-256 hash of the canonicalized metadata and of
+ * {@link MetadataValidator#getValidationSettings()}. On a hit the saved result files are copied to
+ * dir.validationresult, named as the validator would have named them. Entries are removed when they were stored more
+ * than validator.cache.ttlhours ago (default 168), however often they are used, so that a changed validator is used
+ * again, and, least recently used first, when the cache is larger than
+ * validator.cache.maxsizemb (default 1024), at the start and end of a run and whenever a stored result takes the
+ * cache over the maximum size. Results of {@link #startValidation(File)} are stored by validator.cache.threads
+ * threads (default 2).
+ * <p>
+ * Thread-safe if the wrapped validator is.
+ */
+public class CachingMetadataValidator implements MetadataValidator {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CachingMetadataValidator.class);
+
+	private static final String NS_CSW_2_0_2 = "http://www.opengis.net/cat/csw/2.0.2";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final String RESULT_FILE_NAME = "result";
+	/**
+	 * Empty file in an entry, its last modified time is the time the entry was stored. The last modified time of the
+	 * entry is the time it was last used.
+	 */
+	private static final String STORED_FILE_NAME = "stored";
+
+	private final MetadataValidator validator;
+	private final File cacheDirectory;
+	private final File outputDirectory;
+	private final long timeToLiveMillis;
+	private final long maxSizeBytes;
+	private final XMLInputFactory xmlInputFactory;
+	private final ListeningExecutorService storeExecutorService;
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	/**
+	 * The size of the cache at the last eviction plus the size of the entries stored since.
+	 */
+	private final AtomicLong sizeBytes = new AtomicLong();
+
+	public CachingMetadataValidator(MetadataValidator validator, PropertiesConfiguration config)
+			throws ConfigurationException {
+		this.validator = validator;
+		cacheDirectory = Utils.createDirectory(Utils.getDirFromConfig(config, "dir.validationcache",
+				"The location of the directory that will contain the cached validation results must be provided"));
+		outputDirectory = Utils.getDirFromConfig(config, "dir.validationresult",
+				"The location of the directory that will contain the validation results must be provided");
+		timeToLiveMillis = TimeUnit.HOURS.toMillis(config.getLong("validator.cache.ttlhours", 7 * 24L));
+		maxSizeBytes = config.getLong("validator.cache.maxsizemb", 1024L) * FileUtils.ONE_MB;
+		xmlInputFactory = XMLInputFactory.newInstance();
+		xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		storeExecutorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+				config.getInt("validator.cache.threads", 2),
+				new ThreadFactoryBuilder().setNameFormat("Validation-Cache-%d").setDaemon(true).build()));
+		evict(false);
+	}
+
+	@Override
+	public void sendRequestToURLEndpointAndSaveResults(File metadata)
+			throws MetadataValidatorException, ConfigurationException {
+		String key = createKey(metadata);
+		File entry = new File(cacheDirectory, key);
+		if (isValid(entry) && restore(entry, metadata)) {
+			LOGGER.info("Restored the cached validation result of " + metadata.getName());
+			return;
+		}
+		validator.sendRequestToURLEndpointAndSaveResults(metadata);
+		store(entry, metadata);
+	}
+
+	/**
+	 * On a miss the result is cached by a thread of the cache when the wrapped validator has saved it, before the
+	 * returned future completes.
+	 */
+	@Override
+	public ListenableFuture<Void> startValidation(final File metadata)
+			throws MetadataValidatorException, ConfigurationException {
+		String key = createKey(metadata);
+		final File entry = new File(cacheDirectory, key);
+		if (isValid(entry) && restore(entry, metadata)) {
+			LOGGER.info("Restored the cached validation result of " + metadata.getName());
+			return Futures.immediateFuture(null);
+		}
+		return Futures.transform(validator.startValidation(metadata), new Function<Void, Void>() {
+
+			@Override
+			public Void apply(Void result) {
+				store(entry, metadata);
+				return null;
+			}
+		}, storeExecutorService);
+	}
+
+	@Override
+	public File createReport() throws ConfigurationException, MetadataValidatorException {
+		return validator.createReport();
+	}
+
+	@Override
+	public String getValidationSettings() {
+		return validator.getValidationSettings();
+	}
+
+	@Override
+	public void shutDown() {
+		try {
+			storeExecutorService.shutdown();
+			evict(false);
+		} finally {
+			validator.shutDown();
+		}
+	}
+
+	/**
+	 * @return true if the entry was stored less than the time to live ago; entries without the time they were stored
+	 *         have expired
+	 */
+	private boolean isValid(File entry) {
+		File storedFile = new File(entry, STORED_FILE_NAME);
+		return storedFile.isFile() && System.currentTimeMillis() - storedFile.lastModified() < timeToLiveMillis;
+	}
+
+	/**
+	 * @return false if the entry could not be restored, the metadata is then validated again
+	 */
+	private boolean restore(File entry, File metadata) {
+		File[] cachedFiles = entry.listFiles();
+		if (cachedFiles == null) {
+			return false;
+		}
+		String baseName = FilenameUtils.removeExtension(metadata.getName());
+		boolean isRestored = false;
+		try {
+			for (File cachedFile : cachedFiles) {
+				if (!cachedFile.getName().startsWith(RESULT_FILE_NAME)) {
+					continue;
+				}
+				isRestored = true;
+				FileUtils.copyFile(cachedFile, new File(outputDirectory,
+						baseName + cachedFile.getName().substring(RESULT_FILE_NAME.length())));
+			}
+			// the entry is evicted last if it is used, its time to live is not extended
+			if (isRestored && !entry.setLastModified(System.currentTimeMillis())) {
+				LOGGER.debug("Could not update the last modified time of " + entry.getAbsolutePath());
+			}
+			return isRestored;
+		} catch (IOException e) {
+			LOGGER.warn("Could not restore the cached validation result of " + metadata.getName(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Copies the files saved by the validator for the metadata, that is the files in dir.validationresult with the
+	 * same name except for the extensions, to the entry, with the time it was stored. The entry is first written under
+	 * another name, so that an incomplete entry is never used.
+	 */
+	private void store(File entry, File metadata) {
+		List<File> resultFiles = getResultFiles(metadata);
+		if (resultFiles.isEmpty()) {
+			LOGGER.debug("No validation result to cache for " + metadata.getName());
+			return;
+		}
+		File temporaryEntry = new File(cacheDirectory,
+				entry.getName() + "-" + Thread.currentThread().getId() + TEMPORARY_SUFFIX);
+		long entrySize = 0;
+		try {
+			FileUtils.deleteDirectory(temporaryEntry);
+			for (File resultFile : resultFiles) {
+				// keeps the extensions, for example .xml.gz
+				String extensions = resultFile.getName().substring(Utils.getBaseName(resultFile.getName()).length());
+				FileUtils.copyFile(resultFile, new File(temporaryEntry, RESULT_FILE_NAME + extensions));
+				entrySize += resultFile.length();
+			}
+			FileUtils.touch(new File(temporaryEntry, STORED_FILE_NAME));
+			if (!isValid(entry)) {
+				FileUtils.deleteQuietly(entry);
+				Files.move(temporaryEntry.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				if (sizeBytes.addAndGet(entrySize) > maxSizeBytes) {
+					evict(true);
+				}
+			}
+		} catch (IOException e) {
+			// also when another thread has just stored the result of identical metadata
+			if (!isValid(entry)) {
+				LOGGER.warn("Could not cache the validation result of " + metadata.getName(), e);
+			}
+		} finally {
+			FileUtils.deleteQuietly(temporaryEntry);
+		}
+	}
+
+	private List<File> getResultFiles(File metadata) {
+		String baseName = FilenameUtils.removeExtension(metadata.getName());
+		List<File> resultFiles = new ArrayList<>();
+		File[] files = outputDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && baseName.equals(Utils.getBaseName(file.getName()))) {
+					resultFiles.add(file);
+				}
+			}
+		}
+		return resultFiles;
+	}
+
+	/**
+	 * Removes the entries that have expired and then the least recently used entries until the cache is no larger
+	 * than the maximum size.
+	 *
+	 * @param isRunning true while results are being stored: the temporary entries are then kept, and the cache is
+	 *            reduced to 90% of the maximum size, so that not every following store evicts again. Otherwise
+	 *            left-over temporary entries are removed
+	 */
+	private void evict(boolean isRunning) {
+		evictionLock.lock();
+		try {
+			evictEntries(isRunning, isRunning ? maxSizeBytes / 10 * 9 : maxSizeBytes);
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private void evictEntries(boolean isRunning, long maxSize) {
+		File[] entries = cacheDirectory.listFiles();
+		if (entries == null) {
+			return;
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+
+			@Override
+			public int compare(File file1, File file2) {
+				return Long.compare(file2.lastModified(), file1.lastModified());
+			}
+		});
+		long size = 0;
+		int numberOfEntries = 0;
+		int numberOfEvictedEntries = 0;
+		for (File entry : entries) {
+			if (entry.getName().endsWith(TEMPORARY_SUFFIX)) {
+				if (!isRunning) {
+					FileUtils.deleteQuietly(entry);
+					numberOfEvictedEntries++;
+				}
+			} else {
+				// an expired entry is not measured, as it may be replaced by a store meanwhile
+				long entrySize = isValid(entry) ? FileUtils.sizeOf(entry) : Long.MAX_VALUE;
+				if (entrySize > maxSize - size) {
+					FileUtils.deleteQuietly(entry);
+					numberOfEvictedEntries++;
+				} else {
+					size += entrySize;
+					numberOfEntries++;
+				}
+			}
+		}
+		sizeBytes.set(size);
+		LOGGER.info("Validation cache " + cacheDirectory.getAbsolutePath() + ": " + numberOfEntries + " entries, "
+				+ FileUtils.byteCountToDisplaySize(size) + ", removed " + numberOfEvictedEntries + " entries");
+	}
+
+	private String createKey(File metadata) throws MetadataValidatorException {
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+			messageDigest.update(validator.getValidationSettings().getBytes(StandardCharsets.UTF_8));
+			messageDigest.update((byte) 0);
+			updateWithCanonicalizedMetadata(messageDigest, metadata);
+			return BaseEncoding.base16().lowerCase().encode(messageDigest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new MetadataValidatorException(e);
+		}
+	}
+
+	/**
+	 * Hashes the document in a canonical form, so that differences that do not matter to a validator do not cause
+	 * a miss: the encoding, namespace prefixes, the order of attributes, whitespace between elements, comments and
+	 * processing instructions. csw:SearchStatus is skipped, as its timestamp differs for every retrieval.
+	 */
+	private void updateWithCanonicalizedMetadata(MessageDigest messageDigest, File metadata)
+			throws MetadataValidatorException {
+		InputStream inputStream = null;
+		XMLStreamReader xmlStreamReader = null;
+		try {
+			inputStream = FileUtils.openInputStream(metadata);
+			xmlStreamReader = xmlInputFactory.createXMLStreamReader(inputStream);
+			while (xmlStreamReader.hasNext()) {
+				switch (xmlStreamReader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					if (NS_CSW_2_0_2.equals(xmlStreamReader.getNamespaceURI())
+							&& "SearchStatus".equals(xmlStreamReader.getLocalName())) {
+						skipElement(xmlStreamReader);
+					} else {
+						update(messageDigest, '<', StringUtils.defaultString(xmlStreamReader.getNamespaceURI()),
+								xmlStreamReader.getLocalName());
+						Map<String, String> attributes = new TreeMap<>();
+						for (int i = 0; i < xmlStreamReader.getAttributeCount(); i++) {
+							attributes.put(StringUtils.defaultString(xmlStreamReader.getAttributeNamespace(i)) + " "
+									+ xmlStreamReader.getAttributeLocalName(i), xmlStreamReader.getAttributeValue(i));
+						}
+						for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+							update(messageDigest, '@', attribute.getKey(), attribute.getValue());
+						}
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					update(messageDigest, '>');
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					if (!xmlStreamReader.isWhiteSpace()) {
+						update(messageDigest, '"', xmlStreamReader.getText().trim());
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		} catch (IOException | XMLStreamException e) {
+			throw new MetadataValidatorException("Could not read " + metadata.getAbsolutePath(), e);
+		} finally {
+			if (xmlStreamReader != null) {
+				try {
+					xmlStreamReader.close();
+				} catch (XMLStreamException e) {
+					LOGGER.debug("Ignoring exception", e);
+				}
+			}
+			IOUtils.closeQuietly(inputStream);
+		}
+	}
+
+	private void skipElement(XMLStreamReader xmlStreamReader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = xmlStreamReader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Every value is followed by a 0 byte, so that different sequences of values never produce the same input.
+	 */
+	private void update(MessageDigest messageDigest, char type, String... values) {
+		messageDigest.update((byte) type);
+		for (String value : values) {
+			messageDigest.update(value.getBytes(StandardCharsets.UTF_8));
+			messageDigest.update((byte) 0);
+		}
+	}
+
+}
@@ -2,26 +2,46 @@ package dk.geodatainfo.metadatavalidator.validator.etf;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.apache.commons.io.output.FileWriterWithEncoding;
-import org.apache.commons.lang3.NotImplementedException;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.ParseException;
 import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.entity.EntityBuilder;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.FileBody;
@@ -37,42 +57,285 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-
+import com.google.common.base.Functions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import dk.geodatainfo.metadatavalidator.utils.RetryPolicy;
 import dk.geodatainfo.metadatavalidator.utils.Utils;
 import dk.geodatainfo.metadatavalidator.validator.AbstractMetadataValidator;
+import dk.geodatainfo.metadatavalidator.validator.DelayCounter;
+import dk.geodatainfo.metadatavalidator.validator.EndpointHealth;
 import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
 
-public class ETFClient extends AbstractMetadataValidator {
+public class ETFClient extends AbstractMetadataValidator implements DelayCounter {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(ETFClient.class);
+	private static final String DEFAULT_METADATA_TEST_SUITE_ID = "EID9a31ecfc-6673-43c0-9a31-b4595fb53a98";
+	private static final ContentType XML_CONTENT_TYPE = ContentType.create("application/xml", "UTF-8");
+	private static final ContentType ZIP_CONTENT_TYPE = ContentType.create("application/zip");
+	private static final String JSON = "json";
+	private static final Set<String> REPORT_FORMATS = ImmutableSet.of("html", JSON, "xml");
 
 	private CloseableHttpClient httpClient;
 
 	private File outputDirectory;
 
+	private final String metadataTestSuiteId;
+
+	private final EndpointHealth endpointHealth;
+
+	private TestRunPoller testRunPoller;
+
+	private TestObjectBatcher testObjectBatcher;
+
+	private ScheduledExecutorService lingerExecutorService;
+
+	private ExecutorService batchExecutorService;
+
+	private final Set<String> reportFormats;
+
+	private final ListeningExecutorService reportExecutorService;
+
+	private RetryPolicy retryPolicy;
+
 	public ETFClient(PropertiesConfiguration config) throws MetadataValidatorException {
 		super(config);
-		httpClient = HttpClients.createDefault();
+		int maxConnections = config.getInt("validator.etf.maxconnections", 20);
+		httpClient = HttpClients.custom().setMaxConnTotal(maxConnections).setMaxConnPerRoute(maxConnections).build();
+		reportFormats = createReportFormats(config);
+		reportExecutorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+				config.getInt("validator.etf.reportthreads", 4),
+				new ThreadFactoryBuilder().setNameFormat("ETF-Report-%d").setDaemon(true).build()));
+		metadataTestSuiteId = config.getString("validator.etf.testsuite", DEFAULT_METADATA_TEST_SUITE_ID);
+		endpointHealth = new EndpointHealth(getEndpoint(), new EndpointHealth.Heartbeat() {
+
+			@Override
+			public void check() throws IOException {
+				validateEndPointIsUpAndRunning();
+			}
+		}, config);
 		try {
 			outputDirectory = Utils.getDirFromConfig(config, "dir.validationresult",
 					"The location of the directory that will contain the validation results must be provided");
+			retryPolicy = new RetryPolicy(getEndpoint(), config, "validator.retry");
+			if (config.getBoolean("validator.etf.scheduledpolling", false)) {
+				testRunPoller = new TestRunPoller(this, config);
+			}
+			int batchSize = config.getInt("validator.etf.batchsize", 1);
+			if (batchSize > 1) {
+				lingerExecutorService = Executors.newSingleThreadScheduledExecutor(
+						new ThreadFactoryBuilder().setNameFormat("ETF-Linger-%d").setDaemon(true).build());
+				// unbounded, as without scheduled polling a thread waits for the whole test run of its batch
+				batchExecutorService = Executors.newCachedThreadPool(
+						new ThreadFactoryBuilder().setNameFormat("ETF-Batch-%d").setDaemon(true).build());
+				long lingerMillis = TimeUnit.SECONDS.toMillis(config.getLong("validator.etf.batchlinger", 5L));
+				testObjectBatcher = new TestObjectBatcher(this, batchSize, lingerMillis, lingerExecutorService,
+						batchExecutorService);
+			}
 		} catch (ConfigurationException e) {
 			throw new MetadataValidatorException(e);
 		}
 	}
 
+	/**
+	 * validator.etf.reportformats is a comma separated list of html, json and xml, by default html,json. The reports
+	 * are downloaded by validator.etf.reportthreads threads (default 4).
+	 */
+	private Set<String> createReportFormats(PropertiesConfiguration config) throws MetadataValidatorException {
+		Set<String> formats = new LinkedHashSet<>();
+		for (String format : StringUtils.split(config.getString("validator.etf.reportformats", "html,json"), ", ")) {
+			String lowerCaseFormat = format.toLowerCase(Locale.ROOT);
+			if (!REPORT_FORMATS.contains(lowerCaseFormat)) {
+				throw new MetadataValidatorException(new ConfigurationException("Unknown report format " + format
+						+ " in validator.etf.reportformats, use one of " + REPORT_FORMATS));
+			}
+			formats.add(lowerCaseFormat);
+		}
+		if (formats.isEmpty()) {
+			throw new MetadataValidatorException(
+					new ConfigurationException("At least one format must be given in validator.etf.reportformats"));
+		}
+		return formats;
+	}
+
 	@Override
 	public void sendRequestToURLEndpointAndSaveResults(File file)
 			throws MetadataValidatorException, ConfigurationException {
+		if (testObjectBatcher != null) {
+			Futures.getChecked(testObjectBatcher.add(file), MetadataValidatorException.class);
+			return;
+		}
 		try {
-			validateEndPointIsUpAndRunning();
-			String testObjectId = uploadMetadata(file);
-			String testRunId = startTestRun(file, testObjectId);
+			String testRunId = uploadAndStartTestRun(file, XML_CONTENT_TYPE, file.getName());
 			waitForTestRunToFinish(testRunId);
-			getAndSaveTestReport(file.getName(), testRunId);
+			getAndSaveTestReport(outputDirectory, file.getName(), testRunId);
+		} catch (IOException e) {
+			throw new MetadataValidatorException(e);
+		}
+	}
+
+	/**
+	 * With validator.etf.scheduledpolling the test run is started in the calling thread and then left to the
+	 * {@link TestRunPoller}. When the test run has finished the reports are downloaded by the report threads, so that
+	 * the polling threads only poll.
+	 */
+	@Override
+	public ListenableFuture<Void> startValidation(final File file)
+			throws MetadataValidatorException, ConfigurationException {
+		if (testObjectBatcher != null) {
+			return testObjectBatcher.add(file);
+		}
+		if (testRunPoller == null) {
+			return super.startValidation(file);
+		}
+		final String testRunId;
+		try {
+			testRunId = uploadAndStartTestRun(file, XML_CONTENT_TYPE, file.getName());
 		} catch (IOException e) {
 			throw new MetadataValidatorException(e);
 		}
+		AsyncFunction<Void, Void> saveTestReport = new AsyncFunction<Void, Void>() {
+
+			@Override
+			public ListenableFuture<Void> apply(Void input) {
+				return startSavingTestReport(outputDirectory, file.getName(), testRunId, reportFormats);
+			}
+		};
+		return Futures.transformAsync(testRunPoller.waitForTestRun(testRunId), saveTestReport, reportExecutorService);
+	}
+
+	/**
+	 * With validator.etf.batchsize N &gt; 1, up to N files are uploaded together as a zip and validated in one test
+	 * run. A batch is started when it is full or validator.etf.batchlinger seconds (default 5) after its first file.
+	 * The reports of the test run are saved in the directory batches in dir.validationresult, and the JSON report is
+	 * split into a report per file, see {@link TestReportSplitter}. The HTML report is not split. The reports are
+	 * downloaded and split by the report threads.
+	 * <p>
+	 * The test run of a full batch is started in the thread that adds its last file, and that of a batch started after
+	 * lingering in a thread of its own, see {@link TestObjectBatcher}. Without validator.etf.scheduledpolling that
+	 * thread also waits for the test run to finish.
+	 *
+	 * @return future that completes when the reports of all files have been saved
+	 */
+	ListenableFuture<Void> validateBatch(final List<File> files) {
+		final String testRunId;
+		final Map<File, Set<String>> identifiersPerFile = new LinkedHashMap<>();
+		final TestReportSplitter testReportSplitter = new TestReportSplitter();
+		try {
+			for (File file : files) {
+				identifiersPerFile.put(file, testReportSplitter.getIdentifiers(file));
+			}
+			File zipFile = createZipFile(files);
+			try {
+				testRunId = uploadAndStartTestRun(zipFile, ZIP_CONTENT_TYPE, files.size() + " files");
+			} finally {
+				FileUtils.deleteQuietly(zipFile);
+			}
+			if (testRunPoller == null) {
+				waitForTestRunToFinish(testRunId);
+			}
+		} catch (MetadataValidatorException e) {
+			return Futures.immediateFailedFuture(e);
+		} catch (IOException | XMLStreamException e) {
+			return Futures.immediateFailedFuture(new MetadataValidatorException(e));
+		}
+		final File batchDirectory = new File(outputDirectory, "batches");
+		final String fileName = testRunId + ".json";
+		AsyncFunction<Void, Void> saveTestReports = new AsyncFunction<Void, Void>() {
+
+			@Override
+			public ListenableFuture<Void> apply(Void input) throws MetadataValidatorException {
+				try {
+					FileUtils.forceMkdir(batchDirectory);
+				} catch (IOException e) {
+					throw new MetadataValidatorException(e);
+				}
+				// the JSON report is needed to split it
+				Set<String> formats = new LinkedHashSet<>(reportFormats);
+				formats.add(JSON);
+				return startSavingTestReport(batchDirectory, fileName, testRunId, formats);
+			}
+		};
+		AsyncFunction<Void, Void> splitTestReport = new AsyncFunction<Void, Void>() {
+
+			@Override
+			public ListenableFuture<Void> apply(Void input) throws MetadataValidatorException {
+				try {
+					testReportSplitter.split(new File(batchDirectory, fileName), identifiersPerFile, outputDirectory);
+				} catch (IOException e) {
+					throw new MetadataValidatorException(e);
+				}
+				LOGGER.info("Saved the reports of test run " + testRunId + " for " + files);
+				return Futures.immediateFuture(null);
+			}
+		};
+		ListenableFuture<Void> testRunFinished = testRunPoller == null ? Futures.<Void> immediateFuture(null)
+				: testRunPoller.waitForTestRun(testRunId);
+		return Futures.transformAsync(Futures.transformAsync(testRunFinished, saveTestReports, reportExecutorService),
+				splitTestReport, reportExecutorService);
+	}
+
+	private File createZipFile(List<File> files) throws IOException {
+		File zipFile = File.createTempFile("metadata", ".zip");
+		ZipOutputStream zipOutputStream = new ZipOutputStream(FileUtils.openOutputStream(zipFile));
+		try {
+			for (File file : files) {
+				zipOutputStream.putNextEntry(new ZipEntry(file.getName()));
+				FileUtils.copyFile(file, zipOutputStream);
+				zipOutputStream.closeEntry();
+			}
+		} finally {
+			IOUtils.closeQuietly(zipOutputStream);
+		}
+		return zipFile;
+	}
+
+	/**
+	 * Waits while the endpoint is unavailable, see {@link EndpointHealth}. A failed upload or start counts as a
+	 * failure of the endpoint.
+	 *
+	 * @return id of the test run
+	 */
+	private String uploadAndStartTestRun(File file, ContentType contentType, String name)
+			throws MetadataValidatorException, IOException {
+		endpointHealth.awaitAvailable();
+		boolean isAvailable = false;
+		try {
+			String testObjectId = uploadMetadata(file, contentType);
+			String testRunId = startTestRun(name, testObjectId);
+			isAvailable = true;
+			return testRunId;
+		} finally {
+			if (isAvailable) {
+				endpointHealth.recordSuccess();
+			} else {
+				endpointHealth.recordFailure();
+			}
+		}
+	}
+
+	/**
+	 * Sends the request, and sends it again if it fails for a transient reason, see {@link RetryPolicy} and the
+	 * settings validator.retry.*. Creating a test object or a test run is not idempotent, it has a smaller budget.
+	 */
+	private <T> T execute(final HttpUriRequest request, final ResponseHandler<T> responseHandler,
+			boolean isIdempotent) throws IOException {
+		return retryPolicy.call(request.getMethod() + " " + request.getURI(), isIdempotent, IOException.class,
+				new RetryPolicy.Attempt<T, IOException>() {
+
+					@Override
+					public T run() throws IOException {
+						return httpClient.execute(request, responseHandler);
+					}
+				});
 	}
 
 	public boolean validateEndPointIsUpAndRunning() throws ClientProtocolException, IOException {
@@ -94,7 +357,7 @@ public class ETFClient extends AbstractMetadataValidator {
 				case 503:
 					throw new ClientProtocolException("Service is down");
 				default:
-					throw new ClientProtocolException(
+					throw new HttpResponseException(statusCode,
 							"Unexpected response " + statusCode + " " + response.getStatusLine().getReasonPhrase());
 
 				}
@@ -103,8 +366,9 @@ public class ETFClient extends AbstractMetadataValidator {
 		return httpClient.execute(httpHead, responseHandler);
 	}
 
-	private String uploadMetadata(File file) throws MetadataValidatorException, ClientProtocolException, IOException {
-		HttpPost postUploadTestObject = createPostTestObject(file);
+	private String uploadMetadata(File file, ContentType contentType)
+			throws MetadataValidatorException, ClientProtocolException, IOException {
+		HttpPost postUploadTestObject = createPostTestObject(file, contentType);
 		ResponseHandler<String> responseHandler = new ResponseHandler<String>() {
 
 			@Override
@@ -119,7 +383,7 @@ public class ETFClient extends AbstractMetadataValidator {
 				case 413:
 					throw new ClientProtocolException("Uploaded test data are too large");
 				default:
-					throw new ClientProtocolException(
+					throw new HttpResponseException(statusCode,
 							"Unexpected response " + statusCode + " " + response.getStatusLine().getReasonPhrase());
 				}
 			}
@@ -134,11 +398,15 @@ public class ETFClient extends AbstractMetadataValidator {
 				return testObjectId;
 			}
 		};
-		return httpClient.execute(postUploadTestObject, responseHandler);
+		return execute(postUploadTestObject, responseHandler, false);
 	}
 
-	private String startTestRun(File file, String testObjectId) throws IOException, ClientProtocolException {
-		HttpPost postStartTestRun = createPostStartTestRun(file, testObjectId);
+	/**
+	 * @param name
+	 *            name of the uploaded file, used in the label of the test run
+	 */
+	private String startTestRun(String name, String testObjectId) throws IOException, ClientProtocolException {
+		HttpPost postStartTestRun = createPostStartTestRun(name, testObjectId);
 		ResponseHandler<String> responseHandler = new ResponseHandler<String>() {
 
 			@Override
@@ -159,9 +427,9 @@ public class ETFClient extends AbstractMetadataValidator {
 				case 409:
 					throw new ClientProtocolException("Test Object already in use: " + entityContent);
 				case 500:
-					throw new ClientProtocolException("Internal error: " + entityContent);
+					throw new HttpResponseException(statusCode, "Internal error: " + entityContent);
 				default:
-					throw new ClientProtocolException(
+					throw new HttpResponseException(statusCode,
 							"Unexpected response " + statusCode + " " + response.getStatusLine().getReasonPhrase());
 				}
 			}
@@ -175,60 +443,60 @@ public class ETFClient extends AbstractMetadataValidator {
 			}
 
 		};
-		return httpClient.execute(postStartTestRun, responseHandler);
+		return execute(postStartTestRun, responseHandler, false);
 	}
 
 	private void waitForTestRunToFinish(String testRunId) throws ClientProtocolException, IOException {
+		boolean testRunHasFinished = false;
+		do {
+			try {
+				LOGGER.info("Waiting for test run to finish...");
+				Thread.sleep(10 * 1000); // wait 10 seconds
+				testRunHasFinished = getTestRunProgress(testRunId).isFinished();
+			} catch (InterruptedException e) {
+				// https://www.ibm.com/developerworks/java/library/j-jtp05236/index.html
+				Thread.currentThread().interrupt();
+			}
+		} while (!testRunHasFinished);
+		LOGGER.info("Test run finished");
+	}
+
+	TestRunProgress getTestRunProgress(String testRunId) throws ClientProtocolException, IOException {
 		HttpGet getProgressStatus = new HttpGet(getEndpoint() + "/v2/TestRuns/" + testRunId + "/progress");
-		ResponseHandler<Boolean> responseHandler = new ResponseHandler<Boolean>() {
+		ResponseHandler<TestRunProgress> responseHandler = new ResponseHandler<TestRunProgress>() {
 
 			@Override
-			public Boolean handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+			public TestRunProgress handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
 				int statusCode = response.getStatusLine().getStatusCode();
 				switch (statusCode) {
 				case 200:
 					String entityContent = EntityUtils.toString(response.getEntity(), Charset.forName("UTF-8"));
 					LOGGER.debug(entityContent);
 					JsonNode node = new ObjectMapper().readValue(entityContent, JsonNode.class);
-					int max = node.get("max").asInt();
-					int val = node.get("val").asInt();
-					boolean isFinished = val < max ? false : true;
-					return isFinished;
+					return new TestRunProgress(node.get("val").asInt(), node.get("max").asInt());
 				case 404:
 					throw new ClientProtocolException("Test Run not found");
 				default:
-					throw new ClientProtocolException(
+					throw new HttpResponseException(statusCode,
 							"Unexpected response " + statusCode + " " + response.getStatusLine().getReasonPhrase());
 				}
 			}
 		};
-		boolean testRunHasFinished = false;
-		do {
-			try {
-				LOGGER.info("Waiting for test run to finish...");
-				Thread.sleep(10 * 1000); // wait 10 seconds
-				testRunHasFinished = httpClient.execute(getProgressStatus, responseHandler);
-			} catch (InterruptedException e) {
-				// https://www.ibm.com/developerworks/java/library/j-jtp05236/index.html
-				Thread.currentThread().interrupt();
-			}
-		} while (!testRunHasFinished);
-		LOGGER.info("Test run finished");
+		return execute(getProgressStatus, responseHandler, true);
 	}
 
-	private HttpPost createPostStartTestRun(File file, String testObjectId) throws IOException {
+	private HttpPost createPostStartTestRun(String name, String testObjectId) throws IOException {
 		HttpPost postStartTestRun;
 		postStartTestRun = new HttpPost(getEndpoint() + "/v2/TestRuns");
 		postStartTestRun.addHeader("Accept", "application/json");
 		postStartTestRun.addHeader("Content-Type", "application/json");
 		HttpEntity entity;
-		entity = EntityBuilder.create().setText(createRunRequestJson(file.getName(), testObjectId)).build();
+		entity = EntityBuilder.create().setText(createRunRequestJson(name, testObjectId)).build();
 		postStartTestRun.setEntity(entity);
 		return postStartTestRun;
 	}
 
 	private String createRunRequestJson(String fileName, String testObjectId) throws IOException {
-		String metadataTestSuiteID = "EID9a31ecfc-6673-43c0-9a31-b4595fb53a98";
 		JsonFactory jsonFactory = new JsonFactory();
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		String runRequest = null;
@@ -236,7 +504,7 @@ public class ETFClient extends AbstractMetadataValidator {
 		generator.writeStartObject();
 		generator.writeStringField("label", "Metadata validation - " + fileName + " - " + LocalDateTime.now());
 		generator.writeArrayFieldStart("executableTestSuiteIds");
-		generator.writeString(metadataTestSuiteID);
+		generator.writeString(metadataTestSuiteId);
 		generator.writeEndArray();
 		generator.writeObjectFieldStart("arguments");
 		generator.writeStringField("files_to_test", ".*");
@@ -252,86 +520,171 @@ public class ETFClient extends AbstractMetadataValidator {
 		return runRequest;
 	}
 
-	private HttpPost createPostTestObject(File file) {
+	private HttpPost createPostTestObject(File file, ContentType contentType) {
 		HttpPost postTestObject;
 		postTestObject = new HttpPost(getEndpoint() + "/v2/TestObjects");
 		postTestObject.addHeader("Accept", "application/json");
-		FileBody fileBody = new FileBody(file, ContentType.create("application/xml", "UTF-8"));
+		FileBody fileBody = new FileBody(file, contentType);
 		HttpEntity requestEntity = MultipartEntityBuilder.create().addTextBody("action", "upload")
 				.addPart("fileupload", fileBody).build();
 		postTestObject.setEntity(requestEntity);
 		return postTestObject;
 	}
 
-	private void getAndSaveTestReport(String fileName, String testRunId) throws ClientProtocolException, IOException {
-		HttpGet getTestReportHtml = new HttpGet(getEndpoint() + "/v2/TestRuns/" + testRunId + ".html?download=true");
-		HttpGet getTestReportJson = new HttpGet(getEndpoint() + "/v2/TestRuns/" + testRunId + ".json?download=true");
-		ResponseHandler<Boolean> responseHandler = new ResponseHandler<Boolean>() {
+	/**
+	 * Downloads the reports in the formats of validator.etf.reportformats at the same time and saves them in the
+	 * directory as &lt;fileName without extension&gt;.&lt;format&gt;. The responses are streamed to the files.
+	 */
+	private void getAndSaveTestReport(File directory, String fileName, String testRunId)
+			throws ClientProtocolException, IOException {
+		getAndSaveTestReport(directory, fileName, testRunId, reportFormats);
+	}
+
+	private void getAndSaveTestReport(File directory, String fileName, String testRunId, Set<String> formats)
+			throws ClientProtocolException, IOException {
+		ListenableFuture<Void> downloads = startSavingTestReport(directory, fileName, testRunId, formats);
+		try {
+			downloads.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading the reports of test run " + testRunId, e);
+		} catch (ExecutionException e) {
+			Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+			Throwables.throwIfUnchecked(e.getCause());
+			throw new IOException(e.getCause());
+		} finally {
+			downloads.cancel(true);
+		}
+	}
+
+	/**
+	 * Starts the downloads of the reports by the report threads, without waiting for them. When one of them fails the
+	 * others are cancelled.
+	 *
+	 * @return future that completes when all reports have been saved
+	 */
+	private ListenableFuture<Void> startSavingTestReport(File directory, String fileName, String testRunId,
+			Set<String> formats) {
+		final List<ListenableFuture<Void>> downloads = new ArrayList<>();
+		for (String format : formats) {
+			File outputFile = new File(directory,
+					FilenameUtils.removeExtension(fileName) + FilenameUtils.EXTENSION_SEPARATOR + format);
+			downloads.add(reportExecutorService.submit(new ReportDownloadCallable(testRunId, format, outputFile)));
+		}
+		ListenableFuture<List<Void>> allDownloads = Futures.allAsList(downloads);
+		Futures.addCallback(allDownloads, new FutureCallback<List<Void>>() {
 
 			@Override
-			public Boolean handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
-				int statusCode = response.getStatusLine().getStatusCode();
-				switch (statusCode) {
-				case 200:
-				case 202:
-					saveReport(response.getEntity());
-					return true;
-				case 404:
-					throw new ClientProtocolException("Test Run does not exist");
-				case 406:
-					throw new ClientProtocolException("Test Run not finished yet");
-				default:
-					throw new ClientProtocolException(
-							"Unexpected response " + statusCode + " " + response.getStatusLine().getReasonPhrase());
+			public void onSuccess(List<Void> result) {
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				for (Future<Void> download : downloads) {
+					download.cancel(true);
 				}
 			}
+		}, MoreExecutors.directExecutor());
+		return Futures.transform(allDownloads, Functions.<Void> constant(null), MoreExecutors.directExecutor());
+	}
 
-			private void saveReport(HttpEntity entity) throws ParseException, IOException {
-				FileWriterWithEncoding fileWriterWithEncoding = null;
-				String fileNameWithoutExtension = FilenameUtils.removeExtension(fileName);
-				String fileNameWithCorrectExtension;
-				try {
-					String mimeType = ContentType.getOrDefault(entity).getMimeType();
-					switch (mimeType) {
-					case "text/xml":
-					case "applicaton/xml":
-						fileNameWithCorrectExtension = fileNameWithoutExtension + ".xml";
-						break;
-					case "text/html":
-						fileNameWithCorrectExtension = fileNameWithoutExtension + ".html";
-						break;
-					case "application/json":
-						fileNameWithCorrectExtension = fileNameWithoutExtension + ".json";
-						break;
-					default:
-						throw new IllegalArgumentException("Unexpected mime type " + mimeType);
+	private class ReportDownloadCallable implements Callable<Void> {
+
+		private final String testRunId;
+		private final String format;
+		private final File outputFile;
 
+		public ReportDownloadCallable(String testRunId, String format, File outputFile) {
+			this.testRunId = testRunId;
+			this.format = format;
+			this.outputFile = outputFile;
+		}
+
+		@Override
+		public Void call() throws ClientProtocolException, IOException {
+			HttpGet getTestReport = new HttpGet(
+					getEndpoint() + "/v2/TestRuns/" + testRunId + "." + format + "?download=true");
+			ResponseHandler<Void> responseHandler = new ResponseHandler<Void>() {
+
+				@Override
+				public Void handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+					int statusCode = response.getStatusLine().getStatusCode();
+					switch (statusCode) {
+					case 200:
+					case 202:
+						saveReport(response.getEntity());
+						return null;
+					case 404:
+						throw new ClientProtocolException("Test Run does not exist");
+					case 406:
+						throw new ClientProtocolException("Test Run not finished yet");
+					default:
+						throw new HttpResponseException(statusCode,
+								"Unexpected response " + statusCode + " " + response.getStatusLine().getReasonPhrase());
 					}
+				}
 
-					String entityContent = EntityUtils.toString(entity, "UTF-8");
-					File outputFile = new File(outputDirectory, fileNameWithCorrectExtension);
+				/**
+				 * The report is saved as it is sent, in its own encoding.
+				 */
+				private void saveReport(HttpEntity entity) throws IOException {
+					if (entity == null) {
+						throw new ClientProtocolException("The response does not contain a report");
+					}
 					LOGGER.info("Start writing result to " + outputFile.getAbsolutePath());
-					fileWriterWithEncoding = new FileWriterWithEncoding(outputFile, "UTF-8");
-					fileWriterWithEncoding.write(entityContent);
+					OutputStream outputStream = FileUtils.openOutputStream(outputFile);
+					try {
+						entity.writeTo(outputStream);
+					} finally {
+						IOUtils.closeQuietly(outputStream);
+					}
 					LOGGER.info("Finished writing result to " + outputFile.getAbsolutePath());
-				} finally {
-					IOUtils.closeQuietly(fileWriterWithEncoding);
 				}
 
-			}
+			};
+			execute(getTestReport, responseHandler, true);
+			return null;
+		}
 
-		};
-		httpClient.execute(getTestReportHtml, responseHandler);
-		httpClient.execute(getTestReportJson, responseHandler);
 	}
 
+	/**
+	 * Summarizes the JSON reports in dir.validationresult, see {@link TestReportAggregator}. The reports are read by
+	 * validator.etf.aggregatorthreads threads, by default one per processor.
+	 */
 	@Override
-	public File createReport() {
-		throw new NotImplementedException("Creating a validation report is not yet implemented");
+	public File createReport() throws MetadataValidatorException {
+		LOGGER.info("Creating report");
+		int threads = config.getInt("validator.etf.aggregatorthreads", Runtime.getRuntime().availableProcessors());
+		try {
+			return new TestReportAggregator(threads).createReport(outputDirectory);
+		} catch (IOException e) {
+			throw new MetadataValidatorException("Report could not be created", e);
+		}
+	}
+
+	@Override
+	public long getNumberOfDelays() {
+		return retryPolicy.getNumberOfRetries() + endpointHealth.getNumberOfWaits();
+	}
+
+	@Override
+	public String getValidationSettings() {
+		return "etf " + getEndpoint() + " " + metadataTestSuiteId + " " + reportFormats;
 	}
 
 	@Override
 	public void shutDown() {
+		if (testRunPoller != null) {
+			testRunPoller.shutDown();
+		}
+		if (lingerExecutorService != null) {
+			lingerExecutorService.shutdownNow();
+		}
+		if (batchExecutorService != null) {
+			batchExecutorService.shutdownNow();
+		}
+		reportExecutorService.shutdownNow();
 		IOUtils.closeQuietly(httpClient);
 	}
 
@@ -0,0 +1,113 @@
+package dk.geodatainfo.metadatavalidator.validator.etf;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Collects the files to validate into batches that are validated in one test run, see
+ * {@link ETFClient#validateBatch(List)}. A batch is validated when it has batchSize files or, if fewer files arrive,
+ * lingerMillis after its first file was added. A full batch is validated in the thread that adds its last file. A batch
+ * that has waited long enough is handed by the scheduler to the batch executor, so that the scheduler is never
+ * blocked by a validation and the linger of the other batches is kept.
+ * <p>
+ * Thread-safe.
+ */
+class TestObjectBatcher {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TestObjectBatcher.class);
+
+	private final ETFClient etfClient;
+	private final int batchSize;
+	private final long lingerMillis;
+	private final ScheduledExecutorService scheduledExecutorService;
+	private final Executor batchExecutor;
+	private List<File> files = new ArrayList<>();
+	private List<SettableFuture<Void>> validations = new ArrayList<>();
+	private ScheduledFuture<?> scheduledValidation;
+
+	TestObjectBatcher(ETFClient etfClient, int batchSize, long lingerMillis,
+			ScheduledExecutorService scheduledExecutorService, Executor batchExecutor) {
+		this.etfClient = etfClient;
+		this.batchSize = batchSize;
+		this.lingerMillis = lingerMillis;
+		this.scheduledExecutorService = scheduledExecutorService;
+		this.batchExecutor = batchExecutor;
+	}
+
+	/**
+	 * @return future that completes when the results of the batch with the file have been saved
+	 */
+	ListenableFuture<Void> add(File file) {
+		SettableFuture<Void> validation = SettableFuture.create();
+		boolean isFull;
+		synchronized (this) {
+			files.add(file);
+			validations.add(validation);
+			isFull = files.size() >= batchSize;
+			if (files.size() == 1 && !isFull) {
+				scheduledValidation = scheduledExecutorService.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						startLingeredBatch();
+					}
+				}, lingerMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (isFull) {
+			validateBatch();
+		}
+		return validation;
+	}
+
+	private void startLingeredBatch() {
+		try {
+			batchExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					validateBatch();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("Not validating the lingered batch, the client has been shut down", e);
+		}
+	}
+
+	private void validateBatch() {
+		List<File> batchFiles;
+		List<SettableFuture<Void>> batchValidations;
+		synchronized (this) {
+			if (files.isEmpty()) {
+				// already validated because it became full
+				return;
+			}
+			batchFiles = files;
+			batchValidations = validations;
+			files = new ArrayList<>();
+			validations = new ArrayList<>();
+			if (scheduledValidation != null) {
+				scheduledValidation.cancel(false);
+				scheduledValidation = null;
+			}
+		}
+		LOGGER.info("Validating a batch of " + batchFiles.size() + " files");
+		ListenableFuture<Void> batchValidation = etfClient.validateBatch(batchFiles);
+		for (SettableFuture<Void> validation : batchValidations) {
+			validation.setFuture(batchValidation);
+		}
+	}
+
+}
@@ -0,0 +1,287 @@
+package dk.geodatainfo.metadatavalidator.validator.etf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.FileWriterWithEncoding;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Summarizes the JSON reports of ETF test runs in two CSV files: report.csv with the number of passed, failed,
+ * skipped and other assertion results per report, and report-assertions.csv with these numbers per test assertion
+ * over all reports.
+ * <p>
+ * The reports are read with the streaming parser of Jackson, by several threads at the same time, so only the
+ * counts are kept in memory. The rows are in the order of the file names, whatever the order in which the reports are
+ * read.
+ */
+class TestReportAggregator {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TestReportAggregator.class);
+
+	private static final String TEST_ASSERTION_RESULT = "TestAssertionResult";
+	private static final String TEST_ASSERTION = "TestAssertion";
+
+	private static final int PASSED = 0;
+	private static final int FAILED = 1;
+	private static final int SKIPPED = 2;
+	private static final int OTHER = 3;
+
+	private final JsonFactory jsonFactory = new JsonFactory();
+	private final int threads;
+
+	TestReportAggregator(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @return report.csv in the directory
+	 */
+	File createReport(File directory) throws IOException {
+		List<File> files = new ArrayList<>(FileUtils.listFiles(directory, new String[] { "json" }, false));
+		Collections.sort(files);
+		List<ReportSummary> summaries = summarize(files);
+
+		File report = new File(directory, "report.csv");
+		CSVPrinter csvPrinter = new CSVPrinter(new FileWriterWithEncoding(report, "UTF-8"), CSVFormat.RFC4180);
+		try {
+			csvPrinter.printRecord("Name", "Passed", "Failed", "Skipped", "Other");
+			for (ReportSummary summary : summaries) {
+				int[] total = new int[4];
+				for (int[] counts : summary.countsPerAssertion.values()) {
+					add(total, counts);
+				}
+				csvPrinter.printRecord(summary.name, total[PASSED], total[FAILED], total[SKIPPED], total[OTHER]);
+			}
+		} finally {
+			IOUtils.closeQuietly(csvPrinter);
+		}
+
+		Map<String, int[]> countsPerAssertion = new TreeMap<>();
+		Map<String, String> labels = new LinkedHashMap<>();
+		for (ReportSummary summary : summaries) {
+			for (Map.Entry<String, int[]> entry : summary.countsPerAssertion.entrySet()) {
+				int[] counts = countsPerAssertion.get(entry.getKey());
+				if (counts == null) {
+					counts = new int[4];
+					countsPerAssertion.put(entry.getKey(), counts);
+				}
+				add(counts, entry.getValue());
+			}
+			for (Map.Entry<String, String> entry : summary.labels.entrySet()) {
+				if (!labels.containsKey(entry.getKey())) {
+					labels.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		File assertionReport = new File(directory, "report-assertions.csv");
+		csvPrinter = new CSVPrinter(new FileWriterWithEncoding(assertionReport, "UTF-8"), CSVFormat.RFC4180);
+		try {
+			csvPrinter.printRecord("Test assertion", "Label", "Passed", "Failed", "Skipped", "Other");
+			for (Map.Entry<String, int[]> entry : countsPerAssertion.entrySet()) {
+				int[] counts = entry.getValue();
+				csvPrinter.printRecord(entry.getKey(), StringUtils.defaultString(labels.get(entry.getKey())),
+						counts[PASSED], counts[FAILED], counts[SKIPPED], counts[OTHER]);
+			}
+		} finally {
+			IOUtils.closeQuietly(csvPrinter);
+		}
+		LOGGER.info("Created " + report.getAbsolutePath() + " and " + assertionReport.getAbsolutePath());
+		return report;
+	}
+
+	private List<ReportSummary> summarize(Collection<File> files) throws IOException {
+		ExecutorService executorService = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setNameFormat("Report-%d").setDaemon(true).build());
+		try {
+			List<Future<ReportSummary>> futures = new ArrayList<>(files.size());
+			for (final File file : files) {
+				futures.add(executorService.submit(new Callable<ReportSummary>() {
+
+					@Override
+					public ReportSummary call() throws IOException {
+						return summarize(file);
+					}
+				}));
+			}
+			List<ReportSummary> summaries = new ArrayList<>(files.size());
+			for (Future<ReportSummary> future : futures) {
+				summaries.add(future.get());
+			}
+			return summaries;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading the reports", e);
+		} catch (ExecutionException e) {
+			Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+			Throwables.throwIfUnchecked(e.getCause());
+			throw new IOException(e.getCause());
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	private ReportSummary summarize(File file) throws IOException {
+		LOGGER.info("Adding " + file.getName() + " to the report");
+		ReportSummary summary = new ReportSummary(FilenameUtils.removeExtension(file.getName()));
+		JsonParser parser = jsonFactory.createParser(file);
+		try {
+			if (parser.nextToken() != null) {
+				readValue(parser, null, summary);
+			}
+		} finally {
+			parser.close();
+		}
+		return summary;
+	}
+
+	/**
+	 * Reads the value the parser is positioned at, looking for assertion results and assertions in it. A single item
+	 * is an object, several items with the same name are an array.
+	 */
+	private void readValue(JsonParser parser, String fieldName, ReportSummary summary) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.START_OBJECT) {
+			if (TEST_ASSERTION_RESULT.equals(fieldName)) {
+				readTestAssertionResult(parser, summary);
+			} else if (TEST_ASSERTION.equals(fieldName)) {
+				readTestAssertion(parser, summary);
+			} else {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					parser.nextToken();
+					readValue(parser, name, summary);
+				}
+			}
+		} else if (token == JsonToken.START_ARRAY) {
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				readValue(parser, fieldName, summary);
+			}
+		}
+	}
+
+	private void readTestAssertionResult(JsonParser parser, ReportSummary summary) throws IOException {
+		String status = null;
+		String assertion = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("status".equals(name)) {
+				status = parser.getValueAsString();
+			} else if ("resultedFrom".equals(name) && token == JsonToken.START_OBJECT) {
+				assertion = readReference(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (assertion != null) {
+			int[] counts = summary.countsPerAssertion.get(assertion);
+			if (counts == null) {
+				counts = new int[4];
+				summary.countsPerAssertion.put(assertion, counts);
+			}
+			counts[getIndex(status)]++;
+		}
+	}
+
+	/**
+	 * @return the id in ref, or else the last part of href
+	 */
+	private String readReference(JsonParser parser) throws IOException {
+		String ref = null;
+		String href = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			parser.nextToken();
+			if ("ref".equals(name)) {
+				ref = parser.getValueAsString();
+			} else if ("href".equals(name)) {
+				href = parser.getValueAsString();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return ref != null ? ref : StringUtils.substringAfterLast(href, "/");
+	}
+
+	private void readTestAssertion(JsonParser parser, ReportSummary summary) throws IOException {
+		String id = null;
+		String label = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			parser.nextToken();
+			if ("id".equals(name)) {
+				id = parser.getValueAsString();
+			} else if ("label".equals(name)) {
+				label = parser.getValueAsString();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (id != null && label != null) {
+			summary.labels.put(id, label);
+		}
+	}
+
+	private int getIndex(String status) {
+		if (status == null) {
+			return OTHER;
+		}
+		switch (status) {
+		case "PASSED":
+		case "PASSED_MANUAL":
+			return PASSED;
+		case "FAILED":
+			return FAILED;
+		case "SKIPPED":
+		case "NOT_APPLICABLE":
+			return SKIPPED;
+		default:
+			return OTHER;
+		}
+	}
+
+	private static void add(int[] total, int[] counts) {
+		for (int i = 0; i < total.length; i++) {
+			total[i] += counts[i];
+		}
+	}
+
+	private static class ReportSummary {
+
+		private final String name;
+		private final Map<String, int[]> countsPerAssertion = new LinkedHashMap<>();
+		private final Map<String, String> labels = new LinkedHashMap<>();
+
+		public ReportSummary(String name) {
+			this.name = name;
+		}
+
+	}
+
+}
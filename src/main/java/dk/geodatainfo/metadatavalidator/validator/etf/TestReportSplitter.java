@@ -0,0 +1,212 @@
+package dk.geodatainfo.metadatavalidator.validator.etf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Splits the JSON report of a test run of several files into a report per file, with the same structure as the report
+ * of a test run of that file only.
+ * <p>
+ * The test suite reports the failures of an assertion as messages, which refer to the file or to the records in it. A
+ * message belongs to a file when one of its arguments has the name of the file or the fileIdentifier of one of its
+ * records as a whole token. In the report of a file, an assertion result only keeps the messages of the file. A failed
+ * assertion without messages of the file has passed for that file only if all its messages belong to other files; a
+ * message that belongs to no file may be about any of them, so the assertion then keeps the status of the batch.
+ * Assertion results without messages, for example passed ones, are kept in every report. The status of the test run
+ * and of the test tasks is that of the batch.
+ */
+class TestReportSplitter {
+
+	private static final String NS_GMD = "http://www.isotc211.org/2005/gmd";
+	private static final String NS_GCO = "http://www.isotc211.org/2005/gco";
+
+	private static final String TEST_ASSERTION_RESULT = "TestAssertionResult";
+	private static final String MESSAGES = "messages";
+	private static final String STATUS = "status";
+	private static final String PASSED = "PASSED";
+	/**
+	 * Separates the tokens of a message argument, for example the path and the name of a file or the fileIdentifiers
+	 * in a list.
+	 */
+	private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[\\s,;()\\[\\]{}<>\"'/\\\\|=]+");
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final XMLInputFactory xmlInputFactory;
+
+	TestReportSplitter() {
+		xmlInputFactory = XMLInputFactory.newInstance();
+		xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * @return the name of the file and the fileIdentifiers of the records in it, by which the messages of the file
+	 *         are recognized
+	 */
+	Set<String> getIdentifiers(File file) throws IOException, XMLStreamException {
+		Set<String> identifiers = new HashSet<>();
+		identifiers.add(file.getName());
+		InputStream inputStream = FileUtils.openInputStream(file);
+		XMLStreamReader xmlStreamReader = xmlInputFactory.createXMLStreamReader(inputStream);
+		try {
+			boolean isInFileIdentifier = false;
+			while (xmlStreamReader.hasNext()) {
+				int event = xmlStreamReader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					if (NS_GMD.equals(xmlStreamReader.getNamespaceURI())
+							&& "fileIdentifier".equals(xmlStreamReader.getLocalName())) {
+						isInFileIdentifier = true;
+					} else if (isInFileIdentifier && NS_GCO.equals(xmlStreamReader.getNamespaceURI())) {
+						String fileIdentifier = StringUtils.trimToNull(xmlStreamReader.getElementText());
+						if (fileIdentifier != null) {
+							identifiers.add(fileIdentifier);
+						}
+						isInFileIdentifier = false;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					isInFileIdentifier = false;
+				}
+			}
+		} finally {
+			xmlStreamReader.close();
+			IOUtils.closeQuietly(inputStream);
+		}
+		return identifiers;
+	}
+
+	/**
+	 * Saves the report of every file in the directory as &lt;file name without extension&gt;.json.
+	 *
+	 * @param identifiersPerFile
+	 *            see {@link #getIdentifiers(File)}
+	 */
+	void split(File batchReport, Map<File, Set<String>> identifiersPerFile, File directory) throws IOException {
+		JsonNode report = objectMapper.readTree(batchReport);
+		Map<String, File> filesByIdentifier = new HashMap<>();
+		for (Map.Entry<File, Set<String>> entry : identifiersPerFile.entrySet()) {
+			for (String identifier : entry.getValue()) {
+				filesByIdentifier.put(identifier, entry.getKey());
+			}
+		}
+		for (File file : identifiersPerFile.keySet()) {
+			JsonNode fileReport = report.deepCopy();
+			keepMessagesOf(fileReport, file, filesByIdentifier);
+			objectMapper.writeValue(new File(directory, FilenameUtils.removeExtension(file.getName()) + ".json"),
+					fileReport);
+		}
+	}
+
+	private void keepMessagesOf(JsonNode node, File file, Map<String, File> filesByIdentifier) {
+		if (node.isObject()) {
+			Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				if (TEST_ASSERTION_RESULT.equals(field.getKey())) {
+					for (JsonNode testAssertionResult : asCollection(field.getValue())) {
+						keepMessagesOfAssertion(testAssertionResult, file, filesByIdentifier);
+					}
+				} else {
+					keepMessagesOf(field.getValue(), file, filesByIdentifier);
+				}
+			}
+		} else if (node.isArray()) {
+			for (JsonNode element : node) {
+				keepMessagesOf(element, file, filesByIdentifier);
+			}
+		}
+	}
+
+	/**
+	 * The messages are in messages.message, which is an object if there is one message and an array otherwise. The
+	 * assertion has only passed for the file if every message could be attributed to another file; otherwise it keeps
+	 * the status of the batch.
+	 */
+	private void keepMessagesOfAssertion(JsonNode testAssertionResult, File file,
+			Map<String, File> filesByIdentifier) {
+		JsonNode messages = testAssertionResult.path(MESSAGES);
+		if (!testAssertionResult.isObject() || messages.isMissingNode()) {
+			return;
+		}
+		ArrayNode fileMessages = objectMapper.createArrayNode();
+		boolean isEveryMessageAttributed = true;
+		for (JsonNode message : asCollection(messages.path("message"))) {
+			Set<File> files = getFilesReferredTo(message, filesByIdentifier);
+			if (files.contains(file)) {
+				fileMessages.add(message);
+			} else if (files.isEmpty()) {
+				isEveryMessageAttributed = false;
+			}
+		}
+		ObjectNode result = (ObjectNode) testAssertionResult;
+		if (fileMessages.size() == 0) {
+			result.remove(MESSAGES);
+			if (isEveryMessageAttributed) {
+				result.put(STATUS, PASSED);
+			}
+		} else {
+			result.putObject(MESSAGES).set("message", fileMessages.size() == 1 ? fileMessages.get(0) : fileMessages);
+		}
+	}
+
+	/**
+	 * A message refers to a file when one of the values of its translation arguments, or the message itself if it is
+	 * text, contains the name of the file or a fileIdentifier of the file as a whole token.
+	 */
+	private Set<File> getFilesReferredTo(JsonNode message, Map<String, File> filesByIdentifier) {
+		Set<File> files = new HashSet<>();
+		List<String> values = new ArrayList<>();
+		if (message.isTextual()) {
+			values.add(message.asText());
+		}
+		for (JsonNode argument : asCollection(message.path("translationArguments").path("argument"))) {
+			values.add(argument.isTextual() ? argument.asText() : argument.path("$").asText());
+		}
+		for (String value : values) {
+			for (String token : TOKEN_SEPARATOR.split(value)) {
+				File file = filesByIdentifier.get(StringUtils.stripEnd(token, ".:"));
+				if (file != null) {
+					files.add(file);
+				}
+			}
+		}
+		return files;
+	}
+
+	private List<JsonNode> asCollection(JsonNode node) {
+		List<JsonNode> elements = new ArrayList<>();
+		if (node.isArray()) {
+			for (JsonNode element : node) {
+				elements.add(element);
+			}
+		} else if (!node.isMissingNode() && !node.isNull()) {
+			elements.add(node);
+		}
+		return elements;
+	}
+
+}
@@ -0,0 +1,124 @@
+package dk.geodatainfo.metadatavalidator.validator.etf;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
+
+/**
+ * Waits for ETF test runs to finish without a thread per test run: the progress of every pending test run is polled by
+ * a scheduled task on one of validator.etf.pollthreads threads (default 2), so any number of test runs can be in
+ * progress at the same time.
+ * <p>
+ * The interval between two polls of a test run is adapted to its progress. When the test run has progressed, the next
+ * poll is scheduled at half the estimated remaining time, based on the time taken so far. When it has not, the
+ * interval is doubled. The interval is always between validator.etf.pollinterval.min (default 2) and
+ * validator.etf.pollinterval.max (default 60) seconds.
+ * <p>
+ * Thread-safe.
+ */
+class TestRunPoller {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TestRunPoller.class);
+
+	private final ETFClient etfClient;
+	private final ScheduledThreadPoolExecutor scheduledExecutorService;
+	private final long minIntervalMillis;
+	private final long maxIntervalMillis;
+
+	TestRunPoller(ETFClient etfClient, PropertiesConfiguration config) throws ConfigurationException {
+		this.etfClient = etfClient;
+		minIntervalMillis = TimeUnit.SECONDS.toMillis(config.getLong("validator.etf.pollinterval.min", 2L));
+		maxIntervalMillis = TimeUnit.SECONDS.toMillis(config.getLong("validator.etf.pollinterval.max", 60L));
+		if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis) {
+			throw new ConfigurationException(
+					"validator.etf.pollinterval.min must be positive and at most validator.etf.pollinterval.max");
+		}
+		scheduledExecutorService = new ScheduledThreadPoolExecutor(config.getInt("validator.etf.pollthreads", 2),
+				new ThreadFactoryBuilder().setNameFormat("ETF-Poll-%d").setDaemon(true).build());
+		scheduledExecutorService.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * @return future that completes in a polling thread when the test run has finished, or fails with a
+	 *         {@link MetadataValidatorException} if the progress could not be polled
+	 */
+	ListenableFuture<Void> waitForTestRun(String testRunId) {
+		SettableFuture<Void> finished = SettableFuture.create();
+		new PollTask(testRunId, finished).schedule(minIntervalMillis);
+		return finished;
+	}
+
+	void shutDown() {
+		scheduledExecutorService.shutdownNow();
+	}
+
+	private class PollTask implements Runnable {
+
+		private final String testRunId;
+		private final SettableFuture<Void> finished;
+		private final long startMillis = System.currentTimeMillis();
+		private long intervalMillis;
+		private int previousVal;
+
+		public PollTask(String testRunId, SettableFuture<Void> finished) {
+			this.testRunId = testRunId;
+			this.finished = finished;
+		}
+
+		@Override
+		public void run() {
+			if (finished.isDone()) {
+				return;
+			}
+			try {
+				TestRunProgress progress = etfClient.getTestRunProgress(testRunId);
+				if (progress.isFinished()) {
+					LOGGER.info("Test run " + testRunId + " finished");
+					finished.set(null);
+					return;
+				}
+				LOGGER.debug("Test run " + testRunId + " progress " + progress);
+				schedule(computeNextInterval(progress));
+			} catch (IOException | RuntimeException e) {
+				finished.setException(
+						new MetadataValidatorException("Could not get the progress of test run " + testRunId, e));
+			}
+		}
+
+		private long computeNextInterval(TestRunProgress progress) {
+			long nextIntervalMillis;
+			if (progress.getVal() > previousVal) {
+				long elapsedMillis = System.currentTimeMillis() - startMillis;
+				long remainingMillis = elapsedMillis * (progress.getMax() - progress.getVal()) / progress.getVal();
+				nextIntervalMillis = remainingMillis / 2;
+			} else {
+				nextIntervalMillis = intervalMillis * 2;
+			}
+			previousVal = progress.getVal();
+			return Math.max(minIntervalMillis, Math.min(maxIntervalMillis, nextIntervalMillis));
+		}
+
+		private void schedule(long delayMillis) {
+			intervalMillis = delayMillis;
+			try {
+				scheduledExecutorService.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+			} catch (RuntimeException e) {
+				// rejected after shutdown
+				finished.setException(new MetadataValidatorException("Stopped waiting for test run " + testRunId, e));
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,35 @@
+package dk.geodatainfo.metadatavalidator.validator.etf;
+
+/**
+ * Progress of an ETF test run as reported by /v2/TestRuns/&lt;id&gt;/progress: val of max steps have been executed.
+ * <p>
+ * Immutable.
+ */
+class TestRunProgress {
+
+	private final int val;
+	private final int max;
+
+	TestRunProgress(int val, int max) {
+		this.val = val;
+		this.max = max;
+	}
+
+	int getVal() {
+		return val;
+	}
+
+	int getMax() {
+		return max;
+	}
+
+	boolean isFinished() {
+		return val >= max;
+	}
+
+	@Override
+	public String toString() {
+		return val + "/" + max;
+	}
+
+}
@@ -1,34 +1,29 @@
 package dk.geodatainfo.metadatavalidator.validator.inspire2;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
-import javax.xml.XMLConstants;
-import javax.xml.namespace.NamespaceContext;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.XPathExpressionException;
 
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.FileWriterWithEncoding;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
@@ -36,83 +31,122 @@ import org.apache.http.entity.FileEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.util.EntityUtils;
-import org.apache.ws.commons.schema.utils.NamespaceMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 
+import dk.geodatainfo.metadatavalidator.utils.RetryPolicy;
 import dk.geodatainfo.metadatavalidator.utils.Utils;
 import dk.geodatainfo.metadatavalidator.validator.AbstractMetadataValidator;
+import dk.geodatainfo.metadatavalidator.validator.DelayCounter;
+import dk.geodatainfo.metadatavalidator.validator.EndpointHealth;
 import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
 import dk.geodatainfo.metadatavalidator.xml.XMLUtils;
 
-public class INSPIREGeoportalMetadataValidator extends AbstractMetadataValidator {
-
-	private static final String NS_INSPIRE_COMMON = "http://inspire.ec.europa.eu/schemas/common/1.0";
-	private static final String HTTP_INSPIRE_EC_EUROPA_EU_SCHEMAS_GEOPORTAL_1_0 = "http://inspire.ec.europa.eu/schemas/geoportal/1.0";
+public class INSPIREGeoportalMetadataValidator extends AbstractMetadataValidator implements DelayCounter {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(INSPIREGeoportalMetadataValidator.class);
 
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	private CloseableHttpClient httpClient;
 	private PoolingHttpClientConnectionManager connectionManager;
-	private NamespaceContext namespaceContext;
+	private EndpointHealth endpointHealth;
+	private RetryPolicy retryPolicy;
+	private final boolean gzip;
+	private final boolean indent;
 
 	public INSPIREGeoportalMetadataValidator(PropertiesConfiguration config) throws MetadataValidatorException {
 		super(config);
 		connectionManager = new PoolingHttpClientConnectionManager();
+		// all requests go to the same route, which would otherwise only get 2 connections
+		int maxConnections = config.getInt("validator.inspire2.maxconnections", 20);
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
 		httpClient = HttpClients.createMinimal(connectionManager);
-		namespaceContext = createNamespaceContext();
+		// the validator has no heartbeat, a request is used to find out whether it is available again
+		endpointHealth = new EndpointHealth(getEndpoint(), null, config);
+		try {
+			retryPolicy = new RetryPolicy(getEndpoint(), config, "validator.retry");
+		} catch (ConfigurationException e) {
+			throw new MetadataValidatorException(e);
+		}
+		gzip = config.getBoolean("validator.inspire2.gzip", false);
+		indent = config.getBoolean("validator.inspire2.indent", false);
 	}
 
 	@Override
 	public void sendRequestToURLEndpointAndSaveResults(File file)
 			throws MetadataValidatorException, ConfigurationException {
 		Validate.notNull(file);
-		ValidationResult validationResult = sendRequest(file);
-		saveValidationResults(file, validationResult);
+		File outputDirectory = Utils.getDirFromConfig(config, "dir.validationresult",
+				"The location of the directory that will contain the validation results must be provided");
+		String endpoint = config.getString("validator.endpoint");
+		if (endpoint == null) {
+			throw new ConfigurationException("A validator endpoint must be provided");
+		}
+		sendRequestAndSaveResultWithRetries(endpoint, file, outputDirectory);
+	}
+
+	/**
+	 * A request that fails because of the server or the connection is sent again, see {@link RetryPolicy} and the
+	 * settings validator.retry.*. Validating is idempotent.
+	 */
+	private void sendRequestAndSaveResultWithRetries(final String endpoint, final File file,
+			final File outputDirectory) throws MetadataValidatorException {
+		retryPolicy.call("the validation of " + file.getName(), true, MetadataValidatorException.class,
+				new RetryPolicy.Attempt<Void, MetadataValidatorException>() {
+
+					@Override
+					public Void run() throws MetadataValidatorException {
+						sendRequestAndSaveResult(endpoint, file, outputDirectory);
+						return null;
+					}
+				});
 	}
 
-	private void saveValidationResults(File file, ValidationResult validationResult)
-			throws TransformerFactoryConfigurationError, ConfigurationException, MetadataValidatorException {
-		if (validationResult == null) {
-			LOGGER.error("No validation result found for " + file.getAbsolutePath());
-		} else {
-			StringReader stringReader = null;
-			FileWriterWithEncoding fileWriterWithEncoding = null;
-			try {
-				String validationReport = validationResult.getValidationReport();
-				Transformer transformer = XMLUtils.createTransformer();
-				File outputDirectory = Utils.getDirFromConfig(config, "dir.validationresult",
-						"The location of the directory that will contain the validation results must be provided");
-				File outputFile = new File(outputDirectory, file.getName());
-				LOGGER.info("Start writing result to " + outputFile.getAbsolutePath());
-				stringReader = new StringReader(validationReport);
-				StreamSource xmlSource = new StreamSource(stringReader);
-				// known that it is UTF-8, therefore not retrieving from result
-				fileWriterWithEncoding = new FileWriterWithEncoding(outputFile, "UTF-8");
-				StreamResult streamResult = new StreamResult(fileWriterWithEncoding);
-				transformer.transform(xmlSource, streamResult);
-				LOGGER.info("Finished writing result to " + outputFile.getAbsolutePath());
-			} catch (TransformerException e) {
-				throw new MetadataValidatorException(e);
-			} catch (IOException e) {
-				throw new MetadataValidatorException(e);
-			} finally {
-				IOUtils.closeQuietly(stringReader);
-				IOUtils.closeQuietly(fileWriterWithEncoding);
+	/**
+	 * Copies the validation result to the output file while it is received, compressed if validator.inspire2.gzip is
+	 * true and indented if validator.inspire2.indent is true. It is written under another name first, so that an
+	 * incomplete result is never read.
+	 */
+	private void saveValidationResult(File file, HttpEntity httpEntity, File outputDirectory)
+			throws IOException, MetadataValidatorException {
+		File outputFile = new File(outputDirectory, file.getName() + (gzip ? ".gz" : ""));
+		File temporaryFile = new File(outputDirectory, outputFile.getName() + ".part");
+		LOGGER.info("Start writing result to " + outputFile.getAbsolutePath());
+		OutputStream outputStream = null;
+		try {
+			outputStream = new BufferedOutputStream(FileUtils.openOutputStream(temporaryFile), BUFFER_SIZE);
+			if (gzip) {
+				outputStream = new GZIPOutputStream(outputStream, BUFFER_SIZE);
 			}
+			if (indent) {
+				InputStream inputStream = httpEntity.getContent();
+				try {
+					XMLUtils.transform(new StreamSource(inputStream), new StreamResult(outputStream));
+				} finally {
+					IOUtils.closeQuietly(inputStream);
+				}
+			} else {
+				// known that it is UTF-8, the bytes are therefore copied as they are
+				httpEntity.writeTo(outputStream);
+			}
+			outputStream.close();
+			Files.move(temporaryFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (TransformerException e) {
+			throw new MetadataValidatorException(e);
+		} finally {
+			IOUtils.closeQuietly(outputStream);
+			FileUtils.deleteQuietly(temporaryFile);
 		}
+		LOGGER.info("Finished writing result to " + outputFile.getAbsolutePath());
 	}
 
-	private ValidationResult sendRequest(File file) throws MetadataValidatorException, ConfigurationException {
+	private void sendRequestAndSaveResult(String endpoint, File file, File outputDirectory)
+			throws MetadataValidatorException {
 		// TODO update to use ResponseHandler, see also ETFClient
 
 		/*
@@ -120,11 +154,6 @@ public class INSPIREGeoportalMetadataValidator extends AbstractMetadataValidator
 		 * usingaswebservice.html#tabs_main-3
 		 */
 
-		String endpoint = config.getString("validator.endpoint");
-		if (endpoint == null) {
-			throw new ConfigurationException("A validator endpoint must be provided");
-		}
-
 		HttpPost httpPost = new HttpPost(endpoint);
 		httpPost.addHeader("Accept", "application/xml");
 
@@ -132,6 +161,8 @@ public class INSPIREGeoportalMetadataValidator extends AbstractMetadataValidator
 		FileEntity fileEntity = new FileEntity(file, ContentType.create("text/plain", "UTF-8"));
 		httpPost.setEntity(fileEntity);
 		CloseableHttpResponse response = null;
+		endpointHealth.awaitAvailable();
+		boolean isAvailable = false;
 		try {
 			StopWatch stopWatch = new StopWatch();
 			stopWatch.start();
@@ -142,6 +173,8 @@ public class INSPIREGeoportalMetadataValidator extends AbstractMetadataValidator
 			LOGGER.info("Finished processing of " + file.getName() + " in " + stopWatch.toString() + " with status "
 					+ statusLineAsString);
 			int statusCode = response.getStatusLine().getStatusCode();
+			// the request itself may be wrong, the endpoint has handled it
+			isAvailable = statusCode < 500;
 			switch (statusCode) {
 			case 201:
 				List<Header> headers = Arrays.asList(response.getAllHeaders());
@@ -162,19 +195,26 @@ public class INSPIREGeoportalMetadataValidator extends AbstractMetadataValidator
 					throw new MetadataValidatorException(
 							"Expected a message entity in the HTTP response, but none was found");
 				} else {
-					String entityContentAsString = EntityUtils.toString(httpEntity, "UTF-8");
-					return new ValidationResult(validationResultLocation, entityContentAsString);
+					saveValidationResult(file, httpEntity, outputDirectory);
 				}
+				break;
 			case 400:
 				throw new MetadataValidatorException("Something is wrong with the content sent to the server");
 			case 500:
-				throw new MetadataValidatorException("An exception occurred on the server, try again later");
+				throw new MetadataValidatorException("An exception occurred on the server, try again later",
+						new HttpResponseException(statusCode, statusLineAsString));
 			default:
-				throw new MetadataValidatorException(statusLineAsString);
+				throw new MetadataValidatorException(statusLineAsString,
+						new HttpResponseException(statusCode, statusLineAsString));
 			}
 		} catch (IOException e) {
 			throw new MetadataValidatorException(e);
 		} finally {
+			if (isAvailable) {
+				endpointHealth.recordSuccess();
+			} else {
+				endpointHealth.recordFailure();
+			}
 			httpPost.releaseConnection();
 			if (response != null) {
 				try {
@@ -186,119 +226,31 @@ public class INSPIREGeoportalMetadataValidator extends AbstractMetadataValidator
 		}
 	}
 
+	/**
+	 * The validation results are read by validator.inspire2.aggregatorthreads threads, by default one per processor,
+	 * see {@link ValidationReportAggregator}.
+	 */
 	@Override
 	public File createReport() throws ConfigurationException, MetadataValidatorException {
 		LOGGER.info("Creating report");
 		File outputDirectory = Utils.getDirFromConfig(config, "dir.validationresult",
 				"The location of the directory that contains the validation results must be provided");
-		CSVPrinter csvPrinter = null;
-		File report;
+		int threads = config.getInt("validator.inspire2.aggregatorthreads", Runtime.getRuntime().availableProcessors());
 		try {
-			Collection<File> files = FileUtils.listFiles(outputDirectory, new String[] { "xml" }, false);
-			report = new File(outputDirectory, "report.csv");
-			FileWriterWithEncoding fileWriter = new FileWriterWithEncoding(report, "UTF-8");
-			csvPrinter = new CSVPrinter(fileWriter, CSVFormat.RFC4180);
-			csvPrinter.printRecord("Name", "Number of resources", "Completeness Indicator", "Validation Report URL");
-			for (File file : files) {
-				LOGGER.info("Adding " + file.getName() + " to the report");
-				createAndPrintRecord(csvPrinter, file);
-			}
-			LOGGER.info("Created " + report.getAbsolutePath());
-			return report;
-		} catch (IOException | XPathExpressionException e) {
+			return new ValidationReportAggregator(threads).createReport(outputDirectory);
+		} catch (IOException e) {
 			throw new MetadataValidatorException("Report could not be created", e);
-		} finally {
-			IOUtils.closeQuietly(csvPrinter);
-		}
-
-	}
-
-	private void createAndPrintRecord(CSVPrinter csvPrinter, File file)
-			throws MetadataValidatorException, IOException, XPathExpressionException {
-		String fileNameWithoutExtension = getFileNameWithoutExtension(file);
-		Document document = parseFile(file);
-		Integer numberOfResources = getNumberOfResources(document);
-		String completenessIndicator = getCompletenessIndicator(document);
-		String validationReportURL = getValidationReportURL(document);
-		csvPrinter.printRecord(fileNameWithoutExtension, numberOfResources, completenessIndicator, validationReportURL);
-	}
-
-	private Integer getNumberOfResources(Document document) throws XPathExpressionException {
-		Integer numberOfResources;
-		String xPathExpressionAsString = "/ns2:Resource/ns2:PullBatchReportResource/ns2:FoundResourcesCount";
-		NodeList foundResourcesCountElements = XMLUtils.selectNodes(document, xPathExpressionAsString,
-				namespaceContext);
-		if (foundResourcesCountElements.getLength() == 0) {
-			NodeList resourceReportResources = XMLUtils.selectNodes(document,
-					"/ns2:Resource/ns2:ResourceReportResource", namespaceContext);
-			if (resourceReportResources.getLength() == 1) {
-				numberOfResources = 1;
-			} else {
-				numberOfResources = -1;
-				LOGGER.warn("Unexpected structure in validation report");
-			}
-		} else {
-			numberOfResources = Integer.valueOf(getElementTextContent(document, xPathExpressionAsString));
 		}
-		return numberOfResources;
-	}
-
-	private String getCompletenessIndicator(Document document) throws XPathExpressionException {
-		String completenessIndicator = getElementTextContent(document, "/ns2:Resource/ns2:CompletenessIndicator");
-		return completenessIndicator;
 	}
 
-	private String getElementTextContent(Document document, String xPathExpressionAsString)
-			throws XPathExpressionException {
-		String text;
-		NodeList matchingElements = XMLUtils.selectNodes(document, xPathExpressionAsString, namespaceContext);
-		if (matchingElements.getLength() == 1) {
-			Node node = matchingElements.item(0);
-			if (node instanceof Element) {
-				Element element = (Element) node;
-				text = element.getTextContent();
-			} else {
-				LOGGER.error("Expected " + xPathExpressionAsString + " to be one element");
-				text = "error";
-			}
-		} else {
-			LOGGER.error("Expected 1 node matching " + xPathExpressionAsString);
-			text = "error";
-		}
-		return text;
-	}
-
-	private String getValidationReportURL(Document document) throws XPathExpressionException {
-		String geoportalMetadataLocatorURL = getElementTextContent(document,
-				"/ns2:Resource/ns2:GeoportalMetadataLocator/*[local-name()='URL' and namespace-uri()='"
-						+ NS_INSPIRE_COMMON + "']");
-		String absoluteURL = "http://inspire-geoportal.ec.europa.eu/resources" + geoportalMetadataLocatorURL;
-		return absoluteURL;
-	}
-
-	private String getFileNameWithoutExtension(File file) {
-		int lastIndexOfDot = file.getName().lastIndexOf(".");
-		String fileNameWithoutExtension = file.getName().substring(0, lastIndexOfDot);
-		return fileNameWithoutExtension;
-	}
-
-	private Document parseFile(File file) throws MetadataValidatorException {
-		try {
-			DocumentBuilder documentBuilder = XMLUtils.createNamespaceAwareNonValidatingDocumentBuilder();
-			LOGGER.info("Starting parsing of " + file.getAbsolutePath());
-			Document document = documentBuilder.parse(file);
-			return document;
-		} catch (ParserConfigurationException | SAXException | IOException e) {
-			throw new MetadataValidatorException("Could not parse " + file.getAbsolutePath(), e);
-		}
+	@Override
+	public long getNumberOfDelays() {
+		return retryPolicy.getNumberOfRetries() + endpointHealth.getNumberOfWaits();
 	}
 
-	private NamespaceContext createNamespaceContext() {
-		NamespaceMap namespaceMap = new NamespaceMap();
-		namespaceMap.add(XMLConstants.DEFAULT_NS_PREFIX, NS_INSPIRE_COMMON);
-		namespaceMap.add("ns2", HTTP_INSPIRE_EC_EUROPA_EU_SCHEMAS_GEOPORTAL_1_0);
-		namespaceMap.add("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
-		return namespaceMap;
+	@Override
+	public String getValidationSettings() {
+		return "inspire2 " + getEndpoint() + " gzip=" + gzip + " indent=" + indent;
 	}
 
 	@Override
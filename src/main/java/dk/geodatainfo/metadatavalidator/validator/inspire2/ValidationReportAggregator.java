@@ -0,0 +1,251 @@
+package dk.geodatainfo.metadatavalidator.validator.inspire2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.output.FileWriterWithEncoding;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import dk.geodatainfo.metadatavalidator.utils.Utils;
+import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
+
+/**
+ * Creates report.csv from the validation results in a directory, with a row per result: the number of resources, the
+ * completeness indicator and the URL of the validation report. The results are *.xml files or, compressed, *.xml.gz
+ * files.
+ * <p>
+ * Every result is read in one pass with StAX, and the results are read by several threads at the same time. The rows
+ * are in the order of the file names.
+ */
+class ValidationReportAggregator {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ValidationReportAggregator.class);
+
+	private static final String NS_INSPIRE_COMMON = "http://inspire.ec.europa.eu/schemas/common/1.0";
+	private static final String NS_GEOPORTAL = "http://inspire.ec.europa.eu/schemas/geoportal/1.0";
+	private static final String VALIDATION_REPORT_URL_PREFIX = "http://inspire-geoportal.ec.europa.eu/resources";
+	private static final String ERROR = "error";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final XMLInputFactory xmlInputFactory;
+	private final int threads;
+
+	ValidationReportAggregator(int threads) {
+		this.threads = threads;
+		xmlInputFactory = XMLInputFactory.newInstance();
+		xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	File createReport(File directory) throws IOException, MetadataValidatorException {
+		List<File> files = new ArrayList<>(
+				FileUtils.listFiles(directory, new SuffixFileFilter(new String[] { ".xml", ".xml.gz" }), null));
+		Collections.sort(files);
+		List<ReportRow> rows = readResults(files);
+		File report = new File(directory, "report.csv");
+		CSVPrinter csvPrinter = new CSVPrinter(new FileWriterWithEncoding(report, "UTF-8"), CSVFormat.RFC4180);
+		try {
+			csvPrinter.printRecord("Name", "Number of resources", "Completeness Indicator", "Validation Report URL");
+			for (ReportRow row : rows) {
+				csvPrinter.printRecord(row.name, row.numberOfResources, row.completenessIndicator,
+						row.validationReportURL);
+			}
+		} finally {
+			IOUtils.closeQuietly(csvPrinter);
+		}
+		LOGGER.info("Created " + report.getAbsolutePath());
+		return report;
+	}
+
+	private List<ReportRow> readResults(List<File> files) throws IOException, MetadataValidatorException {
+		ExecutorService executorService = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setNameFormat("Report-%d").setDaemon(true).build());
+		try {
+			List<Future<ReportRow>> futures = new ArrayList<>(files.size());
+			for (final File file : files) {
+				futures.add(executorService.submit(new Callable<ReportRow>() {
+
+					@Override
+					public ReportRow call() throws MetadataValidatorException {
+						return readResult(file);
+					}
+				}));
+			}
+			List<ReportRow> rows = new ArrayList<>(files.size());
+			for (Future<ReportRow> future : futures) {
+				rows.add(future.get());
+			}
+			return rows;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading the validation results", e);
+		} catch (ExecutionException e) {
+			Throwables.throwIfInstanceOf(e.getCause(), MetadataValidatorException.class);
+			Throwables.throwIfUnchecked(e.getCause());
+			throw new IOException(e.getCause());
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads the children of the root element ns2:Resource that are needed for the row, skipping everything else.
+	 */
+	private ReportRow readResult(File file) throws MetadataValidatorException {
+		LOGGER.info("Adding " + file.getName() + " to the report");
+		ReportRow row = new ReportRow(Utils.getBaseName(file.getName()));
+		InputStream inputStream = null;
+		XMLStreamReader xmlStreamReader = null;
+		try {
+			inputStream = FileUtils.openInputStream(file);
+			if (file.getName().endsWith(".gz")) {
+				inputStream = new GZIPInputStream(inputStream, BUFFER_SIZE);
+			}
+			xmlStreamReader = xmlInputFactory.createXMLStreamReader(inputStream);
+			xmlStreamReader.nextTag();
+			if (isElement(xmlStreamReader, NS_GEOPORTAL, "Resource")) {
+				while (xmlStreamReader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					readChildOfResource(xmlStreamReader, row);
+				}
+			}
+		} catch (IOException | XMLStreamException e) {
+			throw new MetadataValidatorException("Could not parse " + file.getAbsolutePath(), e);
+		} finally {
+			close(xmlStreamReader);
+			IOUtils.closeQuietly(inputStream);
+		}
+		return row.complete();
+	}
+
+	/**
+	 * Leaves the reader at the end tag of the child.
+	 */
+	private void readChildOfResource(XMLStreamReader xmlStreamReader, ReportRow row) throws XMLStreamException {
+		if (isElement(xmlStreamReader, NS_GEOPORTAL, "PullBatchReportResource")) {
+			while (xmlStreamReader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				if (isElement(xmlStreamReader, NS_GEOPORTAL, "FoundResourcesCount")) {
+					row.foundResourcesCounts.add(xmlStreamReader.getElementText());
+				} else {
+					skipElement(xmlStreamReader);
+				}
+			}
+		} else if (isElement(xmlStreamReader, NS_GEOPORTAL, "ResourceReportResource")) {
+			row.numberOfResourceReportResources++;
+			skipElement(xmlStreamReader);
+		} else if (isElement(xmlStreamReader, NS_GEOPORTAL, "CompletenessIndicator")) {
+			row.completenessIndicators.add(xmlStreamReader.getElementText());
+		} else if (isElement(xmlStreamReader, NS_GEOPORTAL, "GeoportalMetadataLocator")) {
+			while (xmlStreamReader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				if (isElement(xmlStreamReader, NS_INSPIRE_COMMON, "URL")) {
+					row.urls.add(xmlStreamReader.getElementText());
+				} else {
+					skipElement(xmlStreamReader);
+				}
+			}
+		} else {
+			skipElement(xmlStreamReader);
+		}
+	}
+
+	private boolean isElement(XMLStreamReader xmlStreamReader, String namespaceURI, String localName) {
+		return xmlStreamReader.isStartElement() && namespaceURI.equals(xmlStreamReader.getNamespaceURI())
+				&& localName.equals(xmlStreamReader.getLocalName());
+	}
+
+	/**
+	 * Moves the reader from a start tag to the matching end tag.
+	 */
+	private void skipElement(XMLStreamReader xmlStreamReader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = xmlStreamReader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private void close(XMLStreamReader xmlStreamReader) {
+		if (xmlStreamReader != null) {
+			try {
+				xmlStreamReader.close();
+			} catch (XMLStreamException e) {
+				LOGGER.debug("Could not close the reader", e);
+			}
+		}
+	}
+
+	private static class ReportRow {
+
+		private final String name;
+		private final List<String> foundResourcesCounts = new ArrayList<>();
+		private int numberOfResourceReportResources;
+		private final List<String> completenessIndicators = new ArrayList<>();
+		private final List<String> urls = new ArrayList<>();
+		private Integer numberOfResources;
+		private String completenessIndicator;
+		private String validationReportURL;
+
+		public ReportRow(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Determines the values of the row from the elements found. The number of resources is the value of the
+		 * FoundResourcesCount if there is exactly one, else 1 if there is no FoundResourcesCount and exactly one
+		 * ResourceReportResource, else -1. The completeness indicator and the URL must occur exactly once, otherwise
+		 * they are "error".
+		 */
+		private ReportRow complete() {
+			if (foundResourcesCounts.size() == 1) {
+				numberOfResources = Integer.valueOf(StringUtils.trim(foundResourcesCounts.get(0)));
+			} else if (foundResourcesCounts.isEmpty() && numberOfResourceReportResources == 1) {
+				numberOfResources = 1;
+			} else {
+				numberOfResources = -1;
+				LOGGER.warn("Unexpected structure in validation report " + name);
+			}
+			completenessIndicator = getSingleValue(completenessIndicators, "CompletenessIndicator");
+			validationReportURL = VALIDATION_REPORT_URL_PREFIX + getSingleValue(urls, "GeoportalMetadataLocator/URL");
+			return this;
+		}
+
+		private String getSingleValue(List<String> values, String elementName) {
+			if (values.size() == 1) {
+				return values.get(0);
+			}
+			LOGGER.error("Expected 1 element " + elementName + " in " + name);
+			return ERROR;
+		}
+
+	}
+
+}
@@ -0,0 +1,176 @@
+package dk.geodatainfo.metadatavalidator.validator.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of validations in progress at an endpoint to what it can handle, determined from the latency and
+ * the failures of the validations: additive increase, multiplicative decrease.
+ * <p>
+ * The latency of a validation is divided by the size of the metadata, as a large GetRecordsResponse takes longer to
+ * validate, and smoothed over the last validations. Only validations that completed without other delays are
+ * measured. The lowest latency seen is the baseline of the endpoint; it
+ * slowly follows the observed latencies, so that it adapts when the endpoint becomes slower or faster. While the
+ * limit is reached and the latency stays within latencyTolerance times the baseline, the limit grows by one per limit
+ * validations. A higher latency lowers the limit in proportion to it, but to no less than half; an overload lowers it
+ * by backoffRatio. The limit is lowered at most once for the validations that were in progress when it was lowered.
+ * <p>
+ * The limit counts permits, each of which is shared by validationsPerPermit validations, for example the files of a
+ * batch that is validated in one test run.
+ * <p>
+ * Thread-safe.
+ */
+class AdaptiveConcurrencyLimit {
+
+	/**
+	 * How a validation ended.
+	 */
+	enum Outcome {
+		/**
+		 * Completed, its latency is that of the endpoint.
+		 */
+		SUCCESS,
+		/**
+		 * Completed, but its latency includes more than the endpoint validating it, it is therefore not measured.
+		 */
+		DELAYED_SUCCESS,
+		/**
+		 * Failed because the endpoint was overloaded or unavailable.
+		 */
+		OVERLOAD,
+		/**
+		 * Failed for a reason that says nothing about the load of the endpoint.
+		 */
+		FAILURE
+	}
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrencyLimit.class);
+
+	private static final double SMOOTHING = 0.2;
+	private static final double BASELINE_ADAPTATION = 0.002;
+	private static final double MIN_LATENCY_RATIO = 0.5;
+
+	private final String endpoint;
+	private final int validationsPerPermit;
+	private final int minLimit;
+	private final int maxLimit;
+	private final double backoffRatio;
+	private final double latencyTolerance;
+	private final Lock lock = new ReentrantLock();
+	private final Condition permitReleased = lock.newCondition();
+	private double limit;
+	private int inProgress;
+	private double smoothedLatency = Double.NaN;
+	private double baselineLatency = Double.NaN;
+	private long lastDecreaseNanos;
+
+	AdaptiveConcurrencyLimit(String endpoint, int validationsPerPermit, int initialLimit, int minLimit, int maxLimit,
+			double backoffRatio, double latencyTolerance) {
+		this.endpoint = endpoint;
+		this.validationsPerPermit = validationsPerPermit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.backoffRatio = backoffRatio;
+		this.latencyTolerance = latencyTolerance;
+		limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+		lastDecreaseNanos = System.nanoTime();
+	}
+
+	/**
+	 * Waits until fewer validations than the limit allows are in progress.
+	 */
+	void acquire() throws InterruptedException {
+		lock.lock();
+		try {
+			while (isLimited()) {
+				permitReleased.await();
+			}
+			inProgress++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param startNanos
+	 *            {@link System#nanoTime()} when the validation was started
+	 * @param size
+	 *            the size of the metadata in bytes
+	 */
+	void release(long startNanos, long size, Outcome outcome) {
+		long nowNanos = System.nanoTime();
+		double latency = (double) (nowNanos - startNanos) / Math.max(1L, size / 1024);
+		lock.lock();
+		try {
+			boolean wasLimited = isLimited();
+			inProgress--;
+			int oldLimit = (int) limit;
+			// false if the validation was already in progress when the limit was last lowered
+			boolean mayDecrease = startNanos - lastDecreaseNanos > 0;
+			if (outcome == Outcome.OVERLOAD) {
+				if (mayDecrease) {
+					decrease(limit * backoffRatio, nowNanos);
+				}
+			} else if (outcome != Outcome.FAILURE) {
+				if (outcome == Outcome.SUCCESS) {
+					updateLatency(latency);
+				}
+				double toleratedLatency = baselineLatency * latencyTolerance;
+				// false until a latency has been measured
+				if (smoothedLatency > toleratedLatency) {
+					if (mayDecrease && outcome == Outcome.SUCCESS) {
+						decrease(limit * Math.max(MIN_LATENCY_RATIO, toleratedLatency / smoothedLatency), nowNanos);
+					}
+				} else if (wasLimited) {
+					// by one per limit permits
+					limit = Math.min(maxLimit, limit + 1 / (limit * validationsPerPermit));
+				}
+			}
+			if ((int) limit != oldLimit) {
+				LOGGER.debug("Concurrency limit of " + endpoint + " changed from " + oldLimit + " to " + (int) limit
+						+ (outcome == Outcome.OVERLOAD ? " after an overload" : " at a latency of "
+								+ TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos) + " ms"));
+			}
+			permitReleased.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isLimited() {
+		return inProgress >= (int) limit * validationsPerPermit;
+	}
+
+	private void updateLatency(double latency) {
+		if (Double.isNaN(smoothedLatency)) {
+			smoothedLatency = latency;
+		} else {
+			smoothedLatency += (latency - smoothedLatency) * SMOOTHING;
+		}
+		if (Double.isNaN(baselineLatency) || smoothedLatency < baselineLatency) {
+			baselineLatency = smoothedLatency;
+		} else {
+			baselineLatency += (smoothedLatency - baselineLatency) * BASELINE_ADAPTATION;
+		}
+	}
+
+	private void decrease(double newLimit, long nowNanos) {
+		limit = Math.max(minLimit, newLimit);
+		lastDecreaseNanos = nowNanos;
+	}
+
+}
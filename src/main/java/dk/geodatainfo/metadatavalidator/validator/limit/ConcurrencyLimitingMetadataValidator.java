@@ -0,0 +1,178 @@
+package dk.geodatainfo.metadatavalidator.validator.limit;
+
+import java.io.File;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+
+import dk.geodatainfo.metadatavalidator.utils.RetryPolicy;
+import dk.geodatainfo.metadatavalidator.validator.DelayCounter;
+import dk.geodatainfo.metadatavalidator.validator.MetadataValidator;
+import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
+import dk.geodatainfo.metadatavalidator.validator.limit.AdaptiveConcurrencyLimit.Outcome;
+
+/**
+ * Limits the validations sent to the endpoint of a validator, so that it is not sent more than it can handle.
+ * <p>
+ * The number of validations in progress is adapted to the endpoint, see {@link AdaptiveConcurrencyLimit}: it starts
+ * at validator.limit.initial (default 4) and stays between validator.limit.min (default 1) and validator.limit.max
+ * (default 32). A failure that {@link RetryPolicy#isTransient(Throwable)} takes for an overloaded or unavailable
+ * endpoint lowers it by validator.limit.backoff (default 0.5), other failures do not change it. A latency above
+ * validator.limit.latencytolerance (default 1.5) times the lowest latency lowers it in proportion. With
+ * validator.limit.rate, at most that many validations per second are started.
+ * <p>
+ * The latency is measured from the start to the end of a validation, so it is not measured when the validation was
+ * delayed by something else than the endpoint validating, as counted by a validator that is a {@link DelayCounter}:
+ * a retry, or a wait for the endpoint to become available. Such a delay of any validation in progress excludes all
+ * of them, as the retries of one validation also delay the others.
+ * <p>
+ * A validation is in progress until the future returned by {@link MetadataValidator#startValidation(File)} completes,
+ * so the ETF client with validator.etf.scheduledpolling may have more validations in progress than there are
+ * threads. With validator.etf.batchsize the limit counts batches, the files of a batch share one permit, so that
+ * a batch can always be filled. Each file of a batch waits for the whole test run of the batch, so then the latency
+ * is not measured at all, and only overloads lower the limit.
+ * <p>
+ * Thread-safe if the wrapped validator is.
+ */
+public class ConcurrencyLimitingMetadataValidator implements MetadataValidator {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyLimitingMetadataValidator.class);
+
+	private final MetadataValidator validator;
+	private final AdaptiveConcurrencyLimit limit;
+	private final RateLimiter rateLimiter;
+	private final boolean isLatencyMeasured;
+
+	public ConcurrencyLimitingMetadataValidator(MetadataValidator validator, PropertiesConfiguration config)
+			throws ConfigurationException {
+		this.validator = validator;
+		int minLimit = config.getInt("validator.limit.min", 1);
+		int maxLimit = config.getInt("validator.limit.max", 32);
+		double backoffRatio = config.getDouble("validator.limit.backoff", 0.5);
+		double latencyTolerance = config.getDouble("validator.limit.latencytolerance", 1.5);
+		if (minLimit < 1 || maxLimit < minLimit) {
+			throw new ConfigurationException("validator.limit.min must be at least 1 and at most validator.limit.max");
+		}
+		if (backoffRatio <= 0 || backoffRatio >= 1) {
+			throw new ConfigurationException("validator.limit.backoff must be between 0 and 1");
+		}
+		if (latencyTolerance < 1) {
+			throw new ConfigurationException("validator.limit.latencytolerance must be at least 1");
+		}
+		int batchSize = "etf".equalsIgnoreCase(config.getString("validator.type"))
+				? Math.max(1, config.getInt("validator.etf.batchsize", 1)) : 1;
+		limit = new AdaptiveConcurrencyLimit(config.getString("validator.endpoint"), batchSize,
+				config.getInt("validator.limit.initial", 4), minLimit, maxLimit, backoffRatio, latencyTolerance);
+		double rate = config.getDouble("validator.limit.rate", 0);
+		rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+		isLatencyMeasured = batchSize == 1;
+	}
+
+	@Override
+	public void sendRequestToURLEndpointAndSaveResults(File metadata)
+			throws MetadataValidatorException, ConfigurationException {
+		long startNanos = acquire();
+		long numberOfDelays = getNumberOfDelays();
+		Outcome outcome = Outcome.FAILURE;
+		try {
+			validator.sendRequestToURLEndpointAndSaveResults(metadata);
+			outcome = getSuccess(numberOfDelays);
+		} catch (MetadataValidatorException | ConfigurationException | RuntimeException e) {
+			outcome = getFailure(e);
+			throw e;
+		} finally {
+			limit.release(startNanos, metadata.length(), outcome);
+		}
+	}
+
+	/**
+	 * Waits until the validation may be started, the validation is released when the returned future completes.
+	 */
+	@Override
+	public ListenableFuture<Void> startValidation(final File metadata)
+			throws MetadataValidatorException, ConfigurationException {
+		final long startNanos = acquire();
+		final long numberOfDelays = getNumberOfDelays();
+		ListenableFuture<Void> validation;
+		try {
+			validation = validator.startValidation(metadata);
+		} catch (MetadataValidatorException | ConfigurationException | RuntimeException e) {
+			limit.release(startNanos, metadata.length(), getFailure(e));
+			throw e;
+		}
+		Futures.addCallback(validation, new FutureCallback<Void>() {
+
+			@Override
+			public void onSuccess(Void result) {
+				limit.release(startNanos, metadata.length(), getSuccess(numberOfDelays));
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				limit.release(startNanos, metadata.length(), getFailure(t));
+			}
+		}, MoreExecutors.directExecutor());
+		return validation;
+	}
+
+	@Override
+	public File createReport() throws ConfigurationException, MetadataValidatorException {
+		return validator.createReport();
+	}
+
+	@Override
+	public String getValidationSettings() {
+		return validator.getValidationSettings();
+	}
+
+	@Override
+	public void shutDown() {
+		LOGGER.info("Concurrency limit at shutdown: " + limit.getLimit());
+		validator.shutDown();
+	}
+
+	/**
+	 * @return the number of delays counted by the validator, 0 if it does not count them
+	 */
+	private long getNumberOfDelays() {
+		return validator instanceof DelayCounter ? ((DelayCounter) validator).getNumberOfDelays() : 0;
+	}
+
+	/**
+	 * @param numberOfDelays
+	 *            the number of delays when the validation was started
+	 */
+	private Outcome getSuccess(long numberOfDelays) {
+		return isLatencyMeasured && getNumberOfDelays() == numberOfDelays ? Outcome.SUCCESS
+				: Outcome.DELAYED_SUCCESS;
+	}
+
+	private Outcome getFailure(Throwable failure) {
+		return RetryPolicy.isTransient(failure) ? Outcome.OVERLOAD : Outcome.FAILURE;
+	}
+
+	/**
+	 * @return the start of the validation
+	 */
+	private long acquire() throws MetadataValidatorException {
+		try {
+			limit.acquire();
+			if (rateLimiter != null) {
+				rateLimiter.acquire();
+			}
+			return System.nanoTime();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetadataValidatorException("Interrupted while waiting to start a validation", e);
+		}
+	}
+
+}
@@ -0,0 +1,288 @@
+package dk.geodatainfo.metadatavalidator.xml;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.helpers.NamespaceSupport;
+
+import dk.geodatainfo.metadatavalidator.csw.CSWClient;
+import dk.geodatainfo.metadatavalidator.csw.CSWException;
+import dk.geodatainfo.metadatavalidator.csw.GetRecordsResponseHandler;
+import dk.geodatainfo.metadatavalidator.csw.GetRecordsResponsePage;
+import dk.geodatainfo.metadatavalidator.csw.GetRecordsResponseReader;
+
+/**
+ * Writes the pages of a full result set to one file with root element GetRecordsResponse, using StAX. Every page is
+ * read and written record by record as soon as it is handed over and is not referenced afterwards, so memory use is
+ * bounded by a single page instead of by the full result set.
+ * <p>
+ * The file is created when the first page arrives and is only complete after {@link #close()} has been called.
+ */
+public class GetRecordsResponseWriter implements GetRecordsResponseHandler, Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(GetRecordsResponseWriter.class);
+
+	private static final String NS_CSW_2_0_2 = "http://www.opengis.net/cat/csw/2.0.2";
+	private static final String SEARCH_RESULTS = "SearchResults";
+
+	private final File file;
+	private OutputStream outputStream;
+	private XMLStreamWriter xmlStreamWriter;
+	private NamespaceSupport namespaceSupport;
+	private int numberOfRecordsWritten;
+
+	public GetRecordsResponseWriter(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public void handleGetRecordsResponse(GetRecordsResponsePage page, int numberOfRecordsMatched)
+			throws CSWException {
+		GetRecordsResponseReader reader = page.openReader();
+		try {
+			writeStart(reader.getHeader().getDocumentElement(), numberOfRecordsMatched);
+			while (reader.hasNext()) {
+				writeRecord(reader.next());
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Creates the file and writes everything up to and including the start tag of SearchResults, with attributes
+	 * describing the full result set instead of a single page. Does nothing if the start has already been written.
+	 *
+	 * @param elementGetRecordsResponse
+	 *            the GetRecordsResponse of one of the pages, its records are not written
+	 */
+	public void writeStart(Element elementGetRecordsResponse, int numberOfRecordsMatched) throws CSWException {
+		Validate.isTrue(CSWClient.GET_RECORDS_RESPONSE.equals(elementGetRecordsResponse.getLocalName()),
+				"Element must have name " + CSWClient.GET_RECORDS_RESPONSE);
+		if (xmlStreamWriter != null) {
+			return;
+		}
+		try {
+			Element elementSearchResults = getSearchResults(elementGetRecordsResponse);
+			open();
+			writeStartElement(elementGetRecordsResponse);
+			for (Node child = elementGetRecordsResponse.getFirstChild(); child != elementSearchResults; child = child
+					.getNextSibling()) {
+				writeNode(child);
+			}
+			writeStartElement(elementSearchResults);
+			xmlStreamWriter.writeAttribute("nextRecord", "0");
+			xmlStreamWriter.writeAttribute("numberOfRecordsMatched", Integer.toString(numberOfRecordsMatched));
+			xmlStreamWriter.writeAttribute("numberOfRecordsReturned", Integer.toString(numberOfRecordsMatched));
+		} catch (XMLStreamException | IOException e) {
+			throw new CSWException("Could not write to " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Writes one record to SearchResults, {@link #writeStart(Element, int)} must have been called first.
+	 *
+	 * @param record
+	 *            MD_Metadata element
+	 */
+	public void writeRecord(Element record) throws CSWException {
+		Validate.validState(xmlStreamWriter != null, "The start of the file has not been written");
+		try {
+			xmlStreamWriter.writeCharacters("\n");
+			writeElement(record);
+			numberOfRecordsWritten++;
+		} catch (XMLStreamException e) {
+			throw new CSWException("Could not write records to " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * @return the file that has been written, or null if no page has been handed over
+	 */
+	public File getFile() {
+		return outputStream == null ? null : file;
+	}
+
+	public int getNumberOfRecordsWritten() {
+		return numberOfRecordsWritten;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (xmlStreamWriter == null) {
+			return;
+		}
+		try {
+			xmlStreamWriter.writeCharacters("\n");
+			writeEndElement(); // SearchResults
+			writeEndElement(); // GetRecordsResponse
+			xmlStreamWriter.writeEndDocument();
+			xmlStreamWriter.close();
+			LOGGER.info("Saved " + numberOfRecordsWritten + " records to " + file.getAbsolutePath());
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not finish " + file.getAbsolutePath(), e);
+		} finally {
+			xmlStreamWriter = null;
+			IOUtils.closeQuietly(outputStream);
+		}
+	}
+
+	/**
+	 * Closes the writer without completing the file and deletes what has been written so far, used when the
+	 * retrieval of the result set fails.
+	 */
+	public void discard() {
+		if (xmlStreamWriter != null) {
+			try {
+				xmlStreamWriter.close();
+			} catch (XMLStreamException e) {
+				LOGGER.debug("Ignoring exception", e);
+			}
+			xmlStreamWriter = null;
+		}
+		if (outputStream != null) {
+			IOUtils.closeQuietly(outputStream);
+			outputStream = null;
+			if (file.exists() && !file.delete()) {
+				LOGGER.warn("Could not delete incomplete file " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	private void open() throws IOException, XMLStreamException {
+		outputStream = new BufferedOutputStream(new FileOutputStream(file));
+		xmlStreamWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream, "UTF-8");
+		namespaceSupport = new NamespaceSupport();
+		xmlStreamWriter.writeStartDocument("UTF-8", "1.0");
+		xmlStreamWriter.writeCharacters("\n");
+	}
+
+	private Element getSearchResults(Element elementGetRecordsResponse) throws CSWException {
+		for (Node child = elementGetRecordsResponse.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE && NS_CSW_2_0_2.equals(child.getNamespaceURI())
+					&& SEARCH_RESULTS.equals(child.getLocalName())) {
+				return (Element) child;
+			}
+		}
+		throw new CSWException("The response does not contain an element with name " + SEARCH_RESULTS);
+	}
+
+	private void writeNode(Node node) throws XMLStreamException {
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			writeElement((Element) node);
+			break;
+		case Node.TEXT_NODE:
+			xmlStreamWriter.writeCharacters(node.getNodeValue());
+			break;
+		case Node.CDATA_SECTION_NODE:
+			xmlStreamWriter.writeCData(node.getNodeValue());
+			break;
+		case Node.COMMENT_NODE:
+			xmlStreamWriter.writeComment(node.getNodeValue());
+			break;
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			xmlStreamWriter.writeProcessingInstruction(node.getNodeName(), node.getNodeValue());
+			break;
+		default:
+			// entity references are expanded by the parser, nothing else can occur inside an element
+			break;
+		}
+	}
+
+	private void writeElement(Element element) throws XMLStreamException {
+		writeStartElement(element);
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			writeNode(child);
+		}
+		writeEndElement();
+	}
+
+	private void writeEndElement() throws XMLStreamException {
+		xmlStreamWriter.writeEndElement();
+		namespaceSupport.popContext();
+	}
+
+	/**
+	 * Writes the start tag and the attributes of the element, except the attributes that describe the result set of
+	 * SearchResults. Namespaces that were declared on an ancestor in the source document (for example on the SOAP
+	 * envelope) are declared again where needed.
+	 */
+	private void writeStartElement(Element element) throws XMLStreamException {
+		String prefix = StringUtils.defaultString(element.getPrefix());
+		String namespaceURI = StringUtils.defaultString(element.getNamespaceURI());
+		xmlStreamWriter.writeStartElement(prefix, element.getLocalName(), namespaceURI);
+		namespaceSupport.pushContext();
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attribute = (Attr) attributes.item(i);
+			if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+				declareNamespace(
+						XMLConstants.XMLNS_ATTRIBUTE.equals(attribute.getName()) ? XMLConstants.DEFAULT_NS_PREFIX
+								: attribute.getLocalName(),
+						attribute.getValue());
+			}
+		}
+		declareNamespace(prefix, namespaceURI);
+		boolean isSearchResults = NS_CSW_2_0_2.equals(namespaceURI) && SEARCH_RESULTS.equals(element.getLocalName());
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attribute = (Attr) attributes.item(i);
+			String attributeNamespaceURI = attribute.getNamespaceURI();
+			if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attributeNamespaceURI)) {
+				continue;
+			}
+			if (attributeNamespaceURI == null) {
+				if (!(isSearchResults && isResultSetAttribute(attribute.getName()))) {
+					xmlStreamWriter.writeAttribute(attribute.getName(), attribute.getValue());
+				}
+			} else {
+				String attributePrefix = attribute.getPrefix();
+				if (!XMLConstants.XML_NS_URI.equals(attributeNamespaceURI)) {
+					declareNamespace(attributePrefix, attributeNamespaceURI);
+				}
+				xmlStreamWriter.writeAttribute(attributePrefix, attributeNamespaceURI, attribute.getLocalName(),
+						attribute.getValue());
+			}
+		}
+	}
+
+	private boolean isResultSetAttribute(String attributeName) {
+		return "nextRecord".equals(attributeName) || "numberOfRecordsMatched".equals(attributeName)
+				|| "numberOfRecordsReturned".equals(attributeName);
+	}
+
+	/**
+	 * The scope of the declarations is tracked here, because the namespace context of a non-repairing
+	 * XMLStreamWriter may already contain the prefix of the element that is being written.
+	 */
+	private void declareNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+		if (namespaceURI.equals(StringUtils.defaultString(namespaceSupport.getURI(prefix)))) {
+			return;
+		}
+		namespaceSupport.declarePrefix(prefix, namespaceURI);
+		if (XMLConstants.DEFAULT_NS_PREFIX.equals(prefix)) {
+			xmlStreamWriter.writeDefaultNamespace(namespaceURI);
+		} else {
+			xmlStreamWriter.writeNamespace(prefix, namespaceURI);
+		}
+	}
+
+}
@@ -1,33 +1,37 @@
 package dk.geodatainfo.metadatavalidator.xml;
 
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPathExpressionException;
 
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.ws.commons.schema.utils.NamespaceMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
-import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import dk.geodatainfo.metadatavalidator.csw.CSWClient;
 import dk.geodatainfo.metadatavalidator.utils.Utils;
@@ -41,23 +45,51 @@ public class MetadataHandler {
 
 	private PropertiesConfiguration config;
 	private NamespaceContext namespaceContext;
-	private Map<Queryable, String> queryablemap;
+	private Map<String, RecordPath> queryables;
+	private RecordSplitter recordSplitter;
+	private ExecutorService splitExecutorService;
+	private final Lock statisticsLock = new ReentrantLock();
 
+	/**
+	 * The queryables that are available by name in statistics.queryables without defining a path.
+	 */
 	private enum Queryable {
 		/**
-		 * MetadataPointOfContact, defined in AdditionalQueryables (INSPIRE community)
+		 * MetadataPointOfContact, defined in AdditionalQueryables (INSPIRE community), based on info in Technical
+		 * Guidance for the implementation of INSPIRE Discovery Services, v3.1, p. 20, and on Github in
+		 * core-geonetwork/web/src/main/webapp/WEB-INF/config-csw.xml
+		 */
+		METADATA_POINT_OF_CONTACT("MetadataPointOfContact",
+				"gmd:MD_Metadata/gmd:contact/gmd:CI_ResponsibleParty/gmd:organisationName/*"),
+		/**
+		 * OrganisationName, defined in SupportedISOQueryables, based on info in OGC 07-045, p. 47
 		 */
-		METADATA_POINT_OF_CONTACT,
+		ORGANISATION_NAME("OrganisationName",
+				"gmd:MD_Metadata/gmd:identificationInfo//gmd:pointOfContact/gmd:CI_ResponsibleParty/gmd:organisationName/*"),
 		/**
-		 * OrganisationName, defined in SupportedISOQueryables
+		 * Type, defined in SupportedISOQueryables
 		 */
-		ORGANISATION_NAME;
+		HIERARCHY_LEVEL("HierarchyLevel", "gmd:MD_Metadata/gmd:hierarchyLevel/gmd:MD_ScopeCode/@codeListValue"),
+		/**
+		 * The title of the thesaurus of the keywords, for example GEMET - INSPIRE themes, version 1.0
+		 */
+		KEYWORD_THESAURUS("KeywordThesaurus",
+				"gmd:MD_Metadata/gmd:identificationInfo//gmd:descriptiveKeywords/gmd:MD_Keywords/gmd:thesaurusName/gmd:CI_Citation/gmd:title/*");
+
+		private final String name;
+		private final String path;
+
+		private Queryable(String name, String path) {
+			this.name = name;
+			this.path = path;
+		}
+
 	}
 
-	public MetadataHandler(PropertiesConfiguration config) {
-		namespaceContext = createNamespaceContext();
-		queryablemap = createQueryablemap();
+	public MetadataHandler(PropertiesConfiguration config) throws ConfigurationException {
 		this.config = config;
+		namespaceContext = createNamespaceContext();
+		queryables = createQueryables();
 	}
 
 	private NamespaceContext createNamespaceContext() {
@@ -65,55 +97,137 @@ public class MetadataHandler {
 		namespaceMap.add("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
 		namespaceMap.add("gmd", GMD_NAMESPACE);
 		namespaceMap.add("gco", GCO_NAMESPACE);
+		namespaceMap.add("gmx", "http://www.isotc211.org/2005/gmx");
+		namespaceMap.add("xlink", "http://www.w3.org/1999/xlink");
 		namespaceMap.add("csw", "http://www.opengis.net/cat/csw/2.0.2");
 		namespaceMap.add("srv", "http://www.isotc211.org/2005/srv");
 		return namespaceMap;
 	}
 
-	private Map<Queryable, String> createQueryablemap() {
-		HashMap<Queryable, String> queryablemap = new HashMap<>();
-		/*
-		 * based on info in Technical Guidance for the implementation of INSPIRE
-		 * Discovery Services, v3.1, p. 20, and on Github in
-		 * core-geonetwork/web/src/main/webapp/WEB-INF/config-csw.xml
-		 */
-		queryablemap.put(Queryable.METADATA_POINT_OF_CONTACT,
-				"//gmd:MD_Metadata/gmd:contact/gmd:CI_ResponsibleParty/gmd:organisationName/gco:CharacterString");
-		// based on info in OGC 07-045, p. 47
-		queryablemap.put(Queryable.ORGANISATION_NAME,
-				"//gmd:MD_Metadata/gmd:identificationInfo//gmd:pointOfContact/gmd:CI_ResponsibleParty/gmd:organisationName/gco:CharacterString");
-		return queryablemap;
+	/**
+	 * statistics.queryables is a comma separated list of names, by default all {@link Queryable}s. The path of a
+	 * queryable, see {@link RecordPath}, is given by statistics.queryable.&lt;name&gt;, which is only needed for names
+	 * that are not a {@link Queryable}.
+	 */
+	private Map<String, RecordPath> createQueryables() throws ConfigurationException {
+		Map<String, String> defaultPaths = new LinkedHashMap<>();
+		for (Queryable queryable : Queryable.values()) {
+			defaultPaths.put(queryable.name, queryable.path);
+		}
+		String[] names = StringUtils.stripAll(StringUtils.split(
+				config.getString("statistics.queryables", StringUtils.join(defaultPaths.keySet(), ",")), ','));
+		Map<String, RecordPath> queryables = new LinkedHashMap<>();
+		for (String name : names) {
+			String path = config.getString("statistics.queryable." + name, defaultPaths.get(name));
+			if (path == null) {
+				throw new ConfigurationException(
+						"No path is given for queryable " + name + " in property statistics.queryable." + name);
+			}
+			queryables.put(name, RecordPath.compile(path, namespaceContext));
+		}
+		return queryables;
 	}
 
 	/**
-	 * @return directory that contains the metadata records as XML files with
-	 *         MD_Metadata as root element
+	 * Saves every record in the GetRecordsResponse file as a separate file named after its fileIdentifier, in a
+	 * directory in dir.metadatarecords named after the GetRecordsResponse file, see {@link RecordSplitter}. The
+	 * response is streamed, so the size of the file does not matter.
+	 *
+	 * @return directory that contains the metadata records as XML files with MD_Metadata as root element
 	 */
-	public void saveMetadataRecordsAsSeparateFiles(Document document) throws ParserConfigurationException,
-			TransformerFactoryConfigurationError, TransformerException, ConfigurationException {
-		validateDocument(document);
-		saveMetadataRecords(extractMetadataRecords(document));
+	public File saveMetadataRecordsAsSeparateFiles(File getRecordsResponse)
+			throws ConfigurationException, IOException, XMLStreamException {
+		File directory = Utils.getDirFromConfig(config, "dir.metadatarecords",
+				"The location of the directory that will contain the metadata records must be provided");
+		File recordsDirectory = new File(directory, FilenameUtils.removeExtension(getRecordsResponse.getName()));
+		getRecordSplitter().split(getRecordsResponse, recordsDirectory);
+		return recordsDirectory;
+	}
+
+	/**
+	 * The records are written by csw.splitrecords.threads threads, 4 by default. When they are all busy and the
+	 * queue is full, the thread reading the response writes the record itself.
+	 */
+	private synchronized RecordSplitter getRecordSplitter() {
+		if (recordSplitter == null) {
+			int threads = config.getInt("csw.splitrecords.threads", 4);
+			splitExecutorService = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(threads * 4),
+					new ThreadFactoryBuilder().setNameFormat("Split-%d").setDaemon(true).build(),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			recordSplitter = new RecordSplitter(splitExecutorService);
+		}
+		return recordSplitter;
+	}
+
+	public synchronized void shutDown() {
+		if (splitExecutorService != null) {
+			splitExecutorService.shutdown();
+		}
 	}
 
 	public void provideStatisticsForMetadata(Document document, String fileName) {
+		RecordStatistics statistics = createStatistics();
+		statistics.addRecords(document);
+		reportStatistics(statistics, fileName);
+	}
+
+	/**
+	 * @return statistics for the configured queryables, to which the records of a result set can be added as they are
+	 *         retrieved, see {@link #reportStatistics(RecordStatistics, String)}
+	 */
+	public RecordStatistics createStatistics() {
+		return new RecordStatistics(queryables);
+	}
+
+	/**
+	 * Logs the statistics and, if dir.statistics is set, saves them as JSON in a file named after the GetRecords file.
+	 * Locked, so that the statistics of GetRecords files that are harvested at the same time are not interleaved in
+	 * the log; not synchronized, as writing the file would then pin a virtual thread.
+	 */
+	public void reportStatistics(RecordStatistics statistics, String fileName) {
+		statisticsLock.lock();
 		try {
-			Queryable queryable = Queryable.METADATA_POINT_OF_CONTACT;
-			Multiset<String> summary = ConcurrentHashMultiset.create();
-			NodeList nodes = XMLUtils.selectNodes(document, queryablemap.get(queryable), namespaceContext);
-			for (int i = 0; i < nodes.getLength(); i++) {
-				summary.add(nodes.item(i).getTextContent());
-			}
+			logAndSaveStatistics(statistics, fileName);
+		} finally {
+			statisticsLock.unlock();
+		}
+	}
 
+	private void logAndSaveStatistics(RecordStatistics statistics, String fileName) {
+		LOGGER.info("----------");
+		LOGGER.info("Statistics for " + fileName + " (" + statistics.getNumberOfRecords() + " records)");
+		for (String queryable : statistics.getQueryables()) {
 			LOGGER.info("----------");
-			LOGGER.info("Statistics for " + fileName + ", grouped by " + queryable + " (" + summary.size() + ")");
-			LOGGER.info("----------");
-			for (String string : summary.elementSet()) {
-				LOGGER.info("\t" + string + " (" + summary.count(string) + ")");
+			LOGGER.info("Grouped by " + queryable);
+			for (Multiset.Entry<String> entry : statistics.getCounts(queryable).entrySet()) {
+				LOGGER.info("\t" + entry.getElement() + " (" + entry.getCount() + ")");
 			}
-		} catch (XPathExpressionException e) {
-			LOGGER.warn("Logging failed", e);
 		}
 		LOGGER.info("----------");
+		if (config.containsKey("dir.statistics")) {
+			File summaryFile = null;
+			try {
+				File directory = Utils.createDirectory(Utils.getDirFromConfig(config, "dir.statistics",
+						"The location of the directory that will contain the statistics must be provided"));
+				summaryFile = new File(directory, FilenameUtils.removeExtension(fileName) + ".json");
+				statistics.writeSummary(summaryFile, fileName);
+				LOGGER.info("Saved " + summaryFile.getAbsolutePath());
+			} catch (ConfigurationException | IOException e) {
+				LOGGER.warn("Could not save the statistics for " + fileName, e);
+			}
+		}
+	}
+
+	/**
+	 * @return writer that saves the pages handed to it in one file with root element GetRecordsResponse, without
+	 *         keeping them in memory. The file is the same as the one created by
+	 *         {@link #saveMetadataRecordsAsIs(Document, String)}, except for the indentation.
+	 */
+	public GetRecordsResponseWriter createGetRecordsResponseWriter(String fileName) throws ConfigurationException {
+		File directory = Utils.getDirFromConfig(config, "dir.getrecordsresponse",
+				"The location of the directory that will contain the matching metadata must be provided");
+		return new GetRecordsResponseWriter(new File(directory, fileName));
 	}
 
 	/**
@@ -123,11 +237,14 @@ public class MetadataHandler {
 	public File saveMetadataRecordsAsIs(Document document, String fileName)
 			throws TransformerException, ParserConfigurationException, ConfigurationException {
 		validateDocument(document);
-		Transformer transformer = XMLUtils.createTransformer();
 		File directory = Utils.getDirFromConfig(config, "dir.getrecordsresponse",
 				"The location of the directory that will contain the matching metadata must be provided");
-		File savedGetRecordsResponse = saveDocumentToFile(document, directory, fileName, transformer);
-		return savedGetRecordsResponse;
+		Transformer transformer = XMLUtils.createTransformer();
+		try {
+			return saveDocumentToFile(document, directory, fileName, transformer);
+		} finally {
+			XMLUtils.release(transformer);
+		}
 	}
 
 	private void validateDocument(Document document) {
@@ -135,36 +252,6 @@ public class MetadataHandler {
 				"Document must have root element " + CSWClient.GET_RECORDS_RESPONSE, document);
 	}
 
-	/**
-	 * @return NodeList of Elements
-	 */
-	private NodeList extractMetadataRecords(Document metadataRecordsDocument) {
-		NodeList metadataRecords = metadataRecordsDocument.getDocumentElement().getElementsByTagNameNS(GMD_NAMESPACE,
-				"MD_Metadata");
-		LOGGER.info(metadataRecords.getLength() + " metadata records found");
-		return metadataRecords;
-	}
-
-	private void saveMetadataRecords(NodeList nodeList) throws ParserConfigurationException,
-			TransformerFactoryConfigurationError, TransformerException, ConfigurationException {
-		DocumentBuilder documentBuilder = XMLUtils.createNamespaceAwareNonValidatingDocumentBuilder();
-		Transformer transformer = XMLUtils.createTransformer();
-		File directory = Utils.getDirFromConfig(config, "dir.getrecordsresponse",
-				"The location of the directory that will contain the matching metadata must be provided");
-
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Element element = (Element) nodeList.item(i);
-			saveElementToFile(documentBuilder, transformer, directory, element);
-		}
-	}
-
-	private void saveElementToFile(DocumentBuilder documentBuilder, Transformer transformer, File directory,
-			Element element) throws TransformerException {
-		Document document = createDocument(documentBuilder, element);
-		String metadataID = findMetadataID(element);
-		saveDocumentToFile(document, directory, metadataID, transformer);
-	}
-
 	private File saveDocumentToFile(Document document, File directory, String fileName, Transformer transformer)
 			throws TransformerException {
 		File metadataFile = new File(directory, fileName);
@@ -173,20 +260,4 @@ public class MetadataHandler {
 		return metadataFile;
 	}
 
-	private String findMetadataID(Element element) {
-		Element fileIdentifierElement = (Element) element.getElementsByTagNameNS(GMD_NAMESPACE, "fileIdentifier")
-				.item(0);
-		Element characterStringElement = (Element) fileIdentifierElement
-				.getElementsByTagNameNS(GCO_NAMESPACE, "CharacterString").item(0);
-		String metadataID = characterStringElement.getTextContent();
-		return metadataID;
-	}
-
-	private Document createDocument(DocumentBuilder documentBuilder, Element element) {
-		Document document = documentBuilder.newDocument();
-		Node importedNode = document.importNode(element, true);
-		document.appendChild(importedNode);
-		return document;
-	}
-
 }
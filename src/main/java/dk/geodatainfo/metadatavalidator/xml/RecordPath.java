@@ -0,0 +1,165 @@
+package dk.geodatainfo.metadatavalidator.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A location path within a record, for example
+ * {@code gmd:MD_Metadata/gmd:identificationInfo//gmd:pointOfContact/gmd:CI_ResponsibleParty/gmd:organisationName/*}
+ * or {@code gmd:MD_Metadata/gmd:hierarchyLevel/gmd:MD_ScopeCode/@codeListValue}.
+ * <p>
+ * Only the subset of XPath needed for statistics is supported: child steps, descendant steps (//), the wildcard *
+ * and an attribute as last step. Unlike an XPath expression, a path is matched against the elements of a record while
+ * they are visited, so any number of paths are evaluated in a single pass over the record.
+ * <p>
+ * Immutable.
+ */
+class RecordPath {
+
+	private static final String WILDCARD = "*";
+
+	private final String expression;
+	private final QName[] steps;
+	/**
+	 * true if the step at the same index is preceded by //
+	 */
+	private final boolean[] isDescendantStep;
+	private final QName attribute;
+
+	private RecordPath(String expression, QName[] steps, boolean[] isDescendantStep, QName attribute) {
+		this.expression = expression;
+		this.steps = steps;
+		this.isDescendantStep = isDescendantStep;
+		this.attribute = attribute;
+	}
+
+	/**
+	 * @param expression
+	 *            path starting at the root element of the record, which may be preceded by //
+	 */
+	static RecordPath compile(String expression, NamespaceContext namespaceContext) throws ConfigurationException {
+		String remainder = StringUtils.trimToEmpty(expression);
+		List<QName> steps = new ArrayList<>();
+		List<Boolean> isDescendantStep = new ArrayList<>();
+		QName attribute = null;
+		boolean isDescendant = false;
+		if (remainder.startsWith("//")) {
+			isDescendant = true;
+			remainder = remainder.substring(2);
+		}
+		for (String step : StringUtils.splitPreserveAllTokens(remainder, '/')) {
+			if (attribute != null) {
+				throw new ConfigurationException("An attribute must be the last step of " + expression);
+			}
+			if (step.isEmpty()) {
+				if (isDescendant) {
+					throw new ConfigurationException("Invalid path " + expression);
+				}
+				isDescendant = true;
+			} else if (step.startsWith("@")) {
+				attribute = createName(step.substring(1), expression, namespaceContext, true);
+			} else {
+				steps.add(createName(step, expression, namespaceContext, false));
+				isDescendantStep.add(isDescendant);
+				isDescendant = false;
+			}
+		}
+		if (steps.isEmpty() || isDescendant) {
+			throw new ConfigurationException("Invalid path " + expression);
+		}
+		boolean[] isDescendantStepArray = new boolean[isDescendantStep.size()];
+		for (int i = 0; i < isDescendantStepArray.length; i++) {
+			isDescendantStepArray[i] = isDescendantStep.get(i);
+		}
+		return new RecordPath(expression, steps.toArray(new QName[steps.size()]), isDescendantStepArray, attribute);
+	}
+
+	/**
+	 * @param isAttribute
+	 *            an attribute without prefix is in no namespace, an element without prefix in the default namespace
+	 */
+	private static QName createName(String step, String expression, NamespaceContext namespaceContext,
+			boolean isAttribute) throws ConfigurationException {
+		if (WILDCARD.equals(step)) {
+			return new QName(WILDCARD, WILDCARD);
+		}
+		String prefix = StringUtils.substringBefore(step, ":");
+		String localName = StringUtils.substringAfter(step, ":");
+		if (!step.contains(":")) {
+			if (isAttribute) {
+				return new QName(step);
+			}
+			prefix = XMLConstants.DEFAULT_NS_PREFIX;
+			localName = step;
+		}
+		String namespaceURI = namespaceContext.getNamespaceURI(prefix);
+		if (localName.isEmpty() || (!prefix.isEmpty() && StringUtils.isEmpty(namespaceURI))) {
+			throw new ConfigurationException("Invalid step " + step + " or unknown prefix in " + expression);
+		}
+		return new QName(StringUtils.defaultString(namespaceURI), localName);
+	}
+
+	/**
+	 * @return true if the last step can match an element with this name, checked before the full path is matched
+	 */
+	boolean matchesLastStep(QName elementName) {
+		return matches(steps[steps.length - 1], elementName);
+	}
+
+	/**
+	 * @param elementPath
+	 *            the names of the elements from the root element of the record to the current element
+	 */
+	boolean matches(List<QName> elementPath) {
+		return matches(steps.length - 1, elementPath, elementPath.size() - 1);
+	}
+
+	/**
+	 * @return the attribute of the matched element whose value is used, or null if the text content is used
+	 */
+	QName getAttribute() {
+		return attribute;
+	}
+
+	/**
+	 * @return true if steps 0 to stepIndex match elements 0 to elementIndex, step stepIndex matching element
+	 *         elementIndex
+	 */
+	private boolean matches(int stepIndex, List<QName> elementPath, int elementIndex) {
+		if (!matches(steps[stepIndex], elementPath.get(elementIndex))) {
+			return false;
+		}
+		if (stepIndex == 0) {
+			return isDescendantStep[0] || elementIndex == 0;
+		}
+		if (!isDescendantStep[stepIndex]) {
+			return elementIndex > 0 && matches(stepIndex - 1, elementPath, elementIndex - 1);
+		}
+		for (int i = elementIndex - 1; i >= 0; i--) {
+			if (matches(stepIndex - 1, elementPath, i)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(QName step, QName elementName) {
+		if (WILDCARD.equals(step.getLocalPart())) {
+			return true;
+		}
+		return step.equals(elementName);
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+}
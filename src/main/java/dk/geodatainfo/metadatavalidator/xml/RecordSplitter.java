@@ -0,0 +1,282 @@
+package dk.geodatainfo.metadatavalidator.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits a GetRecordsResponse file into one file per record, named after the fileIdentifier of the record. The file
+ * is read once with StAX and every record is copied event by event into a buffer, no DOM is built. The buffers are
+ * written to disk by the given executor, which should reject tasks it cannot queue with a CallerRunsPolicy, so that
+ * the reading waits when the disks are slower than the parsing.
+ * <p>
+ * Records without fileIdentifier are named record-&lt;position&gt;.xml. When several records have the same
+ * fileIdentifier, or fileIdentifiers that only differ in case or in characters that are not allowed in a file name,
+ * the second one is named &lt;fileIdentifier&gt;-2.xml and so on. Both cases are logged as a
+ * warning.
+ * <p>
+ * Thread-safe, several files can be split at the same time.
+ */
+class RecordSplitter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RecordSplitter.class);
+
+	private static final String NS_GMD = "http://www.isotc211.org/2005/gmd";
+	private static final String NS_GCO = "http://www.isotc211.org/2005/gco";
+
+	private final ExecutorService executorService;
+	private final XMLInputFactory xmlInputFactory;
+	private final XMLOutputFactory xmlOutputFactory;
+
+	RecordSplitter(ExecutorService executorService) {
+		this.executorService = executorService;
+		xmlInputFactory = XMLInputFactory.newInstance();
+		xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		xmlOutputFactory = XMLOutputFactory.newInstance();
+	}
+
+	/**
+	 * @return number of records written to the directory
+	 */
+	int split(File getRecordsResponse, File directory) throws IOException, XMLStreamException {
+		FileUtils.forceMkdir(directory);
+		List<Future<Void>> writes = new ArrayList<>();
+		Set<String> fileNames = new HashSet<>();
+		int numberOfRecords = 0;
+		InputStream inputStream = FileUtils.openInputStream(getRecordsResponse);
+		XMLStreamReader xmlStreamReader = xmlInputFactory.createXMLStreamReader(inputStream);
+		try {
+			// namespace declarations of the ancestors of the current element, declared again on every record
+			List<String[]> inScopeNamespaces = new ArrayList<>();
+			List<Integer> numberOfNamespacesPerElement = new ArrayList<>();
+			while (xmlStreamReader.hasNext()) {
+				int event = xmlStreamReader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					if (NS_GMD.equals(xmlStreamReader.getNamespaceURI())
+							&& "MD_Metadata".equals(xmlStreamReader.getLocalName())) {
+						numberOfRecords++;
+						ByteArrayOutputStream record = new ByteArrayOutputStream();
+						String fileIdentifier = copyRecord(xmlStreamReader, inScopeNamespaces, record);
+						File file = new File(directory, createFileName(fileIdentifier, numberOfRecords, fileNames));
+						writes.add(executorService.submit(new WriteCallable(file, record)));
+					} else {
+						for (int i = 0; i < xmlStreamReader.getNamespaceCount(); i++) {
+							inScopeNamespaces.add(new String[] {
+									StringUtils.defaultString(xmlStreamReader.getNamespacePrefix(i)),
+									StringUtils.defaultString(xmlStreamReader.getNamespaceURI(i)) });
+						}
+						numberOfNamespacesPerElement.add(xmlStreamReader.getNamespaceCount());
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					int numberOfNamespaces = numberOfNamespacesPerElement
+							.remove(numberOfNamespacesPerElement.size() - 1);
+					inScopeNamespaces.subList(inScopeNamespaces.size() - numberOfNamespaces, inScopeNamespaces.size())
+							.clear();
+				}
+			}
+			waitForWrites(writes);
+		} finally {
+			for (Future<Void> write : writes) {
+				write.cancel(false);
+			}
+			xmlStreamReader.close();
+			IOUtils.closeQuietly(inputStream);
+		}
+		LOGGER.info("Saved " + numberOfRecords + " records from " + getRecordsResponse.getName() + " in "
+				+ directory.getAbsolutePath());
+		return numberOfRecords;
+	}
+
+	private void waitForWrites(List<Future<Void>> writes) throws IOException {
+		try {
+			for (Future<Void> write : writes) {
+				write.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while saving the records", e);
+		} catch (ExecutionException e) {
+			throw new IOException("A record could not be saved", e.getCause());
+		}
+	}
+
+	/**
+	 * Copies the record the reader is positioned at, leaving the reader at its end tag.
+	 *
+	 * @return the fileIdentifier of the record, or null if it does not have one
+	 */
+	private String copyRecord(XMLStreamReader xmlStreamReader, List<String[]> inScopeNamespaces,
+			ByteArrayOutputStream outputStream) throws XMLStreamException {
+		XMLStreamWriter xmlStreamWriter = xmlOutputFactory.createXMLStreamWriter(outputStream, "UTF-8");
+		xmlStreamWriter.writeStartDocument("UTF-8", "1.0");
+		xmlStreamWriter.writeCharacters("\n");
+		writeStartElement(xmlStreamReader, xmlStreamWriter);
+		Set<String> declaredPrefixes = new HashSet<>();
+		for (int i = 0; i < xmlStreamReader.getNamespaceCount(); i++) {
+			declaredPrefixes.add(StringUtils.defaultString(xmlStreamReader.getNamespacePrefix(i)));
+		}
+		// the innermost declaration of a prefix is the one in scope
+		for (int i = inScopeNamespaces.size() - 1; i >= 0; i--) {
+			String[] namespace = inScopeNamespaces.get(i);
+			if (declaredPrefixes.add(namespace[0])) {
+				writeNamespace(xmlStreamWriter, namespace[0], namespace[1]);
+			}
+		}
+		writeNamespacesAndAttributes(xmlStreamReader, xmlStreamWriter);
+		String fileIdentifier = null;
+		// 1 is the record, 2 gmd:fileIdentifier, 3 its gco:CharacterString
+		int depth = 1;
+		boolean isInFileIdentifier = false;
+		StringBuilder fileIdentifierText = null;
+		while (depth > 0) {
+			switch (xmlStreamReader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				if (depth == 2) {
+					isInFileIdentifier = fileIdentifier == null && NS_GMD.equals(xmlStreamReader.getNamespaceURI())
+							&& "fileIdentifier".equals(xmlStreamReader.getLocalName());
+				} else if (depth == 3 && isInFileIdentifier && NS_GCO.equals(xmlStreamReader.getNamespaceURI())) {
+					fileIdentifierText = new StringBuilder();
+				}
+				writeStartElement(xmlStreamReader, xmlStreamWriter);
+				writeNamespacesAndAttributes(xmlStreamReader, xmlStreamWriter);
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (depth == 3 && fileIdentifierText != null) {
+					fileIdentifier = StringUtils.trimToNull(fileIdentifierText.toString());
+					fileIdentifierText = null;
+				}
+				depth--;
+				xmlStreamWriter.writeEndElement();
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.SPACE:
+				if (fileIdentifierText != null) {
+					fileIdentifierText.append(xmlStreamReader.getTextCharacters(), xmlStreamReader.getTextStart(),
+							xmlStreamReader.getTextLength());
+				}
+				xmlStreamWriter.writeCharacters(xmlStreamReader.getTextCharacters(), xmlStreamReader.getTextStart(),
+						xmlStreamReader.getTextLength());
+				break;
+			case XMLStreamConstants.CDATA:
+				if (fileIdentifierText != null) {
+					fileIdentifierText.append(xmlStreamReader.getText());
+				}
+				xmlStreamWriter.writeCData(xmlStreamReader.getText());
+				break;
+			case XMLStreamConstants.COMMENT:
+				xmlStreamWriter.writeComment(xmlStreamReader.getText());
+				break;
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				xmlStreamWriter.writeProcessingInstruction(xmlStreamReader.getPITarget(), xmlStreamReader.getPIData());
+				break;
+			default:
+				break;
+			}
+		}
+		xmlStreamWriter.writeEndDocument();
+		xmlStreamWriter.close();
+		return fileIdentifier;
+	}
+
+	private void writeStartElement(XMLStreamReader xmlStreamReader, XMLStreamWriter xmlStreamWriter)
+			throws XMLStreamException {
+		xmlStreamWriter.writeStartElement(StringUtils.defaultString(xmlStreamReader.getPrefix()),
+				xmlStreamReader.getLocalName(), StringUtils.defaultString(xmlStreamReader.getNamespaceURI()));
+	}
+
+	private void writeNamespacesAndAttributes(XMLStreamReader xmlStreamReader, XMLStreamWriter xmlStreamWriter)
+			throws XMLStreamException {
+		for (int i = 0; i < xmlStreamReader.getNamespaceCount(); i++) {
+			writeNamespace(xmlStreamWriter, StringUtils.defaultString(xmlStreamReader.getNamespacePrefix(i)),
+					StringUtils.defaultString(xmlStreamReader.getNamespaceURI(i)));
+		}
+		for (int i = 0; i < xmlStreamReader.getAttributeCount(); i++) {
+			String namespaceURI = xmlStreamReader.getAttributeNamespace(i);
+			if (StringUtils.isEmpty(namespaceURI)) {
+				xmlStreamWriter.writeAttribute(xmlStreamReader.getAttributeLocalName(i),
+						xmlStreamReader.getAttributeValue(i));
+			} else {
+				xmlStreamWriter.writeAttribute(StringUtils.defaultString(xmlStreamReader.getAttributePrefix(i)),
+						namespaceURI, xmlStreamReader.getAttributeLocalName(i), xmlStreamReader.getAttributeValue(i));
+			}
+		}
+	}
+
+	private void writeNamespace(XMLStreamWriter xmlStreamWriter, String prefix, String namespaceURI)
+			throws XMLStreamException {
+		if (XMLConstants.DEFAULT_NS_PREFIX.equals(prefix)) {
+			xmlStreamWriter.writeDefaultNamespace(namespaceURI);
+		} else {
+			xmlStreamWriter.writeNamespace(prefix, namespaceURI);
+		}
+	}
+
+	/**
+	 * Characters that are not allowed in file names on common file systems are replaced. Names are compared without
+	 * case, as file systems may ignore it.
+	 */
+	private String createFileName(String fileIdentifier, int position, Set<String> fileNames) {
+		String baseName;
+		if (fileIdentifier == null) {
+			LOGGER.warn("Record " + position + " does not have a fileIdentifier, saving it as record-" + position);
+			baseName = "record-" + position;
+		} else {
+			baseName = fileIdentifier.replaceAll("[^A-Za-z0-9._-]", "_");
+		}
+		String fileName = baseName + ".xml";
+		for (int i = 2; !fileNames.add(fileName.toLowerCase(Locale.ROOT)); i++) {
+			fileName = baseName + "-" + i + ".xml";
+		}
+		if (fileIdentifier != null && !fileName.equals(baseName + ".xml")) {
+			LOGGER.warn("The file name for record " + position + " with fileIdentifier " + fileIdentifier
+					+ " is already used by an earlier record, saving it as " + fileName);
+		}
+		return fileName;
+	}
+
+	private static class WriteCallable implements Callable<Void> {
+
+		private final File file;
+		private final ByteArrayOutputStream content;
+
+		public WriteCallable(File file, ByteArrayOutputStream content) {
+			this.file = file;
+			this.content = content;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			Files.write(file.toPath(), content.toByteArray());
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,153 @@
+package dk.geodatainfo.metadatavalidator.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.lang3.StringUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
+
+/**
+ * Counts, for every configured queryable, the number of records per value. All queryables are evaluated in one walk
+ * over each record, so the records can be added as they are retrieved. A record with the same value more than once is
+ * counted once for that value.
+ * <p>
+ * Not thread-safe, one instance is used for one result set.
+ */
+public class RecordStatistics {
+
+	private static final String NS_GMD = "http://www.isotc211.org/2005/gmd";
+
+	private final Map<String, RecordPath> queryables;
+	private final Map<String, Multiset<String>> counts = new LinkedHashMap<>();
+	private int numberOfRecords;
+
+	/**
+	 * @param queryables
+	 *            the paths by name, in the order in which they are reported
+	 */
+	RecordStatistics(Map<String, RecordPath> queryables) {
+		this.queryables = queryables;
+		for (String name : queryables.keySet()) {
+			counts.put(name, HashMultiset.<String> create());
+		}
+	}
+
+	/**
+	 * @param record
+	 *            MD_Metadata element
+	 */
+	public void addRecord(Element record) {
+		Map<String, Set<String>> values = new LinkedHashMap<>();
+		for (String name : queryables.keySet()) {
+			values.put(name, new HashSet<String>());
+		}
+		visit(record, new ArrayList<QName>(), values);
+		for (Map.Entry<String, Set<String>> entry : values.entrySet()) {
+			counts.get(entry.getKey()).addAll(entry.getValue());
+		}
+		numberOfRecords++;
+	}
+
+	/**
+	 * Adds all records in the document.
+	 *
+	 * @param getRecordsResponse
+	 *            document with root element GetRecordsResponse
+	 */
+	public void addRecords(Document getRecordsResponse) {
+		NodeList records = getRecordsResponse.getElementsByTagNameNS(NS_GMD, "MD_Metadata");
+		for (int i = 0; i < records.getLength(); i++) {
+			addRecord((Element) records.item(i));
+		}
+	}
+
+	public int getNumberOfRecords() {
+		return numberOfRecords;
+	}
+
+	/**
+	 * @return the queryables, in the configured order
+	 */
+	public Set<String> getQueryables() {
+		return counts.keySet();
+	}
+
+	/**
+	 * @return the values of the queryable with the number of records that have them, highest count first
+	 */
+	public Multiset<String> getCounts(String queryable) {
+		return Multisets.copyHighestCountFirst(counts.get(queryable));
+	}
+
+	/**
+	 * Writes the statistics as JSON: {"file": ..., "numberOfRecords": ..., "queryables": {name: {value: count}}}.
+	 */
+	public void writeSummary(File summaryFile, String fileName) throws IOException {
+		JsonGenerator generator = new JsonFactory().createGenerator(summaryFile, JsonEncoding.UTF8);
+		try {
+			generator.useDefaultPrettyPrinter();
+			generator.writeStartObject();
+			generator.writeStringField("file", fileName);
+			generator.writeNumberField("numberOfRecords", numberOfRecords);
+			generator.writeObjectFieldStart("queryables");
+			for (String queryable : getQueryables()) {
+				generator.writeObjectFieldStart(queryable);
+				for (Multiset.Entry<String> entry : getCounts(queryable).entrySet()) {
+					generator.writeNumberField(entry.getElement(), entry.getCount());
+				}
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+			generator.writeEndObject();
+		} finally {
+			generator.close();
+		}
+	}
+
+	private void visit(Element element, List<QName> elementPath, Map<String, Set<String>> values) {
+		QName elementName = new QName(StringUtils.defaultString(element.getNamespaceURI()), element.getLocalName());
+		elementPath.add(elementName);
+		for (Map.Entry<String, RecordPath> queryable : queryables.entrySet()) {
+			RecordPath path = queryable.getValue();
+			if (path.matchesLastStep(elementName) && path.matches(elementPath)) {
+				String value = getValue(element, path.getAttribute());
+				if (!value.isEmpty()) {
+					values.get(queryable.getKey()).add(value);
+				}
+			}
+		}
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				visit((Element) child, elementPath, values);
+			}
+		}
+		elementPath.remove(elementPath.size() - 1);
+	}
+
+	private String getValue(Element element, QName attribute) {
+		if (attribute == null) {
+			return StringUtils.trimToEmpty(element.getTextContent());
+		}
+		return StringUtils.trimToEmpty(element.getAttributeNS(StringUtils.defaultIfEmpty(attribute.getNamespaceURI(),
+				null), attribute.getLocalPart()));
+	}
+
+}
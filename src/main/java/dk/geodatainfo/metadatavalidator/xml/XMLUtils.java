@@ -1,12 +1,25 @@
 package dk.geodatainfo.metadatavalidator.xml;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.xpath.XPath;
@@ -19,26 +32,94 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
+/**
+ * The JAXP builders, transformers and compiled XPath expressions are not thread-safe and expensive to create, so
+ * they are kept in pools shared by all threads: a thread takes one, uses it and gives it back. Each pool keeps at most
+ * {@link #POOL_SIZE} objects, more are created while more threads need one at the same time. They are created by
+ * factories that are configured once; a factory is not thread-safe either, so it is only used while holding its lock.
+ * <p>
+ * A builder or transformer returned by {@link #createNamespaceAwareNonValidatingDocumentBuilder()} or
+ * {@link #createTransformer()} belongs to the caller, which may give it back with {@link #release(DocumentBuilder)}
+ * or {@link #release(Transformer)} when it is done with it.
+ */
 public final class XMLUtils {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(XMLUtils.class);
 
+	/**
+	 * Maximum number of objects kept in a pool, about the number of threads that parse or write XML at the same
+	 * time.
+	 */
+	private static final int POOL_SIZE = 64;
+
+	/**
+	 * Maximum number of XPath expressions kept compiled, the least recently used one is evicted first.
+	 */
+	private static final int XPATH_CACHE_SIZE = 64;
+
+	private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = createDocumentBuilderFactory();
+
+	private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+
+	private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();
+
+	private static final Pool<DocumentBuilder> DOCUMENT_BUILDERS = new Pool<>();
+
+	private static final Pool<Transformer> TRANSFORMERS = new Pool<>();
+
+	/**
+	 * Access-ordered, guarded by itself.
+	 */
+	private static final Map<XPathKey, Pool<XPathExpression>> XPATH_EXPRESSIONS = new LinkedHashMap<XPathKey,
+			Pool<XPathExpression>>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<XPathKey, Pool<XPathExpression>> eldest) {
+			return size() > XPATH_CACHE_SIZE;
+		}
+	};
+
 	private XMLUtils() {
 	}
 
-	public synchronized static DocumentBuilder createNamespaceAwareNonValidatingDocumentBuilder()
-			throws ParserConfigurationException {
+	private static DocumentBuilderFactory createDocumentBuilderFactory() {
 		DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
 		documentBuilderFactory.setNamespaceAware(true);
 		documentBuilderFactory.setValidating(false);
-		DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
+		return documentBuilderFactory;
+	}
+
+	public static DocumentBuilder createNamespaceAwareNonValidatingDocumentBuilder()
+			throws ParserConfigurationException {
+		DocumentBuilder documentBuilder = DOCUMENT_BUILDERS.poll();
+		if (documentBuilder == null) {
+			synchronized (DOCUMENT_BUILDER_FACTORY) {
+				documentBuilder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+			}
+		}
 		return documentBuilder;
 	}
 
-	public synchronized static Transformer createTransformer()
+	/**
+	 * Gives the builder back to the pool, it must not be used anymore by the caller.
+	 */
+	public static void release(DocumentBuilder documentBuilder) {
+		documentBuilder.reset();
+		DOCUMENT_BUILDERS.offer(documentBuilder);
+	}
+
+	public static Transformer createTransformer()
 			throws TransformerConfigurationException, TransformerFactoryConfigurationError {
-		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		Transformer transformer = TRANSFORMERS.poll();
+		if (transformer == null) {
+			synchronized (TRANSFORMER_FACTORY) {
+				transformer = TRANSFORMER_FACTORY.newTransformer();
+			}
+		}
 		try {
 			transformer.setOutputProperty(OutputKeys.STANDALONE, "yes");
 			transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
@@ -50,18 +131,149 @@ public final class XMLUtils {
 		return transformer;
 	}
 
-	private synchronized static XPath createXPath(NamespaceContext namespaceContext) {
-		XPathFactory xPathFactory = XPathFactory.newInstance();
-		XPath xPath = xPathFactory.newXPath();
-		xPath.setNamespaceContext(namespaceContext);
-		return xPath;
+	/**
+	 * Gives the transformer back to the pool, it must not be used anymore by the caller.
+	 */
+	public static void release(Transformer transformer) {
+		// removes the output properties set by the caller
+		transformer.reset();
+		TRANSFORMERS.offer(transformer);
+	}
+
+	public static Document newDocument() throws ParserConfigurationException {
+		DocumentBuilder documentBuilder = createNamespaceAwareNonValidatingDocumentBuilder();
+		try {
+			return documentBuilder.newDocument();
+		} finally {
+			release(documentBuilder);
+		}
+	}
+
+	public static Document parse(File file) throws ParserConfigurationException, SAXException, IOException {
+		DocumentBuilder documentBuilder = createNamespaceAwareNonValidatingDocumentBuilder();
+		try {
+			return documentBuilder.parse(file);
+		} finally {
+			release(documentBuilder);
+		}
+	}
+
+	public static Document parse(InputStream inputStream)
+			throws ParserConfigurationException, SAXException, IOException {
+		DocumentBuilder documentBuilder = createNamespaceAwareNonValidatingDocumentBuilder();
+		try {
+			return documentBuilder.parse(inputStream);
+		} finally {
+			release(documentBuilder);
+		}
+	}
+
+	/**
+	 * Writes the source indented, see {@link #createTransformer()}.
+	 */
+	public static void transform(Source source, Result result) throws TransformerException {
+		Transformer transformer = createTransformer();
+		try {
+			transformer.transform(source, result);
+		} finally {
+			release(transformer);
+		}
 	}
 
 	public static NodeList selectNodes(Document document, String xPathExpressionAsString,
 			NamespaceContext namespaceContext) throws XPathExpressionException {
-		XPathExpression xPathExpression = XMLUtils.createXPath(namespaceContext).compile(xPathExpressionAsString);
-		NodeList nodes = (NodeList) xPathExpression.evaluate(document, XPathConstants.NODESET);
-		return nodes;
+		XPathKey key = new XPathKey(xPathExpressionAsString, namespaceContext);
+		Pool<XPathExpression> xPathExpressions = getXPathExpressions(key);
+		XPathExpression xPathExpression = xPathExpressions.poll();
+		if (xPathExpression == null) {
+			XPath xPath;
+			synchronized (XPATH_FACTORY) {
+				xPath = XPATH_FACTORY.newXPath();
+			}
+			xPath.setNamespaceContext(namespaceContext);
+			xPathExpression = xPath.compile(xPathExpressionAsString);
+		}
+		try {
+			return (NodeList) xPathExpression.evaluate(document, XPathConstants.NODESET);
+		} finally {
+			xPathExpressions.offer(xPathExpression);
+		}
+	}
+
+	/**
+	 * The prefixes are resolved when an expression is compiled, so the namespace context is part of the key.
+	 *
+	 * @return the pool of compiled expressions, added if it did not exist. An expression given back to a pool that has
+	 *         been evicted in the meantime is dropped with it.
+	 */
+	private static Pool<XPathExpression> getXPathExpressions(XPathKey key) {
+		synchronized (XPATH_EXPRESSIONS) {
+			Pool<XPathExpression> xPathExpressions = XPATH_EXPRESSIONS.get(key);
+			if (xPathExpressions == null) {
+				xPathExpressions = new Pool<>();
+				XPATH_EXPRESSIONS.put(key, xPathExpressions);
+			}
+			return xPathExpressions;
+		}
+	}
+
+	/**
+	 * Thread-safe pool of at most {@link XMLUtils#POOL_SIZE} objects.
+	 */
+	private static final class Pool<T> {
+
+		private final Queue<T> objects = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger();
+
+		/**
+		 * @return an object of the pool, or null if it is empty
+		 */
+		T poll() {
+			T object = objects.poll();
+			if (object != null) {
+				size.decrementAndGet();
+			}
+			return object;
+		}
+
+		/**
+		 * Adds the object if the pool is not full.
+		 */
+		void offer(T object) {
+			if (size.incrementAndGet() <= POOL_SIZE) {
+				objects.offer(object);
+			} else {
+				size.decrementAndGet();
+			}
+		}
+
+	}
+
+	private static final class XPathKey {
+
+		private final String expression;
+		private final NamespaceContext namespaceContext;
+
+		XPathKey(String expression, NamespaceContext namespaceContext) {
+			this.expression = expression;
+			this.namespaceContext = namespaceContext;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof XPathKey)) {
+				return false;
+			}
+			XPathKey other = (XPathKey) object;
+			// a namespace context is compared by identity, its mappings may change
+			return expression.equals(other.expression) && namespaceContext == other.namespaceContext;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(expression, System.identityHashCode(namespaceContext));
+		}
+
 	}
 
 }
@@ -0,0 +1,159 @@
+package dk.geodatainfo.metadatavalidator.stub;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.builder.fluent.Configurations;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.configuration2.io.FileHandler;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.geodatainfo.metadatavalidator.Main;
+import dk.geodatainfo.metadatavalidator.utils.Utils;
+
+/**
+ * Runs {@link Main} end-to-end against stub endpoints in the same process and prints the throughput, so that
+ * changes to the harvesting and validation can be measured without the real CSW and validators.
+ * <p>
+ * The settings are read from the file given with -c, or else from loadtest.properties on the classpath. The stub.*
+ * settings configure the stubs, see {@link StubCSW}, {@link StubETF} and {@link StubINSPIRE}. loadtest.queries
+ * (default 4) GetRecords files are written to loadtest.dir (default build/loadtest), each of which harvests all
+ * records of the stub CSW. All other settings are passed on to Main, with the endpoints and directories filled in.
+ * With the same settings and stub.seed, runs send the same requests and get the same answers, so their throughput can
+ * be compared.
+ */
+public class LoadTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LoadTest.class);
+
+	private static final String OPTION_CONFIG_FILE = "c";
+	private static final String GET_RECORDS = "<csw:GetRecords xmlns:csw=\"http://www.opengis.net/cat/csw/2.0.2\" "
+			+ "service=\"CSW\" version=\"2.0.2\" resultType=\"results\" "
+			+ "outputSchema=\"http://www.isotc211.org/2005/gmd\">\n  <csw:Query typeNames=\"gmd:MD_Metadata\">\n"
+			+ "    <csw:ElementSetName>full</csw:ElementSetName>\n  </csw:Query>\n</csw:GetRecords>\n";
+
+	public static void main(String[] args) {
+		new LoadTest().run(args);
+	}
+
+	public void run(String... args) {
+		List<StubServer> stubs = new ArrayList<>();
+		try {
+			PropertiesConfiguration config = readConfiguration(args);
+			File dir = new File(config.getString("loadtest.dir", "build/loadtest")).getAbsoluteFile();
+			Utils.createAndCleanDirectory(dir);
+
+			StubCSW stubCSW = new StubCSW(config);
+			stubs.add(stubCSW);
+			StubServer stubValidator;
+			String validatorType = config.getString("validator.type", "inspire2").toLowerCase(Locale.ROOT);
+			switch (validatorType) {
+			case "inspire2":
+				stubValidator = new StubINSPIRE(config);
+				break;
+			case "etf":
+				stubValidator = new StubETF(config);
+				break;
+			default:
+				throw new ConfigurationException("Unknown validator type " + validatorType);
+			}
+			stubs.add(stubValidator);
+			for (StubServer stub : stubs) {
+				stub.start();
+			}
+
+			File configurationFile = writeMainConfiguration(config, dir, stubCSW, stubValidator);
+			StopWatch stopWatch = new StopWatch();
+			stopWatch.start();
+			new Main().run("-" + OPTION_CONFIG_FILE, configurationFile.getAbsolutePath());
+			stopWatch.stop();
+
+			long numberOfValidations = stubValidator instanceof StubETF
+					? ((StubETF) stubValidator).getNumberOfTestRuns()
+					: ((StubINSPIRE) stubValidator).getNumberOfValidations();
+			double seconds = stopWatch.getTime() / 1000.0;
+			LOGGER.info(String.format(Locale.ROOT, "Elapsed: %.1f s", seconds));
+			LOGGER.info(String.format(Locale.ROOT, "Harvested: %d records, %.1f records/s",
+					stubCSW.getNumberOfRecordsReturned(), stubCSW.getNumberOfRecordsReturned() / seconds));
+			// with ETF a validation is a test run, of a batch of files with validator.etf.batchsize
+			LOGGER.info(String.format(Locale.ROOT, "Validated: %d validations, %.2f validations/s",
+					numberOfValidations, numberOfValidations / seconds));
+			for (StubServer stub : stubs) {
+				LOGGER.info(String.format(Locale.ROOT, "Stub %s: %d requests, %d failed", stub.getName(),
+						stub.getNumberOfRequests(), stub.getNumberOfFailures()));
+			}
+		} catch (ParseException e) {
+			LOGGER.error("Incorrect command line argument given", e);
+		} catch (ConfigurationException e) {
+			LOGGER.error("There is an error with or in the configuration file", e);
+		} catch (IOException e) {
+			LOGGER.error(e.getMessage(), e);
+		} finally {
+			for (StubServer stub : stubs) {
+				stub.stop();
+			}
+		}
+	}
+
+	private PropertiesConfiguration readConfiguration(String... args) throws ParseException, ConfigurationException {
+		Options options = new Options();
+		options.addOption(Option.builder(OPTION_CONFIG_FILE).longOpt("config").hasArg().argName("file")
+				.type(File.class).desc("load test configuration file, default loadtest.properties").build());
+		CommandLine commandLine = new DefaultParser().parse(options, args);
+		Configurations configurations = new Configurations();
+		if (commandLine.hasOption(OPTION_CONFIG_FILE)) {
+			return configurations.properties((File) commandLine.getParsedOptionValue(OPTION_CONFIG_FILE));
+		}
+		return configurations.properties(LoadTest.class.getResource("/loadtest.properties"));
+	}
+
+	/**
+	 * Writes the GetRecords files and the configuration of Main, pointing at the stubs.
+	 *
+	 * @return the configuration file
+	 */
+	private File writeMainConfiguration(PropertiesConfiguration config, File dir, StubServer stubCSW,
+			StubServer stubValidator) throws IOException, ConfigurationException {
+		File dirGetRecords = Utils.createDirectory(new File(dir, "getrecords"));
+		int queries = config.getInt("loadtest.queries", 4);
+		for (int query = 1; query <= queries; query++) {
+			FileUtils.writeStringToFile(new File(dirGetRecords, String.format(Locale.ROOT, "query%03d.xml", query)),
+					GET_RECORDS, StandardCharsets.UTF_8);
+		}
+
+		PropertiesConfiguration mainConfig = new PropertiesConfiguration();
+		Iterator<String> keys = config.getKeys();
+		while (keys.hasNext()) {
+			String key = keys.next();
+			if (!key.startsWith("stub.") && !key.startsWith("loadtest.")) {
+				mainConfig.setProperty(key, config.getProperty(key));
+			}
+		}
+		mainConfig.setProperty("csw.endpoint", stubCSW.getEndpoint());
+		mainConfig.setProperty("validator.type", stubValidator.getName());
+		mainConfig.setProperty("validator.endpoint", stubValidator.getEndpoint());
+		mainConfig.setProperty("dir.getrecords", dirGetRecords.getPath());
+		mainConfig.setProperty("dir.getrecordsresponse", new File(dir, "getrecordsresponse").getPath());
+		mainConfig.setProperty("dir.metadatarecords", new File(dir, "metadatarecords").getPath());
+		mainConfig.setProperty("dir.validationresult", new File(dir, "validationresult").getPath());
+		mainConfig.setProperty("dir.harvestindex", new File(dir, "harvestindex").getPath());
+		File configurationFile = new File(dir, "config.properties");
+		new FileHandler(mainConfig).save(configurationFile);
+		return configurationFile;
+	}
+
+}
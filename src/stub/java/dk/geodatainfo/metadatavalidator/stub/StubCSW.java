@@ -0,0 +1,207 @@
+package dk.geodatainfo.metadatavalidator.stub;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.lang3.StringUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * CSW 2.0.2 GetRecords over SOAP 1.2 with paging: every query matches the same stub.csw.records records (default
+ * 1000), optionally filtered on the dateStamp by a PropertyIsGreaterThanOrEqualTo, or on the fileIdentifier by a
+ * PropertyIsEqualTo on apiso:Identifier, as sent with csw.incremental. A
+ * full record is padded to about stub.csw.recordsize bytes (default 4096). A page takes stub.csw.latency milliseconds
+ * (default 50) plus stub.csw.latencyperrecord milliseconds (default 0) per record returned.
+ */
+class StubCSW extends StubServer {
+
+	private static final String NS_CSW_2_0_2 = "http://www.opengis.net/cat/csw/2.0.2";
+	private static final String NS_OGC = "http://www.opengis.net/ogc";
+
+	private static final String[] ORGANISATIONS = { "Styrelsen for Dataforsyning og Effektivisering",
+			"Miljøstyrelsen", "Vejdirektoratet", "Københavns Kommune", "Aarhus Kommune" };
+	private static final String[] HIERARCHY_LEVELS = { "dataset", "dataset", "series", "service" };
+	private static final String[] KEYWORDS = { "Matrikulære parceller", "Administrative enheder", "Transportnet",
+			"Hydrografi", "Beskyttede lokaliteter" };
+	private static final String PADDING = "Datasættet udstilles via visnings- og downloadtjenester. ";
+
+	private final int numberOfRecords;
+	private final int recordSize;
+	private final long latencyMillisPerRecord;
+	private final DocumentBuilderFactory documentBuilderFactory;
+	private final AtomicLong numberOfRecordsReturned = new AtomicLong();
+
+	StubCSW(PropertiesConfiguration config) {
+		super("csw", config, "stub.csw", 50);
+		numberOfRecords = config.getInt("stub.csw.records", 1000);
+		recordSize = config.getInt("stub.csw.recordsize", 4096);
+		latencyMillisPerRecord = config.getLong("stub.csw.latencyperrecord", 0);
+		documentBuilderFactory = DocumentBuilderFactory.newInstance();
+		documentBuilderFactory.setNamespaceAware(true);
+	}
+
+	@Override
+	String getPath() {
+		return "/csw";
+	}
+
+	long getNumberOfRecordsReturned() {
+		return numberOfRecordsReturned.get();
+	}
+
+	@Override
+	void handle(HttpExchange exchange, byte[] request) throws IOException {
+		Element getRecords;
+		try {
+			Document document = documentBuilderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(request));
+			getRecords = (Element) document.getElementsByTagNameNS(NS_CSW_2_0_2, "GetRecords").item(0);
+		} catch (ParserConfigurationException | SAXException e) {
+			sendResponse(exchange, 400, "text/plain", "The request could not be parsed: " + e.getMessage());
+			return;
+		}
+		if (getRecords == null) {
+			sendResponse(exchange, 400, "text/plain", "Only GetRecords is supported");
+			return;
+		}
+		List<Integer> matchingRecords = getMatchingRecords(getRecords);
+		int startPosition = getIntAttribute(getRecords, "startPosition", 1);
+		int maxRecords = getIntAttribute(getRecords, "maxRecords", 10);
+		int numberOfRecordsReturned = "hits".equals(getRecords.getAttribute("resultType")) ? 0
+				: Math.max(0, Math.min(maxRecords, matchingRecords.size() - startPosition + 1));
+		int nextRecord = startPosition + numberOfRecordsReturned > matchingRecords.size() ? 0
+				: startPosition + numberOfRecordsReturned;
+		String elementSetName = getElementSetName(getRecords);
+		try {
+			TimeUnit.MILLISECONDS.sleep(numberOfRecordsReturned * latencyMillisPerRecord);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		StringBuilder response = new StringBuilder(numberOfRecordsReturned * (recordSize + 256) + 1024);
+		response.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+				.append("<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\"><soap:Body>\n")
+				.append("<csw:GetRecordsResponse xmlns:csw=\"" + NS_CSW_2_0_2 + "\" ")
+				.append("xmlns:gmd=\"http://www.isotc211.org/2005/gmd\" ")
+				.append("xmlns:gco=\"http://www.isotc211.org/2005/gco\" ")
+				.append("version=\"2.0.2\">\n<csw:SearchStatus timestamp=\"2017-10-01T12:00:00\"/>\n")
+				.append("<csw:SearchResults numberOfRecordsMatched=\"").append(matchingRecords.size())
+				.append("\" numberOfRecordsReturned=\"").append(numberOfRecordsReturned).append("\" nextRecord=\"")
+				.append(nextRecord).append("\" elementSet=\"").append(elementSetName).append("\">\n");
+		for (int position = startPosition; position < startPosition + numberOfRecordsReturned; position++) {
+			appendRecord(response, matchingRecords.get(position - 1), "full".equals(elementSetName));
+		}
+		this.numberOfRecordsReturned.addAndGet(numberOfRecordsReturned);
+		response.append("</csw:SearchResults>\n</csw:GetRecordsResponse>\n</soap:Body></soap:Envelope>\n");
+		sendResponse(exchange, 200, "application/soap+xml", response.toString());
+	}
+
+	/**
+	 * @return the numbers of the records matching the constraint, from 1
+	 */
+	private List<Integer> getMatchingRecords(Element getRecords) {
+		String modifiedSince = getLiteral(getRecords.getElementsByTagNameNS(NS_OGC, "PropertyIsGreaterThanOrEqualTo")
+				.item(0));
+		Set<String> fileIdentifiers = new HashSet<>();
+		NodeList equalTos = getRecords.getElementsByTagNameNS(NS_OGC, "PropertyIsEqualTo");
+		for (int i = 0; i < equalTos.getLength(); i++) {
+			fileIdentifiers.add(getLiteral(equalTos.item(i)));
+		}
+		List<Integer> matchingRecords = new ArrayList<>(numberOfRecords);
+		for (int number = 1; number <= numberOfRecords; number++) {
+			if (modifiedSince == null || getDateStamp(number).compareTo(modifiedSince) >= 0
+					|| fileIdentifiers.contains(getFileIdentifier(number))) {
+				matchingRecords.add(number);
+			}
+		}
+		return matchingRecords;
+	}
+
+	/**
+	 * @return the value of the ogc:Literal in the comparison, or null if there is no comparison
+	 */
+	private String getLiteral(Node comparison) {
+		if (comparison == null) {
+			return null;
+		}
+		Node literal = ((Element) comparison).getElementsByTagNameNS(NS_OGC, "Literal").item(0);
+		return literal == null ? null : StringUtils.trim(literal.getTextContent());
+	}
+
+	private String getElementSetName(Element getRecords) {
+		Node elementSetName = getRecords.getElementsByTagNameNS(NS_CSW_2_0_2, "ElementSetName").item(0);
+		return elementSetName == null ? "full" : StringUtils.trim(elementSetName.getTextContent());
+	}
+
+	private int getIntAttribute(Element element, String name, int defaultValue) {
+		String value = element.getAttribute(name);
+		return StringUtils.isEmpty(value) ? defaultValue : Integer.parseInt(value);
+	}
+
+	private void appendRecord(StringBuilder response, int number, boolean isFull) {
+		int start = response.length();
+		String hierarchyLevel = HIERARCHY_LEVELS[number % HIERARCHY_LEVELS.length];
+		response.append("<gmd:MD_Metadata>\n<gmd:fileIdentifier><gco:CharacterString>")
+				.append(getFileIdentifier(number))
+				.append("</gco:CharacterString></gmd:fileIdentifier>\n")
+				.append("<gmd:hierarchyLevel><gmd:MD_ScopeCode codeList=\"http://standards.iso.org/iso/19139/")
+				.append("resources/gmxCodelists.xml#MD_ScopeCode\" codeListValue=\"").append(hierarchyLevel)
+				.append("\">").append(hierarchyLevel).append("</gmd:MD_ScopeCode></gmd:hierarchyLevel>\n");
+		if (isFull) {
+			response.append("<gmd:contact><gmd:CI_ResponsibleParty><gmd:organisationName><gco:CharacterString>")
+					.append(ORGANISATIONS[number % ORGANISATIONS.length])
+					.append("</gco:CharacterString></gmd:organisationName></gmd:CI_ResponsibleParty></gmd:contact>\n");
+		}
+		response.append("<gmd:dateStamp><gco:DateTime>").append(getDateStamp(number))
+				.append("</gco:DateTime></gmd:dateStamp>\n");
+		response.append("<gmd:identificationInfo><gmd:MD_DataIdentification>\n<gmd:citation><gmd:CI_Citation>")
+				.append("<gmd:title><gco:CharacterString>").append(KEYWORDS[number % KEYWORDS.length]).append(' ')
+				.append(number).append("</gco:CharacterString></gmd:title></gmd:CI_Citation></gmd:citation>\n");
+		if (isFull) {
+			response.append("<gmd:abstract><gco:CharacterString>");
+			int abstractEnd = start + recordSize - 700;
+			do {
+				response.append(PADDING);
+			} while (response.length() < abstractEnd);
+			response.append("</gco:CharacterString></gmd:abstract>\n")
+					.append("<gmd:pointOfContact><gmd:CI_ResponsibleParty><gmd:organisationName><gco:CharacterString>")
+					.append(ORGANISATIONS[(number + 1) % ORGANISATIONS.length])
+					.append("</gco:CharacterString></gmd:organisationName></gmd:CI_ResponsibleParty>")
+					.append("</gmd:pointOfContact>\n<gmd:descriptiveKeywords><gmd:MD_Keywords><gmd:keyword>")
+					.append("<gco:CharacterString>").append(KEYWORDS[number % KEYWORDS.length])
+					.append("</gco:CharacterString></gmd:keyword><gmd:thesaurusName><gmd:CI_Citation><gmd:title>")
+					.append("<gco:CharacterString>GEMET - INSPIRE themes, version 1.0</gco:CharacterString>")
+					.append("</gmd:title></gmd:CI_Citation></gmd:thesaurusName></gmd:MD_Keywords>")
+					.append("</gmd:descriptiveKeywords>\n");
+		}
+		response.append("</gmd:MD_DataIdentification></gmd:identificationInfo>\n</gmd:MD_Metadata>\n");
+	}
+
+	static String getFileIdentifier(int number) {
+		return String.format(Locale.ROOT, "%08x-0000-4000-8000-%012d", number, number);
+	}
+
+	/**
+	 * @return the dateStamp of the record, spread over a year so that an incremental harvest gets part of the records
+	 */
+	private static String getDateStamp(int number) {
+		return String.format(Locale.ROOT, "2017-%02d-%02dT12:00:00", number % 12 + 1, number % 28 + 1);
+	}
+
+}
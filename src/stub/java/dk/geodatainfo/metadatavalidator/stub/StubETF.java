@@ -0,0 +1,411 @@
+package dk.geodatainfo.metadatavalidator.stub;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The part of the ETF v2 REST API used by ETFClient: /v2/heartbeat, upload of test objects as XML or zip files to
+ * /v2/TestObjects, start of test runs at /v2/TestRuns, /v2/TestRuns/&lt;id&gt;/progress and the reports as
+ * /v2/TestRuns/&lt;id&gt;.&lt;format&gt;.
+ * <p>
+ * A test run takes stub.etf.testrunduration milliseconds (default 2000) plus stub.etf.testrundurationperrecord
+ * milliseconds (default 20) per record of the test object. Its report has stub.etf.assertions assertion results
+ * (default 20); each assertion fails for about one record in ten. As in ETF, a message is the id of a translation
+ * template with the values of its arguments, and the templates are in the translationTemplateBundles of the
+ * referencedItems. The message of a record has the name of its file, its fileIdentifier or both as arguments, so that
+ * a report of a batch can be split per file; every seventh assertion also fails for the whole test object, with a
+ * message without either. Every request takes stub.etf.latency milliseconds (default 20).
+ */
+class StubETF extends StubServer {
+
+	private static final String API_PATH = "/etf/v2";
+	private static final Pattern FILE_NAME_PATTERN = Pattern.compile("filename=\"([^\"]*)\"");
+	private static final Pattern TOKEN_PATTERN = Pattern.compile("\\{(\\w+)\\}");
+
+	/**
+	 * Id and English text of the translation templates of the messages about a record.
+	 */
+	private static final String[][] RECORD_TEMPLATES = {
+			{ "TR.md.xsdValidationError", "Schema validation of {filename} failed in line {line}: "
+					+ "cvc-complex-type.2.4.b: The content of element 'gmd:MD_DataIdentification' is not complete." },
+			{ "TR.md.extentMissing", "The metadata record {id} has no geographic bounding box." },
+			{ "TR.md.keywordNotInThesaurus", "The metadata record {id} in {filename} has a keyword that is not from "
+					+ "the thesaurus GEMET - INSPIRE themes, version 1.0." },
+			{ "TR.md.resourceLocatorNotAccessible", "The resource locator of the metadata record {id} could not be "
+					+ "accessed: {text}." } };
+	/**
+	 * Id and English text of the translation template of the message about the whole test object.
+	 */
+	private static final String[] TEST_OBJECT_TEMPLATE = { "TR.md.codeListNotAccessible",
+			"The code list register {text} could not be accessed, the code list values were not checked." };
+
+	private final long testRunDurationMillis;
+	private final long testRunDurationMillisPerRecord;
+	private final int numberOfAssertions;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final JsonFactory jsonFactory = new JsonFactory();
+	private final AtomicLong lastId = new AtomicLong();
+	private final AtomicLong numberOfTestRuns = new AtomicLong();
+	private final Map<String, List<UploadedRecord>> testObjects = new ConcurrentHashMap<>();
+	private final Map<String, TestRun> testRuns = new ConcurrentHashMap<>();
+
+	StubETF(PropertiesConfiguration config) {
+		super("etf", config, "stub.etf", 20);
+		testRunDurationMillis = config.getLong("stub.etf.testrunduration", 2000);
+		testRunDurationMillisPerRecord = config.getLong("stub.etf.testrundurationperrecord", 20);
+		numberOfAssertions = config.getInt("stub.etf.assertions", 20);
+	}
+
+	@Override
+	String getPath() {
+		return "/etf";
+	}
+
+	long getNumberOfTestRuns() {
+		return numberOfTestRuns.get();
+	}
+
+	@Override
+	void handle(HttpExchange exchange, byte[] request) throws IOException {
+		String path = StringUtils.removeStart(exchange.getRequestURI().getPath(), API_PATH);
+		String method = exchange.getRequestMethod();
+		if ("/heartbeat".equals(path)) {
+			exchange.sendResponseHeaders(204, -1);
+		} else if ("/TestObjects".equals(path) && "POST".equals(method)) {
+			uploadTestObject(exchange, request);
+		} else if ("/TestRuns".equals(path) && "POST".equals(method)) {
+			startTestRun(exchange, request);
+		} else if (path.startsWith("/TestRuns/") && "GET".equals(method)) {
+			String resource = StringUtils.removeStart(path, "/TestRuns/");
+			if (resource.endsWith("/progress")) {
+				sendProgress(exchange, StringUtils.removeEnd(resource, "/progress"));
+			} else {
+				sendReport(exchange, StringUtils.substringBeforeLast(resource, "."),
+						StringUtils.substringAfterLast(resource, "."));
+			}
+		} else {
+			sendResponse(exchange, 404, "text/plain", "Not found: " + method + " " + path);
+		}
+	}
+
+	private void uploadTestObject(HttpExchange exchange, byte[] request) throws IOException {
+		String id = "EID" + lastId.incrementAndGet();
+		List<UploadedRecord> records = new ArrayList<>();
+		for (Map.Entry<String, String> file : readUploadedFiles(request).entrySet()) {
+			for (String fileIdentifier : getFileIdentifiers(file.getValue())) {
+				records.add(new UploadedRecord(file.getKey(), fileIdentifier));
+			}
+		}
+		testObjects.put(id, records);
+		sendResponse(exchange, 200, "application/json", "{\"testObject\":{\"id\":\"" + id + "\"}}");
+	}
+
+	/**
+	 * @return the content of the uploaded file, or of the files in the uploaded zip file, by file name
+	 */
+	private Map<String, String> readUploadedFiles(byte[] request) throws IOException {
+		Map<String, String> files = new LinkedHashMap<>();
+		int zipStart = indexOf(request, new byte[] { 'P', 'K', 3, 4 });
+		if (zipStart < 0) {
+			String content = new String(request, StandardCharsets.UTF_8);
+			Matcher matcher = FILE_NAME_PATTERN.matcher(content);
+			files.put(matcher.find() ? matcher.group(1) : "upload.xml", content);
+			return files;
+		}
+		ZipInputStream zipInputStream = new ZipInputStream(
+				new ByteArrayInputStream(request, zipStart, request.length - zipStart));
+		try {
+			ZipEntry zipEntry;
+			while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+				files.put(zipEntry.getName(), IOUtils.toString(zipInputStream, StandardCharsets.UTF_8));
+			}
+		} finally {
+			zipInputStream.close();
+		}
+		return files;
+	}
+
+	private void startTestRun(HttpExchange exchange, byte[] request) throws IOException {
+		JsonNode runRequest = objectMapper.readTree(request);
+		List<UploadedRecord> records = testObjects.remove(runRequest.path("testObject").path("id").asText());
+		if (records == null) {
+			sendResponse(exchange, 404, "text/plain", "Test Object not found");
+			return;
+		}
+		String id = "EID" + lastId.incrementAndGet();
+		numberOfTestRuns.incrementAndGet();
+		testRuns.put(id,
+				new TestRun(records, testRunDurationMillis + records.size() * testRunDurationMillisPerRecord));
+		sendResponse(exchange, 201, "application/json",
+				"{\"EtfItemCollection\":{\"testRuns\":{\"TestRun\":{\"id\":\"" + id + "\"}}}}");
+	}
+
+	private void sendProgress(HttpExchange exchange, String id) throws IOException {
+		TestRun testRun = testRuns.get(id);
+		if (testRun == null) {
+			sendResponse(exchange, 404, "text/plain", "Test Run not found");
+			return;
+		}
+		sendResponse(exchange, 200, "application/json", "{\"val\":" + testRun.getProgress() + ",\"max\":100}");
+	}
+
+	private void sendReport(HttpExchange exchange, String id, String format) throws IOException {
+		TestRun testRun = testRuns.get(id);
+		if (testRun == null || testRun.getProgress() < 100) {
+			sendResponse(exchange, 404, "text/plain", "Test Run not found or not finished");
+			return;
+		}
+		switch (format) {
+		case "json":
+			sendResponse(exchange, 200, "application/json", createJsonReport(id, testRun));
+			break;
+		case "html":
+			sendResponse(exchange, 200, "text/html", "<html><body><h1>Test Run " + id + "</h1><p>"
+					+ testRun.records.size() + " records</p></body></html>");
+			break;
+		case "xml":
+			sendResponse(exchange, 200, "application/xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+					+ "<TestRun id=\"" + id + "\" records=\"" + testRun.records.size() + "\"/>");
+			break;
+		default:
+			sendResponse(exchange, 404, "text/plain", "Unknown report format " + format);
+		}
+	}
+
+	/**
+	 * @return report in the structure of ETF, where a single item is an object and several items an array
+	 */
+	private String createJsonReport(String id, TestRun testRun) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonGenerator generator = jsonFactory.createGenerator(out);
+		generator.writeStartObject();
+		generator.writeObjectFieldStart("EtfItemCollection");
+		generator.writeObjectFieldStart("testRuns");
+		generator.writeObjectFieldStart("TestRun");
+		generator.writeStringField("id", id);
+		generator.writeStringField("status", "COMPLETED");
+		generator.writeObjectFieldStart("testTaskResults");
+		generator.writeObjectFieldStart("TestTaskResult");
+		generator.writeObjectFieldStart("testModuleResults");
+		generator.writeObjectFieldStart("TestModuleResult");
+		generator.writeObjectFieldStart("testCaseResults");
+		generator.writeObjectFieldStart("TestCaseResult");
+		generator.writeObjectFieldStart("testStepResults");
+		generator.writeObjectFieldStart("TestStepResult");
+		generator.writeObjectFieldStart("testAssertionResults");
+		generator.writeArrayFieldStart("TestAssertionResult");
+		for (int assertion = 1; assertion <= numberOfAssertions; assertion++) {
+			writeTestAssertionResult(generator, assertion, testRun.records);
+		}
+		generator.writeEndArray();
+		for (int level = 0; level < 11; level++) {
+			generator.writeEndObject();
+		}
+		generator.writeObjectFieldStart("referencedItems");
+		generator.writeObjectFieldStart("testAssertions");
+		generator.writeArrayFieldStart("TestAssertion");
+		for (int assertion = 1; assertion <= numberOfAssertions; assertion++) {
+			generator.writeStartObject();
+			generator.writeStringField("id", "EIDassertion" + assertion);
+			generator.writeStringField("label", "Assertion " + assertion);
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		generator.writeEndObject();
+		writeTranslationTemplateBundle(generator);
+		generator.writeEndObject();
+		generator.writeEndObject();
+		generator.writeEndObject();
+		generator.close();
+		return out.toString("UTF-8");
+	}
+
+	private void writeTestAssertionResult(JsonGenerator generator, int assertion, List<UploadedRecord> records)
+			throws IOException {
+		List<Map<String, String>> messages = new ArrayList<>();
+		if (assertion % 7 == 0 && !records.isEmpty()) {
+			messages.add(createMessage(TEST_OBJECT_TEMPLATE, null, 0));
+		}
+		for (int record = 0; record < records.size(); record++) {
+			if ((record * 7 + assertion) % 10 == 0) {
+				messages.add(createMessage(RECORD_TEMPLATES[(record / 2 + assertion) % RECORD_TEMPLATES.length],
+						records.get(record), record));
+			}
+		}
+		generator.writeStartObject();
+		generator.writeStringField("id", "EIDresult" + assertion);
+		generator.writeStringField("status", messages.isEmpty() ? "PASSED" : "FAILED");
+		generator.writeObjectFieldStart("resultedFrom");
+		generator.writeStringField("ref", "EIDassertion" + assertion);
+		generator.writeEndObject();
+		if (!messages.isEmpty()) {
+			generator.writeObjectFieldStart("messages");
+			generator.writeFieldName("message");
+			if (messages.size() > 1) {
+				generator.writeStartArray();
+			}
+			for (Map<String, String> message : messages) {
+				writeMessage(generator, message);
+			}
+			if (messages.size() > 1) {
+				generator.writeEndArray();
+			}
+			generator.writeEndObject();
+		}
+		generator.writeEndObject();
+	}
+
+	/**
+	 * @param record
+	 *            the record the message is about, or null if it is about the whole test object
+	 * @return the id of the translation template under "ref", followed by the values of its arguments by token
+	 */
+	private static Map<String, String> createMessage(String[] template, UploadedRecord record, int number) {
+		Map<String, String> message = new LinkedHashMap<>();
+		message.put("ref", template[0]);
+		Matcher matcher = TOKEN_PATTERN.matcher(template[1]);
+		while (matcher.find()) {
+			String token = matcher.group(1);
+			switch (token) {
+			case "filename":
+				message.put(token, record.fileName);
+				break;
+			case "id":
+				message.put(token, record.fileIdentifier);
+				break;
+			case "line":
+				message.put(token, Integer.toString(12 + number % 40));
+				break;
+			default:
+				message.put(token, record == null ? "https://inspire.ec.europa.eu/metadata-codelist"
+						: "HTTP status 404 Not Found");
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * Writes the message as ETF does, where a single argument is an object and several arguments an array.
+	 */
+	private static void writeMessage(JsonGenerator generator, Map<String, String> message) throws IOException {
+		generator.writeStartObject();
+		generator.writeStringField("ref", message.get("ref"));
+		generator.writeObjectFieldStart("translationArguments");
+		generator.writeFieldName("argument");
+		boolean isArray = message.size() > 2;
+		if (isArray) {
+			generator.writeStartArray();
+		}
+		for (Map.Entry<String, String> argument : message.entrySet()) {
+			if (!"ref".equals(argument.getKey())) {
+				generator.writeStartObject();
+				generator.writeStringField("token", argument.getKey());
+				generator.writeStringField("$", argument.getValue());
+				generator.writeEndObject();
+			}
+		}
+		if (isArray) {
+			generator.writeEndArray();
+		}
+		generator.writeEndObject();
+		generator.writeEndObject();
+	}
+
+	private static void writeTranslationTemplateBundle(JsonGenerator generator) throws IOException {
+		List<String[]> templates = new ArrayList<>();
+		for (String[] template : RECORD_TEMPLATES) {
+			templates.add(template);
+		}
+		templates.add(TEST_OBJECT_TEMPLATE);
+		generator.writeObjectFieldStart("translationTemplateBundles");
+		generator.writeObjectFieldStart("TranslationTemplateBundle");
+		generator.writeStringField("id", "EIDstubbundle");
+		generator.writeObjectFieldStart("translationTemplateCollections");
+		generator.writeArrayFieldStart("LangTranslationTemplateCollection");
+		for (String[] template : templates) {
+			generator.writeStartObject();
+			generator.writeStringField("name", template[0]);
+			generator.writeObjectFieldStart("translationTemplates");
+			generator.writeObjectFieldStart("TranslationTemplate");
+			generator.writeStringField("name", template[0]);
+			generator.writeStringField("language", "en");
+			generator.writeStringField("$", template[1]);
+			generator.writeEndObject();
+			generator.writeEndObject();
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.writeEndObject();
+		generator.writeEndObject();
+	}
+
+	private static int indexOf(byte[] array, byte[] target) {
+		for (int i = 0; i <= array.length - target.length; i++) {
+			int j = 0;
+			while (j < target.length && array[i + j] == target[j]) {
+				j++;
+			}
+			if (j == target.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static class UploadedRecord {
+
+		private final String fileName;
+		private final String fileIdentifier;
+
+		UploadedRecord(String fileName, String fileIdentifier) {
+			this.fileName = fileName;
+			this.fileIdentifier = fileIdentifier;
+		}
+
+	}
+
+	private static class TestRun {
+
+		private final List<UploadedRecord> records;
+		private final long startMillis = System.currentTimeMillis();
+		private final long durationMillis;
+
+		TestRun(List<UploadedRecord> records, long durationMillis) {
+			this.records = records;
+			this.durationMillis = durationMillis;
+		}
+
+		/**
+		 * @return percentage of the duration that has passed
+		 */
+		int getProgress() {
+			long elapsedMillis = System.currentTimeMillis() - startMillis;
+			return durationMillis <= 0 ? 100 : (int) Math.min(100, elapsedMillis * 100 / durationMillis);
+		}
+
+	}
+
+}
@@ -0,0 +1,101 @@
+package dk.geodatainfo.metadatavalidator.stub;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.lang3.StringUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The INSPIRE Geoportal validator2 as used by INSPIREGeoportalMetadataValidator: a POST of a GetRecordsResponse is
+ * answered with status 201, the validation result in the body and its location in the Location header, where it can
+ * be got again. The result has a resource report per record, with a validation error for one record in four. A
+ * validation takes stub.inspire2.latency milliseconds (default 200) plus stub.inspire2.latencyperrecord milliseconds
+ * (default 10) per record.
+ */
+class StubINSPIRE extends StubServer {
+
+	private final long latencyMillisPerRecord;
+	private final AtomicLong lastId = new AtomicLong();
+	private final AtomicLong numberOfValidations = new AtomicLong();
+	private final Map<String, List<String>> validations = new ConcurrentHashMap<>();
+
+	StubINSPIRE(PropertiesConfiguration config) {
+		super("inspire2", config, "stub.inspire2", 200);
+		latencyMillisPerRecord = config.getLong("stub.inspire2.latencyperrecord", 10);
+	}
+
+	@Override
+	String getPath() {
+		return "/validator";
+	}
+
+	long getNumberOfValidations() {
+		return numberOfValidations.get();
+	}
+
+	@Override
+	void handle(HttpExchange exchange, byte[] request) throws IOException {
+		String method = exchange.getRequestMethod();
+		if ("POST".equals(method)) {
+			List<String> fileIdentifiers = getFileIdentifiers(new String(request, StandardCharsets.UTF_8));
+			try {
+				TimeUnit.MILLISECONDS.sleep(fileIdentifiers.size() * latencyMillisPerRecord);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			String id = Long.toString(lastId.incrementAndGet());
+			numberOfValidations.incrementAndGet();
+			validations.put(id, fileIdentifiers);
+			exchange.getResponseHeaders().add("Location", getEndpoint() + "/" + id);
+			sendResponse(exchange, 201, "application/xml", createValidationResult(id, fileIdentifiers));
+		} else if ("GET".equals(method)) {
+			String id = StringUtils.substringAfterLast(exchange.getRequestURI().getPath(), "/");
+			List<String> fileIdentifiers = validations.get(id);
+			if (fileIdentifiers == null) {
+				sendResponse(exchange, 404, "text/plain", "Validation " + id + " not found");
+			} else {
+				sendResponse(exchange, 200, "application/xml", createValidationResult(id, fileIdentifiers));
+			}
+		} else {
+			sendResponse(exchange, 405, "text/plain", "Method " + method + " not allowed");
+		}
+	}
+
+	private String createValidationResult(String id, List<String> fileIdentifiers) {
+		StringBuilder result = new StringBuilder(fileIdentifiers.size() * 512 + 512);
+		result.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+				.append("<ns2:Resource xmlns=\"http://inspire.ec.europa.eu/schemas/common/1.0\" ")
+				.append("xmlns:ns2=\"http://inspire.ec.europa.eu/schemas/geoportal/1.0\">\n")
+				.append("<ns2:PullBatchReportResource><ns2:FoundResourcesCount>").append(fileIdentifiers.size())
+				.append("</ns2:FoundResourcesCount></ns2:PullBatchReportResource>\n");
+		double completeness = 0;
+		for (int record = 0; record < fileIdentifiers.size(); record++) {
+			boolean isValid = record % 4 != 0;
+			completeness += isValid ? 100 : 75;
+			result.append("<ns2:ResourceReportResource><ns2:FileIdentifier>").append(fileIdentifiers.get(record))
+					.append("</ns2:FileIdentifier><ns2:CompletenessIndicator>").append(isValid ? "100.0" : "75.0")
+					.append("</ns2:CompletenessIndicator><ns2:InspireValidationErrors>");
+			if (!isValid) {
+				result.append("<ns2:ValidationError><ns2:Message>Element gmd:MD_Metadata/gmd:identificationInfo/")
+						.append("gmd:MD_DataIdentification/gmd:extent is missing or has an invalid value")
+						.append("</ns2:Message><ns2:Severity>WARN</ns2:Severity></ns2:ValidationError>");
+			}
+			result.append("</ns2:InspireValidationErrors></ns2:ResourceReportResource>\n");
+		}
+		result.append("<ns2:CompletenessIndicator>")
+				.append(fileIdentifiers.isEmpty() ? 0 : completeness / fileIdentifiers.size())
+				.append("</ns2:CompletenessIndicator>\n<ns2:GeoportalMetadataLocator><URL>/").append(id)
+				.append("</URL></ns2:GeoportalMetadataLocator>\n</ns2:Resource>\n");
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,164 @@
+package dk.geodatainfo.metadatavalidator.stub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An endpoint served in-process on a free port of localhost. Every request waits &lt;prefix&gt;.latency milliseconds
+ * before it is answered, and fails with status 503 with probability &lt;prefix&gt;.errorrate. The failures are drawn
+ * from a generator seeded with stub.seed (default 1), so that runs with the same settings fail in the same way as far
+ * as the order of the requests allows.
+ * <p>
+ * Thread-safe.
+ */
+abstract class StubServer implements HttpHandler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StubServer.class);
+	private static final Pattern FILE_IDENTIFIER_PATTERN = Pattern
+			.compile("<(?:\\w+:)?fileIdentifier>\\s*<(?:\\w+:)?CharacterString>([^<]*)<");
+
+	private final String name;
+	private final long latencyMillis;
+	private final double errorRate;
+	private final Random random;
+	private final ExecutorService executorService;
+	private final AtomicLong numberOfRequests = new AtomicLong();
+	private final AtomicLong numberOfFailures = new AtomicLong();
+	private HttpServer httpServer;
+
+	/**
+	 * @param prefix
+	 *            prefix of the settings of this endpoint, for example stub.csw
+	 */
+	StubServer(String name, PropertiesConfiguration config, String prefix, long defaultLatencyMillis) {
+		this.name = name;
+		latencyMillis = config.getLong(prefix + ".latency", defaultLatencyMillis);
+		errorRate = config.getDouble(prefix + ".errorrate", 0);
+		random = new Random(config.getLong("stub.seed", 1L) + name.hashCode());
+		executorService = Executors.newFixedThreadPool(config.getInt("stub.threads", 64),
+				new ThreadFactoryBuilder().setNameFormat("Stub-" + name + "-%d").setDaemon(true).build());
+	}
+
+	void start() throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		httpServer.createContext(getPath(), this);
+		httpServer.setExecutor(executorService);
+		httpServer.start();
+		LOGGER.info("Stub " + name + " listening at " + getEndpoint());
+	}
+
+	void stop() {
+		if (httpServer != null) {
+			httpServer.stop(0);
+		}
+		executorService.shutdownNow();
+	}
+
+	String getEndpoint() {
+		return "http://localhost:" + httpServer.getAddress().getPort() + getPath();
+	}
+
+	long getNumberOfRequests() {
+		return numberOfRequests.get();
+	}
+
+	long getNumberOfFailures() {
+		return numberOfFailures.get();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		numberOfRequests.incrementAndGet();
+		try {
+			byte[] request = readRequest(exchange);
+			TimeUnit.MILLISECONDS.sleep(latencyMillis);
+			if (isFailure()) {
+				numberOfFailures.incrementAndGet();
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+			handle(exchange, request);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			LOGGER.error("Stub " + name + " could not handle " + exchange.getRequestURI(), e);
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return the path of the endpoint, starting with /
+	 */
+	abstract String getPath();
+
+	/**
+	 * Answers a request that has not been chosen to fail.
+	 */
+	abstract void handle(HttpExchange exchange, byte[] request) throws IOException;
+
+	void sendResponse(HttpExchange exchange, int statusCode, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", contentType + ";charset=UTF-8");
+		exchange.sendResponseHeaders(statusCode, bytes.length);
+		OutputStream outputStream = exchange.getResponseBody();
+		outputStream.write(bytes);
+		outputStream.close();
+	}
+
+	/**
+	 * @return the fileIdentifiers of the records in the document, in document order
+	 */
+	static List<String> getFileIdentifiers(String document) {
+		List<String> fileIdentifiers = new ArrayList<>();
+		Matcher matcher = FILE_IDENTIFIER_PATTERN.matcher(document);
+		while (matcher.find()) {
+			fileIdentifiers.add(matcher.group(1).trim());
+		}
+		return fileIdentifiers;
+	}
+
+	private boolean isFailure() {
+		synchronized (random) {
+			return random.nextDouble() < errorRate;
+		}
+	}
+
+	private byte[] readRequest(HttpExchange exchange) throws IOException {
+		InputStream inputStream = exchange.getRequestBody();
+		try {
+			return IOUtils.toByteArray(inputStream);
+		} finally {
+			IOUtils.closeQuietly(inputStream);
+		}
+	}
+
+}
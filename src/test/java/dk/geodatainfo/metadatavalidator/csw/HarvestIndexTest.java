@@ -0,0 +1,63 @@
+package dk.geodatainfo.metadatavalidator.csw;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HarvestIndexTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = new File(temporaryFolder.newFolder("harvestindex"), "query.xml.properties");
+	}
+
+	@Test
+	public void emptyIndexHasNoModifiedSince() throws CSWException {
+		assertNull(HarvestIndex.load(file).getModifiedSince());
+	}
+
+	@Test
+	public void modifiedSinceIsStartOfPreviousHarvest() throws CSWException, IOException {
+		FileUtils.writeLines(file, Arrays.asList("abc=2099-01-01T00\\:00\\:00", "=2017-06-01T12\\:00\\:00"));
+
+		assertEquals("2017-06-01T12:00:00", HarvestIndex.load(file).getModifiedSince());
+	}
+
+	@Test
+	public void dateStampInTheFutureIsIgnoredWithoutStartOfPreviousHarvest() throws CSWException, IOException {
+		FileUtils.writeLines(file, Arrays.asList("abc=2017-05-01", "def=2017-06-01T12\\:00\\:00",
+				"ghi=2099-01-01T00\\:00\\:00"));
+
+		assertEquals("2017-06-01T12:00:00", HarvestIndex.load(file).getModifiedSince());
+	}
+
+	@Test
+	public void startOfHarvestIsSavedButIsNotAFileIdentifier() throws CSWException, IOException {
+		FileUtils.writeLines(file, Arrays.asList("abc=2017-05-01"));
+		HarvestIndex harvestIndex = HarvestIndex.load(file);
+		harvestIndex.startHarvest();
+		harvestIndex.save();
+
+		HarvestIndex savedHarvestIndex = HarvestIndex.load(file);
+		assertEquals(1, savedHarvestIndex.size());
+		assertTrue(savedHarvestIndex.getModifiedSince().compareTo("2017-05-01") > 0);
+		assertEquals(Collections.singleton("def"), savedHarvestIndex.getMissing(Arrays.asList("abc", "def")));
+	}
+
+}
@@ -0,0 +1,132 @@
+package dk.geodatainfo.metadatavalidator.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
+
+public class RetryPolicyTest {
+
+	private RetryPolicy retryPolicy;
+
+	@Before
+	public void setUp() throws ConfigurationException {
+		PropertiesConfiguration config = new PropertiesConfiguration();
+		config.setProperty("test.retry.initialdelay", 0);
+		config.setProperty("test.retry.maxdelay", 0);
+		retryPolicy = new RetryPolicy("test", config, "test.retry");
+	}
+
+	@Test
+	public void serverErrorsAndTooManyRequestsAreTransient() {
+		assertTrue(RetryPolicy.isTransient(new HttpResponseException(500, "Internal Server Error")));
+		assertTrue(RetryPolicy.isTransient(new HttpResponseException(503, "Service Unavailable")));
+		assertTrue(RetryPolicy.isTransient(new HttpResponseException(429, "Too Many Requests")));
+	}
+
+	@Test
+	public void clientErrorsAreNotTransient() {
+		assertFalse(RetryPolicy.isTransient(new HttpResponseException(400, "Bad Request")));
+		assertFalse(RetryPolicy.isTransient(new HttpResponseException(404, "Not Found")));
+	}
+
+	@Test
+	public void ioErrorsAreTransientExceptUnexpectedResponses() {
+		assertTrue(RetryPolicy.isTransient(new SocketTimeoutException("Read timed out")));
+		assertTrue(RetryPolicy.isTransient(new ConnectException("Connection refused")));
+		assertFalse(RetryPolicy.isTransient(new ClientProtocolException("Invalid redirect")));
+	}
+
+	@Test
+	public void causeIsClassified() {
+		assertTrue(RetryPolicy.isTransient(new MetadataValidatorException("An exception occurred on the server",
+				new HttpResponseException(500, "Internal Server Error"))));
+		assertTrue(RetryPolicy.isTransient(new MetadataValidatorException(new SocketTimeoutException())));
+		assertFalse(RetryPolicy.isTransient(new MetadataValidatorException("Something is wrong with the content")));
+	}
+
+	@Test
+	public void transientFailureIsRetriedUntilMaxAttempts() {
+		AtomicInteger attempts = new AtomicInteger();
+		IOException failure = new SocketTimeoutException();
+		try {
+			retryPolicy.call("a step", true, IOException.class, failingAttempt(attempts, failure));
+			fail("The last failure must be thrown");
+		} catch (IOException e) {
+			assertSame(failure, e);
+		}
+		assertEquals(3, attempts.get());
+		assertEquals(2, retryPolicy.getNumberOfRetries());
+	}
+
+	@Test
+	public void nonIdempotentStepHasFewerAttempts() {
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			retryPolicy.call("a step", false, IOException.class,
+					failingAttempt(attempts, new HttpResponseException(503, "Service Unavailable")));
+			fail("The last failure must be thrown");
+		} catch (IOException e) {
+			assertEquals(2, attempts.get());
+		}
+	}
+
+	@Test
+	public void permanentFailureIsNotRetried() {
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			retryPolicy.call("a step", true, IOException.class,
+					failingAttempt(attempts, new HttpResponseException(400, "Bad Request")));
+			fail("The failure must be thrown");
+		} catch (IOException e) {
+			assertEquals(1, attempts.get());
+			assertEquals(0, retryPolicy.getNumberOfRetries());
+		}
+	}
+
+	@Test
+	public void resultOfSuccessfulRetryIsReturned() throws IOException {
+		final AtomicInteger attempts = new AtomicInteger();
+		String result = retryPolicy.call("a step", true, IOException.class,
+				new RetryPolicy.Attempt<String, IOException>() {
+
+					@Override
+					public String run() throws IOException {
+						if (attempts.incrementAndGet() == 1) {
+							throw new ConnectException("Connection refused");
+						}
+						return "result";
+					}
+				});
+		assertEquals("result", result);
+		assertEquals(2, attempts.get());
+	}
+
+	private static RetryPolicy.Attempt<Void, IOException> failingAttempt(final AtomicInteger attempts,
+			final IOException failure) {
+		return new RetryPolicy.Attempt<Void, IOException>() {
+
+			@Override
+			public Void run() throws IOException {
+				attempts.incrementAndGet();
+				throw failure;
+			}
+		};
+	}
+
+}
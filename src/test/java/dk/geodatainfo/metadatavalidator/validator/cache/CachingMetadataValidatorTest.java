@@ -0,0 +1,141 @@
+package dk.geodatainfo.metadatavalidator.validator.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import dk.geodatainfo.metadatavalidator.validator.MetadataValidator;
+import dk.geodatainfo.metadatavalidator.validator.exception.MetadataValidatorException;
+
+public class CachingMetadataValidatorTest {
+
+	private static final long ONE_DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File cacheDirectory;
+	private File outputDirectory;
+	private CountingValidator countingValidator;
+	private CachingMetadataValidator cachingValidator;
+	private File metadata;
+
+	@Before
+	public void setUp() throws IOException, ConfigurationException {
+		cacheDirectory = temporaryFolder.newFolder("cache");
+		outputDirectory = temporaryFolder.newFolder("result");
+		PropertiesConfiguration config = new PropertiesConfiguration();
+		config.setProperty("dir.validationcache", cacheDirectory.getPath());
+		config.setProperty("dir.validationresult", outputDirectory.getPath());
+		config.setProperty("validator.cache.ttlhours", 60);
+		countingValidator = new CountingValidator(outputDirectory);
+		cachingValidator = new CachingMetadataValidator(countingValidator, config);
+		metadata = temporaryFolder.newFile("record.xml");
+		FileUtils.writeStringToFile(metadata, "<MD_Metadata><fileIdentifier>abc</fileIdentifier></MD_Metadata>",
+				StandardCharsets.UTF_8);
+	}
+
+	@After
+	public void tearDown() {
+		cachingValidator.shutDown();
+	}
+
+	@Test
+	public void hitRestoresResult() throws Exception {
+		cachingValidator.sendRequestToURLEndpointAndSaveResults(metadata);
+		FileUtils.cleanDirectory(outputDirectory);
+
+		cachingValidator.sendRequestToURLEndpointAndSaveResults(metadata);
+
+		assertEquals(1, countingValidator.numberOfValidations);
+		assertTrue(new File(outputDirectory, "record.xml").isFile());
+	}
+
+	@Test
+	public void entryUsedEveryDayExpiresAfterTimeToLive() throws Exception {
+		cachingValidator.sendRequestToURLEndpointAndSaveResults(metadata);
+
+		// stored 1 and 2 days ago, within the time to live of 60 hours
+		for (int day = 1; day <= 2; day++) {
+			passOneDay(cacheDirectory);
+			cachingValidator.sendRequestToURLEndpointAndSaveResults(metadata);
+			assertEquals(1, countingValidator.numberOfValidations);
+		}
+		passOneDay(cacheDirectory);
+		cachingValidator.sendRequestToURLEndpointAndSaveResults(metadata);
+
+		assertEquals(2, countingValidator.numberOfValidations);
+	}
+
+	/**
+	 * Moves the times of the files back by one day, as if a day had passed.
+	 */
+	private static void passOneDay(File directory) {
+		for (File file : FileUtils.listFilesAndDirs(directory, FileFilterUtils.trueFileFilter(),
+				FileFilterUtils.trueFileFilter())) {
+			assertTrue(file.setLastModified(file.lastModified() - ONE_DAY_MILLIS));
+		}
+	}
+
+	/**
+	 * Saves an empty result named after the metadata and counts the validations.
+	 */
+	private static class CountingValidator implements MetadataValidator {
+
+		private final File outputDirectory;
+		private int numberOfValidations;
+
+		CountingValidator(File outputDirectory) {
+			this.outputDirectory = outputDirectory;
+		}
+
+		@Override
+		public void sendRequestToURLEndpointAndSaveResults(File metadata) throws MetadataValidatorException {
+			numberOfValidations++;
+			try {
+				FileUtils.touch(new File(outputDirectory, metadata.getName()));
+			} catch (IOException e) {
+				throw new MetadataValidatorException(e);
+			}
+		}
+
+		@Override
+		public ListenableFuture<Void> startValidation(File metadata) throws MetadataValidatorException {
+			sendRequestToURLEndpointAndSaveResults(metadata);
+			return Futures.immediateFuture(null);
+		}
+
+		@Override
+		public File createReport() {
+			return null;
+		}
+
+		@Override
+		public String getValidationSettings() {
+			return "counting";
+		}
+
+		@Override
+		public void shutDown() {
+		}
+
+	}
+
+}
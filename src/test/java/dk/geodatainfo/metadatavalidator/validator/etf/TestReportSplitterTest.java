@@ -0,0 +1,123 @@
+package dk.geodatainfo.metadatavalidator.validator.etf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TestReportSplitterTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final TestReportSplitter testReportSplitter = new TestReportSplitter();
+	private final Map<File, Set<String>> identifiersPerFile = new LinkedHashMap<>();
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = temporaryFolder.newFolder("reports");
+		identifiersPerFile.put(new File("GetRecords1.xml"), identifiers("GetRecords1.xml", "abc"));
+		identifiersPerFile.put(new File("GetRecords11.xml"), identifiers("GetRecords11.xml", "abc-1"));
+	}
+
+	@Test
+	public void messageBelongsToFileWithWholeIdentifierOnly() throws IOException {
+		split(assertionResult("FAILED", message("TR.missingTitle", "abc-1")));
+
+		assertEquals("PASSED", getAssertionResult("GetRecords1").path("status").asText());
+		assertFalse(getAssertionResult("GetRecords1").has("messages"));
+		assertEquals("FAILED", getAssertionResult("GetRecords11").path("status").asText());
+		assertEquals("abc-1", getAssertionResult("GetRecords11").path("messages").path("message")
+				.path("translationArguments").path("argument").path("$").asText());
+	}
+
+	@Test
+	public void fileNameInPathBelongsToFile() throws IOException {
+		split(assertionResult("FAILED", message("TR.schemaError", "/tmp/batch/GetRecords11.xml")));
+
+		assertEquals("PASSED", getAssertionResult("GetRecords1").path("status").asText());
+		assertEquals("FAILED", getAssertionResult("GetRecords11").path("status").asText());
+	}
+
+	@Test
+	public void messageOfNoFileKeepsStatusOfBatch() throws IOException {
+		split(assertionResult("FAILED", message("TR.generalError", "The test object is not valid")));
+
+		for (String name : Arrays.asList("GetRecords1", "GetRecords11")) {
+			assertEquals("FAILED", getAssertionResult(name).path("status").asText());
+			assertFalse(getAssertionResult(name).has("messages"));
+		}
+	}
+
+	@Test
+	public void messageOfNoFileKeepsStatusOfBatchNextToMessagesOfOtherFiles() throws IOException {
+		split(assertionResult("FAILED", "[" + message("TR.missingTitle", "abc") + ","
+				+ message("TR.generalError", "unknown record") + "]"));
+
+		assertEquals("FAILED", getAssertionResult("GetRecords1").path("status").asText());
+		assertTrue(getAssertionResult("GetRecords1").path("messages").path("message").isObject());
+		assertEquals("FAILED", getAssertionResult("GetRecords11").path("status").asText());
+	}
+
+	@Test
+	public void referenceOfMessageIsNotMatched() throws IOException {
+		split(assertionResult("FAILED", "{\"ref\":\"abc\"}"));
+
+		assertEquals("FAILED", getAssertionResult("GetRecords1").path("status").asText());
+		assertFalse(getAssertionResult("GetRecords1").has("messages"));
+	}
+
+	@Test
+	public void passedAssertionIsKept() throws IOException {
+		split("{\"id\":\"EIDresult\",\"status\":\"PASSED\",\"resultedFrom\":{\"ref\":\"EIDassertion\"}}");
+
+		assertEquals("PASSED", getAssertionResult("GetRecords1").path("status").asText());
+		assertEquals("EIDassertion", getAssertionResult("GetRecords11").path("resultedFrom").path("ref").asText());
+	}
+
+	private void split(String testAssertionResult) throws IOException {
+		File batchReport = temporaryFolder.newFile("batch.json");
+		FileUtils.writeStringToFile(batchReport, "{\"EtfItemCollection\":{\"testRuns\":{\"TestRun\":{"
+				+ "\"testAssertionResults\":{\"TestAssertionResult\":" + testAssertionResult + "}}}}}",
+				StandardCharsets.UTF_8);
+		testReportSplitter.split(batchReport, identifiersPerFile, directory);
+	}
+
+	private JsonNode getAssertionResult(String name) throws IOException {
+		return new ObjectMapper().readTree(new File(directory, name + ".json")).path("EtfItemCollection")
+				.path("testRuns").path("TestRun").path("testAssertionResults").path("TestAssertionResult");
+	}
+
+	private static String assertionResult(String status, String messages) {
+		return "{\"id\":\"EIDresult\",\"status\":\"" + status + "\",\"resultedFrom\":{\"ref\":\"EIDassertion\"},"
+				+ "\"messages\":{\"message\":" + messages + "}}";
+	}
+
+	private static String message(String ref, String argument) {
+		return "{\"ref\":\"" + ref + "\",\"translationArguments\":{\"argument\":{\"token\":\"id\",\"$\":\""
+				+ argument + "\"}}}";
+	}
+
+	private static Set<String> identifiers(String... identifiers) {
+		return new HashSet<>(Arrays.asList(identifiers));
+	}
+
+}
@@ -0,0 +1,103 @@
+package dk.geodatainfo.metadatavalidator.validator.limit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import dk.geodatainfo.metadatavalidator.validator.limit.AdaptiveConcurrencyLimit.Outcome;
+
+public class AdaptiveConcurrencyLimitTest {
+
+	private final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://localhost/validator", 1, 8,
+			1, 32, 0.5, 1.5);
+
+	@Test
+	public void overloadLowersLimit() throws InterruptedException {
+		long startNanos = acquire(1);
+
+		limit.release(startNanos, 1024, Outcome.OVERLOAD);
+
+		assertEquals(4, limit.getLimit());
+	}
+
+	@Test
+	public void failureKeepsLimit() throws InterruptedException {
+		long startNanos = acquire(8);
+
+		limit.release(startNanos, 1024, Outcome.FAILURE);
+
+		assertEquals(8, limit.getLimit());
+	}
+
+	@Test
+	public void delayedSuccessRaisesLimitWithoutLatency() throws InterruptedException {
+		long startNanos = acquire(8);
+		// the limit grows by 1 / limit per validation while it is reached
+		for (int i = 0; i < 10; i++) {
+			limit.release(startNanos, 1024, Outcome.DELAYED_SUCCESS);
+			limit.acquire();
+		}
+
+		assertEquals(9, limit.getLimit());
+	}
+
+	@Test
+	public void delayedSuccessDoesNotLowerLimitAfterHighLatency() throws InterruptedException {
+		// the latency is per kilobyte
+		limit.release(acquire(1), 1024 * 1024 * 1024, Outcome.SUCCESS);
+		long startNanos = acquire(1);
+		Thread.sleep(20);
+		limit.release(startNanos, 1024, Outcome.SUCCESS);
+		int loweredLimit = limit.getLimit();
+		assertTrue(loweredLimit < 8);
+
+		limit.release(acquire(1), 1024, Outcome.DELAYED_SUCCESS);
+
+		assertEquals(loweredLimit, limit.getLimit());
+	}
+
+	@Test
+	public void validationsOfBatchShareOnePermit() throws InterruptedException {
+		final AdaptiveConcurrencyLimit batchLimit = new AdaptiveConcurrencyLimit("http://localhost/validator", 10, 2, 1,
+				32, 0.5, 1.5);
+		// two full batches
+		for (int i = 0; i < 20; i++) {
+			batchLimit.acquire();
+		}
+		final AtomicBoolean isAcquired = new AtomicBoolean();
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					batchLimit.acquire();
+					isAcquired.set(true);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		thread.start();
+		thread.join(100);
+		assertFalse(isAcquired.get());
+
+		batchLimit.release(System.nanoTime(), 1024, Outcome.DELAYED_SUCCESS);
+		thread.join(1000);
+		assertTrue(isAcquired.get());
+	}
+
+	/**
+	 * @return the start of the last validation
+	 */
+	private long acquire(int numberOfValidations) throws InterruptedException {
+		for (int i = 0; i < numberOfValidations; i++) {
+			limit.acquire();
+		}
+		return System.nanoTime();
+	}
+
+}
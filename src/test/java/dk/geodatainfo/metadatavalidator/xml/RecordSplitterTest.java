@@ -0,0 +1,115 @@
+package dk.geodatainfo.metadatavalidator.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class RecordSplitterTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final ExecutorService executorService = MoreExecutors.newDirectExecutorService();
+	private final RecordSplitter recordSplitter = new RecordSplitter(executorService);
+
+	@After
+	public void tearDown() {
+		executorService.shutdown();
+	}
+
+	@Test
+	public void recordIsNamedAfterFileIdentifier() throws IOException, XMLStreamException {
+		File directory = split(record("abc"), record("def"));
+
+		assertFileNames(directory, "abc.xml", "def.xml");
+		String content = FileUtils.readFileToString(new File(directory, "abc.xml"), StandardCharsets.UTF_8);
+		assertTrue(content.contains("<gco:CharacterString>abc</gco:CharacterString>"));
+		// the namespaces declared on csw:GetRecordsResponse are declared again on the record
+		assertTrue(content.contains("xmlns:gco=\"http://www.isotc211.org/2005/gco\""));
+	}
+
+	@Test
+	public void duplicateFileIdentifierIsNumbered() throws IOException, XMLStreamException {
+		File directory = split(record("abc"), record("abc"), record("abc"));
+
+		assertFileNames(directory, "abc-2.xml", "abc-3.xml", "abc.xml");
+	}
+
+	@Test
+	public void fileIdentifiersDifferingInCaseAreNumbered() throws IOException, XMLStreamException {
+		File directory = split(record("abc"), record("ABC"));
+
+		assertFileNames(directory, "ABC-2.xml", "abc.xml");
+	}
+
+	@Test
+	public void charactersNotAllowedInFileNameAreReplaced() throws IOException, XMLStreamException {
+		File directory = split(record("a/b:c"), record("a_b_c"));
+
+		assertFileNames(directory, "a_b_c-2.xml", "a_b_c.xml");
+	}
+
+	@Test
+	public void recordWithoutFileIdentifierIsNamedAfterPosition() throws IOException, XMLStreamException {
+		File directory = split(record("abc"), "<gmd:MD_Metadata><gmd:language/></gmd:MD_Metadata>",
+				"<gmd:MD_Metadata><gmd:fileIdentifier><gco:CharacterString> </gco:CharacterString>"
+						+ "</gmd:fileIdentifier></gmd:MD_Metadata>");
+
+		assertFileNames(directory, "abc.xml", "record-2.xml", "record-3.xml");
+	}
+
+	@Test
+	public void fileIdentifierOfChildElementIsIgnored() throws IOException, XMLStreamException {
+		File directory = split("<gmd:MD_Metadata><gmd:parentIdentifier><gco:CharacterString>parent"
+				+ "</gco:CharacterString></gmd:parentIdentifier>" + fileIdentifier("child") + "</gmd:MD_Metadata>");
+
+		assertFileNames(directory, "child.xml");
+	}
+
+	private File split(String... records) throws IOException, XMLStreamException {
+		StringBuilder getRecordsResponse = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<csw:GetRecordsResponse xmlns:csw=\"http://www.opengis.net/cat/csw/2.0.2\" "
+				+ "xmlns:gmd=\"http://www.isotc211.org/2005/gmd\" xmlns:gco=\"http://www.isotc211.org/2005/gco\">"
+				+ "<csw:SearchResults>");
+		for (String record : records) {
+			getRecordsResponse.append(record);
+		}
+		getRecordsResponse.append("</csw:SearchResults></csw:GetRecordsResponse>");
+		File file = temporaryFolder.newFile("GetRecordsResponse.xml");
+		FileUtils.writeStringToFile(file, getRecordsResponse.toString(), StandardCharsets.UTF_8);
+		File directory = new File(temporaryFolder.getRoot(), "records");
+		assertEquals(records.length, recordSplitter.split(file, directory));
+		return directory;
+	}
+
+	private static void assertFileNames(File directory, String... expectedFileNames) {
+		String[] fileNames = directory.list();
+		Arrays.sort(fileNames);
+		assertEquals(Arrays.asList(expectedFileNames), Arrays.asList(fileNames));
+	}
+
+	private static String record(String fileIdentifier) {
+		return "<gmd:MD_Metadata>" + fileIdentifier(fileIdentifier) + "</gmd:MD_Metadata>";
+	}
+
+	private static String fileIdentifier(String fileIdentifier) {
+		return "<gmd:fileIdentifier><gco:CharacterString>" + fileIdentifier
+				+ "</gco:CharacterString></gmd:fileIdentifier>";
+	}
+
+}